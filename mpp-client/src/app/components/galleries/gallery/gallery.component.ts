@@ -43,6 +43,9 @@ import { MatProgressSpinnerModule } from '@angular/material/progress-spinner';
 import { EmptyAlbumCardComponent } from '../../empty-album-card/empty-album-card.component';
 import { NoAlbumsCardComponent } from '../../no-albums-card/no-albums-card.component';
 
+// Distance from the end of the loaded photos at which the next page is loaded
+const LOAD_MORE_DISTANCE_PX = 600;
+
 // TODO: Fix the sidenav state (and better, make it a separate component)
 @Component({
   selector: 'app-gallery',
@@ -98,6 +101,9 @@ export class GalleryComponent implements OnInit {
   filteredTags!: Observable<string[]>;
   searchControl = new FormControl('');
   arePhotosLoading = false;
+  // Cursor of the next page of photos in the album, null once all are loaded
+  nextCursor: string | null = null;
+  areMorePhotosLoading = false;
   areNewPhotosBeingUploaded = false;
 
   uploadEvent!: Event;
@@ -228,49 +234,83 @@ export class GalleryComponent implements OnInit {
 
   private async fetchPhotos(domainId: string): Promise<void> {
     this.photos = [];
-    const db = await this.indexedDbService.getDb();
+    this.nextCursor = null;
     this.arePhotosLoading = true;
 
     try {
-      const metadata = await this.apiService.getPhotosMetadata(domainId).toPromise();
-
-      const photoPromises = metadata.map(async (photo: { id: IDBKeyRange | IDBValidKey; filename: any; uploadDate: any; tags: any; size: any; }) => {
-
-        const cachedThumbnail = await db.get('thumbnails', photo.id);
-        if (cachedThumbnail) {
-          const objectUrl = URL.createObjectURL(cachedThumbnail.data);
-          return {
-            id: photo.id,
-            url: objectUrl,
-            filename: photo.filename,
-            uploadDate: photo.uploadDate,
-            tags: photo.tags,
-            size: photo.size
-          };
-        }
+      await this.fetchPhotosPage(domainId);
 
-        const thumbnailBlob = await this.apiService.downloadPhotoThumbnail(photo.id.toString()).toPromise();
-        await db.put('thumbnails', { id: photo.id, data: thumbnailBlob });
+      this.arePhotosLoading = false;
 
-        const objectUrl = URL.createObjectURL(thumbnailBlob);
+      console.log('Done fetching photos');
+    } catch (error) {
+      console.error('Error fetching thumbnails:', error);
+    }
+  }
+
+  // Albums are listed in pages, the next one is loaded when the user scrolls to the end of the loaded photos
+  protected async loadMorePhotos(): Promise<void> {
+    if (!this.nextCursor || this.arePhotosLoading || this.areMorePhotosLoading) {
+      return;
+    }
+    this.areMorePhotosLoading = true;
+    try {
+      await this.fetchPhotosPage(this.currentDomainId!, this.nextCursor);
+    } catch (error) {
+      console.error('Error fetching thumbnails:', error);
+    } finally {
+      this.areMorePhotosLoading = false;
+    }
+  }
+
+  protected onContentScroll(event: Event): void {
+    const content = event.target as HTMLElement;
+    if (content.scrollHeight - content.scrollTop - content.clientHeight < LOAD_MORE_DISTANCE_PX) {
+      this.loadMorePhotos();
+    }
+  }
+
+  private async fetchPhotosPage(domainId: string, cursor?: string): Promise<void> {
+    const loadedPhotos = this.photos;
+    const db = await this.indexedDbService.getDb();
+    const page = await this.apiService.getPhotosMetadata(domainId, cursor).toPromise();
+
+    const photoPromises = page.photos.map(async (photo: { id: IDBKeyRange | IDBValidKey; filename: any; uploadDate: any; tags: any; size: any; }) => {
+
+      const cachedThumbnail = await db.get('thumbnails', photo.id);
+      if (cachedThumbnail) {
+        const objectUrl = URL.createObjectURL(cachedThumbnail.data);
         return {
           id: photo.id,
           url: objectUrl,
           filename: photo.filename,
           uploadDate: photo.uploadDate,
           tags: photo.tags,
-          size: thumbnailBlob.size
+          size: photo.size
         };
-      });
-
-      this.photos = await Promise.all(photoPromises);
+      }
 
-      this.arePhotosLoading = false;
+      const thumbnailBlob = await this.apiService.downloadPhotoThumbnail(photo.id.toString()).toPromise();
+      await db.put('thumbnails', { id: photo.id, data: thumbnailBlob });
+
+      const objectUrl = URL.createObjectURL(thumbnailBlob);
+      return {
+        id: photo.id,
+        url: objectUrl,
+        filename: photo.filename,
+        uploadDate: photo.uploadDate,
+        tags: photo.tags,
+        size: thumbnailBlob.size
+      };
+    });
 
-      console.log('Done fetching photos');
-    } catch (error) {
-      console.error('Error fetching thumbnails:', error);
+    const photos = await Promise.all(photoPromises);
+    // The album was reloaded in the meantime
+    if (this.photos !== loadedPhotos) {
+      return;
     }
+    this.photos = loadedPhotos.concat(photos);
+    this.nextCursor = page.nextCursor;
   }
 
   private clearPhotoUrls(): void {
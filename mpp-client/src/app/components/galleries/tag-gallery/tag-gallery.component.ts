@@ -21,6 +21,7 @@ import { FormControl, FormsModule } from '@angular/forms';
 import { MatInputModule } from '@angular/material/input';
 import { PhotosGroupedByAlbum } from '../../../models/photos-grouped-by-domain.model';
 import { PhotoMetadataWithBlobUrls } from '../../../models/photo-metadata-with-urls.model';
+import { PhotoPage } from '../../../services/album/album.service';
 import { MatAutocompleteModule } from '@angular/material/autocomplete';
 import { ReactiveFormsModule } from '@angular/forms';
 import { PhotoSelectionBarComponent } from '../../photo-selection-bar/photo-selection-bar.component';
@@ -68,6 +69,7 @@ export class TagGalleryComponent {
   sidenavState$ = this.sidenavState.asObservable();
   isPhotoViewerOpen = false;
   photosGroupedByDomainResponse: PhotosGroupedByAlbum[] = [];
+  domainsLoadingMorePhotos = new Set<string>();
   selectedPhotoIndex = 0;
   selectedPhotoId = "";
   selectedPhotos = new Set<string>();
@@ -117,7 +119,6 @@ export class TagGalleryComponent {
 
   async fetchPhotos(tag: string): Promise<void> {
     this.photosGroupedByDomainResponse = [];
-    const db = await this.indexedDbService.getDb();
 
     if (!tag) {
       console.error('No tag provided');
@@ -127,26 +128,53 @@ export class TagGalleryComponent {
     try {
       const metadata: PhotosGroupedByAlbum[] = await this.apiService.getPhotosByTagGroupedByDomain(tag).toPromise();
 
-      this.photosGroupedByDomainResponse = await Promise.all(metadata.map(async (value: { albumName: string; albumId: string, photos: PhotoMetadataWithBlobUrls[]; }) => ({
-        albumName: value.albumName,
-        albumId: value.albumId,
-        photos: await Promise.all(value.photos.map(async (photo) => {
-          const cachedThumbnail = await db.get('thumbnails', photo.id);
-          if (cachedThumbnail) {
-            return { ...photo, url: URL.createObjectURL(cachedThumbnail.data) };
-          }
-
-          const thumbnailBlob = await this.apiService.downloadPhotoThumbnail(photo.id).toPromise();
-          await db.put('thumbnails', { id: photo.id, data: thumbnailBlob });
-
-          return { ...photo, url: URL.createObjectURL(thumbnailBlob) };
-        }))
+      this.photosGroupedByDomainResponse = await Promise.all(metadata.map(async (group) => ({
+        ...group,
+        photos: await this.withThumbnails(group.photos),
       })));
     } catch (error) {
       console.error('Error fetching photos:', error);
     }
   }
 
+  // Only a preview of each album is loaded with the groups, the rest is loaded a page at a time on request
+  async showMorePhotos(group: PhotosGroupedByAlbum): Promise<void> {
+    if (!group.nextCursor || this.domainsLoadingMorePhotos.has(group.albumId)) {
+      return;
+    }
+    const tag = this.currentTag!;
+    this.domainsLoadingMorePhotos.add(group.albumId);
+    try {
+      const page: PhotoPage = await this.apiService.getPhotosByTagInDomain(tag, group.albumId, group.nextCursor).toPromise();
+      const photos = await this.withThumbnails(page.photos);
+      // Another tag was opened in the meantime
+      if (tag !== this.currentTag) {
+        return;
+      }
+      group.photos = group.photos.concat(photos);
+      group.nextCursor = page.nextCursor;
+    } catch (error) {
+      console.error('Error fetching photos:', error);
+    } finally {
+      this.domainsLoadingMorePhotos.delete(group.albumId);
+    }
+  }
+
+  private async withThumbnails(photos: PhotoMetadataWithBlobUrls[]): Promise<PhotoMetadataWithBlobUrls[]> {
+    const db = await this.indexedDbService.getDb();
+    return Promise.all(photos.map(async (photo) => {
+      const cachedThumbnail = await db.get('thumbnails', photo.id);
+      if (cachedThumbnail) {
+        return { ...photo, url: URL.createObjectURL(cachedThumbnail.data) };
+      }
+
+      const thumbnailBlob = await this.apiService.downloadPhotoThumbnail(photo.id).toPromise();
+      await db.put('thumbnails', { id: photo.id, data: thumbnailBlob });
+
+      return { ...photo, url: URL.createObjectURL(thumbnailBlob) };
+    }));
+  }
+
   loadTags(): void {
     this.apiService.getTags().subscribe((tags: any) => {
       this.tags = tags;
@@ -3,5 +3,7 @@ import { PhotoMetadataWithBlobUrls } from "./photo-metadata-with-urls.model";
 export interface PhotosGroupedByAlbum {
     albumId: string;
     albumName: string;
+    count: number;
     photos: PhotoMetadataWithBlobUrls[];
+    nextCursor: string | null;
 }
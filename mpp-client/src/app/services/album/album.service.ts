@@ -2,9 +2,30 @@ import { Injectable } from '@angular/core';
 import { Domain } from '../../models/domain.model';
 import { environment } from '../../../environments/environment';
 import { HttpClient } from '@angular/common/http';
-import { Observable } from 'rxjs';
+import { catchError, map, Observable, retry, throwError, timer } from 'rxjs';
 import { SharedDomainData } from '../../models/shared-domain-data.model';
 
+export interface PhotoPage {
+  photos: any[];
+  nextCursor: string | null;
+}
+
+class ThumbnailPendingError extends Error {
+  constructor(readonly retryAfterSeconds: number) {
+    super('Thumbnail is being generated');
+  }
+}
+
+// Rendered sizes are rounded up to steps, so that similar screens share the photos cached on the server
+const RENDER_SIZE_STEP = 256;
+const MAX_RENDER_SIZE = 4096;
+
+function viewportRenderSize(): [number, number] {
+  const round = (cssPixels: number) => Math.min(MAX_RENDER_SIZE,
+    Math.ceil(cssPixels * window.devicePixelRatio / RENDER_SIZE_STEP) * RENDER_SIZE_STEP);
+  return [round(window.screen.width), round(window.screen.height)];
+}
+
 @Injectable({
   providedIn: 'root'
 })
@@ -55,24 +76,51 @@ export class AlbumService {
     return this.http.get(`${this.baseUrl}/albums/${albumId}/shared-users`, {});
   }
 
-  getPhotosMetadata(albumId: string): Observable<any> {
-    return this.http.get(`${this.baseUrl}/photos/album/${albumId}`, {});
+  // The photos of an album are listed in pages, the next page is requested with the cursor of the previous one
+  getPhotosMetadata(albumId: string, cursor?: string): Observable<PhotoPage> {
+    return this.http.get<PhotoPage>(`${this.baseUrl}/photos/album/${albumId}`, {
+      params: cursor ? { cursor } : {},
+    });
   }
 
   getPhotoFile(photoId: string) {
     return {};
   }
 
+  // Photos are viewed at the pixel size of the screen, the original is only needed for saving to disk.
+  // If the server is too busy to render the photo, the large rendition is downloaded instead.
   downloadPhoto(photoId: string): Observable<Blob> {
-    return this.http.get(`${this.baseUrl}/photos/download/${photoId}`, {
+    const [width, height] = viewportRenderSize();
+    return this.http.get(`${this.baseUrl}/photos/${photoId}/render`, {
+      params: { w: width, h: height },
       responseType: 'blob',
-    });
+    }).pipe(
+      catchError(() => this.http.get(`${this.baseUrl}/photos/download/${photoId}`, {
+        params: { rendition: 'large' },
+        responseType: 'blob',
+      })),
+    );
   }
 
   downloadPhotoThumbnail(photoId: string): Observable<Blob> {
     return this.http.get(`${this.baseUrl}/photos/download/${photoId}/thumbnail`, {
       responseType: 'blob',
-    });
+      observe: 'response',
+    }).pipe(
+      map(response => {
+        // 202 means the thumbnail is still being generated
+        if (response.status === 202) {
+          throw new ThumbnailPendingError(Number(response.headers.get('Retry-After') ?? 2));
+        }
+        return response.body as Blob;
+      }),
+      retry({
+        count: 10,
+        delay: error => error instanceof ThumbnailPendingError
+          ? timer(error.retryAfterSeconds * 1000)
+          : throwError(() => error),
+      }),
+    );
   }
 
 
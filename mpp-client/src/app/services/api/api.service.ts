@@ -1,11 +1,12 @@
 import { Injectable } from '@angular/core';
 import { environment } from '../../../environments/environment';
 import { HttpClient, HttpResponse } from '@angular/common/http';
-import { AlbumService } from '../album/album.service';
+import { AlbumService, PhotoPage } from '../album/album.service';
 import { AuthService } from '../auth/auth.service';
-import { catchError, debounceTime, distinctUntilChanged, Observable, of } from 'rxjs';
+import { catchError, debounceTime, distinctUntilChanged, map, Observable, of } from 'rxjs';
 import { Domain } from '../../models/domain.model';
 import { SharedDomainData } from '../../models/shared-domain-data.model';
+import { PhotosGroupedByAlbum } from '../../models/photos-grouped-by-domain.model';
 
 @Injectable({
   providedIn: 'root',
@@ -100,8 +101,8 @@ export class ApiService {
     return this.photoDomainService.getChildrenDomains(domainId);
   }
   
-  getPhotosMetadata(domainId: string): Observable<any> {
-    return this.photoDomainService.getPhotosMetadata(domainId);
+  getPhotosMetadata(domainId: string, cursor?: string): Observable<any> {
+    return this.photoDomainService.getPhotosMetadata(domainId, cursor);
   }
   
   downloadPhoto(photoId: string): Observable<any> {
@@ -223,8 +224,15 @@ export class ApiService {
     return this.http.put(`${this.baseUrl}/photos/${photoId}/tags`, tags);
   }
   
+  // Each album comes with a preview of its newest photos, the rest are listed in pages
   getPhotosByTagGroupedByDomain(tag: string): Observable<any> {
-    return this.http.get(`${this.baseUrl}/photos/tag/${tag}/grouped`);
+    return this.http.get<PhotosGroupedByAlbum[]>(`${this.baseUrl}/photos/tag/${tag}/grouped`);
+  }
+  
+  getPhotosByTagInDomain(tag: string, domainId: string, cursor: string): Observable<any> {
+    return this.http.get<PhotoPage>(`${this.baseUrl}/photos/tag/${tag}/folder/${domainId}`, {
+      params: { cursor },
+    });
   }
   
   setAsAlbumCover(domainId: string, photoId: string): Observable<any> {
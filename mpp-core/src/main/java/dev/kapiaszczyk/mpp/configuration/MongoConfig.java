@@ -7,6 +7,9 @@ import com.mongodb.client.gridfs.GridFSBuckets;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+import static dev.kapiaszczyk.mpp.constants.Constants.DERIVATIVES_BUCKET;
 
 /**
  * Configuration class for MongoDB.
@@ -33,10 +36,24 @@ public class MongoConfig {
     private String authenticationDatabase;
 
     @Bean
-    public GridFSBucket gridFSBucket() {
+    public MongoDatabase gridFsDatabase() {
         String connectionString = String.format("mongodb://%s:%s@%s:%d/%s?authSource=%s", username, password, host, port, database, authenticationDatabase);
-        MongoDatabase database = MongoClients.create(connectionString).getDatabase("mpp");
-        return GridFSBuckets.create(database);
+        return MongoClients.create(connectionString).getDatabase("mpp");
+    }
+
+    @Bean
+    @Primary
+    public GridFSBucket gridFSBucket(MongoDatabase gridFsDatabase) {
+        return GridFSBuckets.create(gridFsDatabase);
+    }
+
+    /**
+     * Bucket for derivatives of photos rendered on demand. They are kept apart from the originals,
+     * as they can be evicted at any time.
+     */
+    @Bean
+    public GridFSBucket derivativesBucket(MongoDatabase gridFsDatabase) {
+        return GridFSBuckets.create(gridFsDatabase, DERIVATIVES_BUCKET);
     }
 
 }
\ No newline at end of file
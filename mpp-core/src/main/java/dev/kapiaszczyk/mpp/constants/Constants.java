@@ -45,4 +45,11 @@ public class Constants {
 
     public static final String TAGGING_RESPONSE_PHOTO_KEY = "photoId";
     public static final String TAGGING_RESPONSE_TAG_KEY = "tag";
+
+    /**
+     * Name of the rendition used as the thumbnail of a photo.
+     */
+    public static final String THUMBNAIL_RENDITION = "thumbnail";
+
+    public static final String DERIVATIVES_BUCKET = "derivatives";
 }
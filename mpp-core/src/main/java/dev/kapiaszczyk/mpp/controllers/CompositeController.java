@@ -6,11 +6,15 @@ import dev.kapiaszczyk.mpp.endpoints.InternalPhotoEndpoints;
 import dev.kapiaszczyk.mpp.endpoints.PhotoEndpoints;
 import dev.kapiaszczyk.mpp.errors.OperationError;
 import dev.kapiaszczyk.mpp.models.api.AlbumInformation;
+import dev.kapiaszczyk.mpp.models.api.PhotoGroupedByAlbum;
+import dev.kapiaszczyk.mpp.models.api.PhotoPage;
+import dev.kapiaszczyk.mpp.models.api.PhotoSummary;
 import dev.kapiaszczyk.mpp.models.api.SharedAlbumInformation;
 import dev.kapiaszczyk.mpp.models.api.SharedUsersInfo;
 import dev.kapiaszczyk.mpp.models.database.Album;
 import dev.kapiaszczyk.mpp.models.database.PhotoMetadata;
 import dev.kapiaszczyk.mpp.models.database.User;
+import dev.kapiaszczyk.mpp.models.database.UserTag;
 import dev.kapiaszczyk.mpp.requests.AlbumCreationRequest;
 import dev.kapiaszczyk.mpp.requests.AlbumDeletionRequest;
 import dev.kapiaszczyk.mpp.requests.PermissionsRequest;
@@ -19,17 +23,26 @@ import dev.kapiaszczyk.mpp.services.CompositeService;
 import dev.kapiaszczyk.mpp.util.Either;
 import io.swagger.v3.oas.annotations.Hidden;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.ResourceRegion;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -38,6 +51,12 @@ import java.util.Set;
 @RestController
 public class CompositeController implements AlbumEndpoints, PhotoEndpoints, InternalPhotoEndpoints {
 
+    // Request attributes through which Tomcat is asked to send a file with sendfile
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
     @Autowired
     CompositeService compositeService;
 
@@ -264,6 +283,22 @@ public class CompositeController implements AlbumEndpoints, PhotoEndpoints, Inte
         }
     }
 
+    /**
+     * Export all photos of an album as a ZIP archive
+     *
+     * @param albumId id of the album
+     * @return response streaming the archive
+     */
+    @GetMapping(Urls.ALBUMS_URL_PREFIX + "/{albumId}/export.zip")
+    public ResponseEntity<?> exportAlbum(@PathVariable String albumId) {
+        Either<OperationError, ResponseEntity<?>> result = compositeService.exportAlbum(albumId);
+        if (result.isLeft()) {
+            return ResponseEntity.status(result.left().get().getHttpStatus()).body(result.left().get().getMessage());
+        } else {
+            return result.rightOrElse(ResponseEntity.internalServerError().body("Unknown error"));
+        }
+    }
+
     /**
      * Get the root album for the user who authenticated the request
      *
@@ -314,19 +349,78 @@ public class CompositeController implements AlbumEndpoints, PhotoEndpoints, Inte
 
     /**
      * Download a photo by its ID
+     * <p>
+     * Single and multiple byte ranges are supported, so that interrupted downloads can be resumed
+     * and the photo can be fetched progressively.
      *
-     * @param photoId id of the photo
-     * @return response containing the photo
+     * @param photoId   id of the photo
+     * @param rendition name of the rendition to download instead of the original
+     * @param range     requested byte ranges
+     * @param ifRange   validator the ranges are conditional on
+     * @param request   the request, for its conditional headers
+     * @return response containing the photo or the requested parts of it
      */
     @GetMapping(Urls.PHOTOS_URL_PREFIX + "/download/{photoId}")
-    public ResponseEntity<StreamingResponseBody> downloadPhoto(@PathVariable String photoId) {
-        Either<OperationError, PhotoResponseParts> result = compositeService.downloadPhoto(photoId);
+    public ResponseEntity<?> downloadPhoto(@PathVariable String photoId,
+                                           @RequestParam(required = false) String rendition,
+                                           @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+                                           @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+                                           WebRequest request) {
+        Either<OperationError, PhotoResponseParts> result = compositeService.downloadPhoto(photoId, rendition);
 
         if (result.isLeft()) {
             return ResponseEntity.status(result.left().get().getHttpStatus()).body(null);
         }
 
         PhotoResponseParts photoResponse = result.right().get();
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + photoResponse.getFilename() + "\"");
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        headers.setETag(photoResponse.getETag());
+        headers.setLastModified(photoResponse.getLastModified());
+        headers.setCacheControl(photoResponse.getCacheControl());
+        headers.set(HttpHeaders.CONNECTION, "keep-alive");
+
+        // Checked before any range, the file itself is not opened
+        if (request.checkNotModified(photoResponse.getETag(), photoResponse.getLastModified())) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).headers(headers).build();
+        }
+
+        List<HttpRange> ranges = range != null && isRangeApplicable(ifRange, photoResponse) ? parseRanges(range) : List.of();
+        if (!ranges.isEmpty()) {
+            List<ResourceRegion> regions;
+            try {
+                regions = HttpRange.toResourceRegions(ranges, photoResponse.getResource());
+            } catch (IllegalArgumentException e) {
+                // Well-formed ranges the file cannot satisfy
+                return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(HttpHeaders.CONTENT_RANGE, "bytes */" + photoResponse.getSize())
+                        .build();
+            }
+            if (regions.size() == 1) {
+                ResourceRegion region = regions.get(0);
+                ResponseEntity<?> sentFile = sendFile(HttpStatus.PARTIAL_CONTENT, headers, photoResponse,
+                        region.getPosition(), region.getPosition() + region.getCount(), request);
+                if (sentFile != null) {
+                    return sentFile;
+                }
+                // Content-Range and Content-Length are set by the converter writing the region
+                return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                        .headers(headers)
+                        .contentType(MediaType.parseMediaType(photoResponse.getContentType()))
+                        .body(regions.get(0));
+            }
+            // Written as multipart/byteranges
+            return ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                    .headers(headers)
+                    .body(regions);
+        }
+
+        ResponseEntity<?> sentFile = sendFile(HttpStatus.OK, headers, photoResponse, 0, photoResponse.getSize(), request);
+        if (sentFile != null) {
+            return sentFile;
+        }
+
         StreamingResponseBody responseBody = outputStream -> {
             try (InputStream inputStream = photoResponse.getResource().getInputStream()) {
                 byte[] buffer = new byte[8192];
@@ -341,23 +435,128 @@ public class CompositeController implements AlbumEndpoints, PhotoEndpoints, Inte
         };
 
         return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + photoResponse.getFilename() + "\"")
+                .headers(headers)
                 .contentType(MediaType.parseMediaType(photoResponse.getContentType()))
                 .contentLength(photoResponse.getSize())
-                .header(HttpHeaders.CONNECTION, "keep-alive")
                 .body(responseBody);
     }
 
+    /**
+     * Parse a Range header. A malformed header is ignored and the whole file is sent, as recommended by RFC 7233.
+     *
+     * @return the ranges, empty if the header is malformed
+     */
+    private static List<HttpRange> parseRanges(String range) {
+        try {
+            return HttpRange.parseRanges(range);
+        } catch (IllegalArgumentException e) {
+            return List.of();
+        }
+    }
+
+    /**
+     * Hand a file on the local disk over to Tomcat, which sends the given part of it with sendfile once the
+     * response is committed, so the content is copied by the kernel and never passes through the heap.
+     *
+     * @return the response without a body, or null if the photo is not a local file or the connector does not support sendfile
+     */
+    private static ResponseEntity<?> sendFile(HttpStatus status, HttpHeaders headers, PhotoResponseParts photoResponse,
+                                              long start, long end, WebRequest request) {
+        if (!photoResponse.getResource().isFile()
+                || !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED, RequestAttributes.SCOPE_REQUEST))) {
+            return null;
+        }
+        String path;
+        try {
+            path = photoResponse.getResource().getFile().getCanonicalPath();
+        } catch (IOException e) {
+            return null;
+        }
+        request.setAttribute(SENDFILE_FILENAME, path, RequestAttributes.SCOPE_REQUEST);
+        request.setAttribute(SENDFILE_START, start, RequestAttributes.SCOPE_REQUEST);
+        request.setAttribute(SENDFILE_END, end, RequestAttributes.SCOPE_REQUEST);
+        ResponseEntity.BodyBuilder response = ResponseEntity.status(status)
+                .headers(headers)
+                .contentType(MediaType.parseMediaType(photoResponse.getContentType()))
+                .contentLength(end - start);
+        if (status == HttpStatus.PARTIAL_CONTENT) {
+            response.header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + (end - 1) + "/" + photoResponse.getSize());
+        }
+        return response.build();
+    }
+
+    /**
+     * Check if the requested ranges can be served, which is when the validator in If-Range matches the
+     * file. Otherwise the file has changed since the client received the other parts, so the whole file is sent.
+     */
+    private static boolean isRangeApplicable(String ifRange, PhotoResponseParts photoResponse) {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // Weak validators never match
+            return ifRange.equals(photoResponse.getETag());
+        }
+        try {
+            long date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().getEpochSecond();
+            return date == photoResponse.getLastModified() / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
 
     /**
      * Download a thumbnail of a photo
      *
      * @param photoId id of the photo
+     * @param request the request, for its conditional headers
      * @return response containing the thumbnail
      */
     @GetMapping(Urls.PHOTOS_URL_PREFIX + "/download/{photoId}/thumbnail")
-    public ResponseEntity<?> downloadPhotoThumbnail(@PathVariable String photoId) {
-        Either<OperationError, ResponseEntity<?>> result = compositeService.downloadThumbnail(photoId);
+    public ResponseEntity<?> downloadPhotoThumbnail(@PathVariable String photoId, WebRequest request) {
+        Either<OperationError, ResponseEntity<?>> result = compositeService.downloadThumbnail(photoId, request);
+        if (result.isLeft()) {
+            return ResponseEntity.status(result.left().get().getHttpStatus()).body(result.left().get().getMessage());
+        } else {
+            return result.rightOrElse(ResponseEntity.internalServerError().body("Unknown error"));
+        }
+    }
+
+    /**
+     * Download the thumbnails of many photos at once
+     *
+     * @param photoIds ids of the photos
+     * @return response containing a part for each photo
+     */
+    @PostMapping(Urls.PHOTOS_URL_PREFIX + "/download/thumbnails")
+    public ResponseEntity<?> downloadPhotoThumbnails(@RequestBody List<String> photoIds) {
+        Either<OperationError, ResponseEntity<?>> result = compositeService.downloadThumbnails(photoIds);
+        if (result.isLeft()) {
+            return ResponseEntity.status(result.left().get().getHttpStatus()).body(result.left().get().getMessage());
+        } else {
+            return result.rightOrElse(ResponseEntity.internalServerError().body("Unknown error"));
+        }
+    }
+
+    /**
+     * Render a photo in the requested dimensions and format
+     *
+     * @param photoId id of the photo
+     * @param w       requested width
+     * @param h       requested height
+     * @param fit     contain or cover
+     * @param fmt     jpg or png
+     * @param request the request, for its conditional headers
+     * @return response containing the rendered photo
+     */
+    @GetMapping(Urls.PHOTOS_URL_PREFIX + "/{photoId}/render")
+    public ResponseEntity<?> renderPhoto(@PathVariable String photoId,
+                                         @RequestParam(required = false) Integer w,
+                                         @RequestParam(required = false) Integer h,
+                                         @RequestParam(required = false) String fit,
+                                         @RequestParam(required = false) String fmt,
+                                         WebRequest request) {
+        Either<OperationError, ResponseEntity<?>> result = compositeService.renderPhoto(photoId, w, h, fit, fmt, request);
         if (result.isLeft()) {
             return ResponseEntity.status(result.left().get().getHttpStatus()).body(result.left().get().getMessage());
         } else {
@@ -383,18 +582,28 @@ public class CompositeController implements AlbumEndpoints, PhotoEndpoints, Inte
     }
 
     /**
-     * Get metadata of all photos in an album
+     * Get a page of metadata of photos in an album
      *
      * @param albumId id of the album
-     * @return response containing the metadata
+     * @param sort    field to sort by
+     * @param order   asc or desc
+     * @param cursor  cursor of the page
+     * @param limit   number of photos on the page
+     * @param fields  fields of the photos to return
+     * @return response containing the page of metadata
      */
     @GetMapping(Urls.PHOTOS_URL_PREFIX + "/album/{albumId}")
-    public ResponseEntity<?> getMetadataOfPhotosInAlbum(@PathVariable String albumId) {
-        Either<String, List<PhotoMetadata>> result = compositeService.getMetadataOfPhotosInAlbum(albumId);
+    public ResponseEntity<?> getMetadataOfPhotosInAlbum(@PathVariable String albumId,
+                                                        @RequestParam(required = false) String sort,
+                                                        @RequestParam(required = false) String order,
+                                                        @RequestParam(required = false) String cursor,
+                                                        @RequestParam(required = false) Integer limit,
+                                                        @RequestParam(required = false) Set<String> fields) {
+        Either<OperationError, PhotoPage> result = compositeService.getMetadataOfPhotosInAlbum(albumId, sort, order, cursor, limit, fields);
         if (result.isLeft()) {
-            return ResponseEntity.status(403).body(result.left().orElse(""));
+            return ResponseEntity.status(result.left().get().getHttpStatus()).body(result.left().get().getMessage());
         } else {
-            return ResponseEntity.ok(result.right());
+            return ResponseEntity.ok(result.right().get());
         }
     }
 
@@ -483,33 +692,40 @@ public class CompositeController implements AlbumEndpoints, PhotoEndpoints, Inte
     /**
      * Get all images of a user with a given tag
      *
-     * @param tag tag to search for
+     * @param tag    tag to search for
+     * @param fields fields of the photos to return
      * @return response containing the photos metadata
      */
     @GetMapping(Urls.PHOTOS_URL_PREFIX + "/tag/{tag}")
-    public ResponseEntity<?> getPhotosWithTag(@PathVariable String tag) {
-        Either<String, List<PhotoMetadata>> result = this.compositeService.getPhotosWithTag(tag);
+    public ResponseEntity<?> getPhotosWithTag(@PathVariable String tag, @RequestParam(required = false) Set<String> fields) {
+        Either<OperationError, List<PhotoSummary>> result = this.compositeService.getPhotosWithTag(tag, fields);
         if (result.isLeft()) {
-            return ResponseEntity.status(403).body(result.left().orElse(""));
+            return ResponseEntity.status(result.left().get().getHttpStatus()).body(result.left().get().getMessage());
         } else {
-            return ResponseEntity.ok(result.right());
+            return ResponseEntity.ok(result.right().get());
         }
     }
 
     /**
-     * Get all images of a user with a given tag present in a specified album
+     * Get a page of images of a user with a given tag present in a specified album
      *
      * @param tag     tag to search for
      * @param albumId id of the album
-     * @return response containing the photos metadata
+     * @param cursor  cursor of the page
+     * @param limit   number of photos on the page
+     * @param fields  fields of the photos to return
+     * @return response containing the page of metadata
      */
     @GetMapping(Urls.PHOTOS_URL_PREFIX + "/tag/{tag}/folder/{albumId}")
-    public ResponseEntity<?> getPhotosWithTagInAlbum(@PathVariable String tag, @PathVariable String albumId) {
-        Either<String, List<PhotoMetadata>> result = this.compositeService.getPhotosWithTagInAlbum(tag, albumId);
+    public ResponseEntity<?> getPhotosWithTagInAlbum(@PathVariable String tag, @PathVariable String albumId,
+                                                     @RequestParam(required = false) String cursor,
+                                                     @RequestParam(required = false) Integer limit,
+                                                     @RequestParam(required = false) Set<String> fields) {
+        Either<OperationError, PhotoPage> result = this.compositeService.getPhotosWithTagInAlbum(tag, albumId, cursor, limit, fields);
         if (result.isLeft()) {
-            return ResponseEntity.status(403).body(result.left().orElse(""));
+            return ResponseEntity.status(result.left().get().getHttpStatus()).body(result.left().get().getMessage());
         } else {
-            return ResponseEntity.ok(result.right());
+            return ResponseEntity.ok(result.right().get());
         }
     }
 
@@ -544,6 +760,52 @@ public class CompositeController implements AlbumEndpoints, PhotoEndpoints, Inte
         }
     }
 
+    /**
+     * Get the number of photos by tag for a user
+     *
+     * @return response with the number of photos by tag
+     */
+    @GetMapping(Urls.PHOTOS_URL_PREFIX + "/tags/facets")
+    public ResponseEntity<?> getTagFacets() {
+        Either<OperationError, Map<String, Long>> result = this.compositeService.getTagFacets();
+        if (result.isLeft()) {
+            return ResponseEntity.status(result.left().get().getHttpStatus()).body(result.left().get().getMessage());
+        } else {
+            return ResponseEntity.ok(result.right().get());
+        }
+    }
+
+    /**
+     * Get the tags of a user with the number of photos and a cover photo
+     *
+     * @return response with the tags
+     */
+    @GetMapping(Urls.PHOTOS_URL_PREFIX + "/tags/details")
+    public ResponseEntity<?> getUserTags() {
+        Either<OperationError, List<UserTag>> result = this.compositeService.getUserTags();
+        if (result.isLeft()) {
+            return ResponseEntity.status(result.left().get().getHttpStatus()).body(result.left().get().getMessage());
+        } else {
+            return ResponseEntity.ok(result.right().get());
+        }
+    }
+
+    /**
+     * Get the number of photos by tag for a user in a folder
+     *
+     * @param albumId id of the folder
+     * @return response with the number of photos by tag
+     */
+    @GetMapping(Urls.PHOTOS_URL_PREFIX + "/tags/facets/folder/{albumId}")
+    public ResponseEntity<?> getTagFacetsInAlbum(@PathVariable String albumId) {
+        Either<OperationError, Map<String, Long>> result = this.compositeService.getTagFacetsInAlbum(albumId);
+        if (result.isLeft()) {
+            return ResponseEntity.status(result.left().get().getHttpStatus()).body(result.left().get().getMessage());
+        } else {
+            return ResponseEntity.ok(result.right().get());
+        }
+    }
+
     /**
      * Update tags for a photo
      *
@@ -564,13 +826,18 @@ public class CompositeController implements AlbumEndpoints, PhotoEndpoints, Inte
     /**
      * Get all photos grouped by tags
      *
-     * @param tag tag to group by
+     * @param tag    tag to group by
+     * @param fields fields of the photos to return
      * @return response with the photos
      */
     @GetMapping(Urls.PHOTOS_URL_PREFIX + "/tag/{tag}/grouped")
-    public ResponseEntity<?> getPhotosByTagGroupedByAlbum(@PathVariable String tag) {
-        // TODO: Add error handling
-        return ResponseEntity.ok().body(compositeService.getPhotoMetadataByTagGroupedByAlbums(tag));
+    public ResponseEntity<?> getPhotosByTagGroupedByAlbum(@PathVariable String tag, @RequestParam(required = false) Set<String> fields) {
+        Either<OperationError, List<PhotoGroupedByAlbum>> result = compositeService.getPhotoMetadataByTagGroupedByAlbums(tag, fields);
+        if (result.isLeft()) {
+            return ResponseEntity.status(result.left().get().getHttpStatus()).body(result.left().get().getMessage());
+        } else {
+            return ResponseEntity.ok(result.right().get());
+        }
     }
 
     /**
@@ -635,13 +902,13 @@ public class CompositeController implements AlbumEndpoints, PhotoEndpoints, Inte
         return compositeService.searchUsers(query);
     }
 
-    private Either<OperationError, ResponseEntity<InputStreamResource>> buildResponse(PhotoResponseParts photoResponseParts) {
+    private Either<OperationError, ResponseEntity<Resource>> buildResponse(PhotoResponseParts photoResponseParts) {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.parseMediaType(photoResponseParts.getContentType()));
         headers.setContentDispositionFormData("attachment", photoResponseParts.getFilename());
         headers.setContentLength(photoResponseParts.getSize());
 
-        ResponseEntity<InputStreamResource> responseEntity = ResponseEntity.ok()
+        ResponseEntity<Resource> responseEntity = ResponseEntity.ok()
                 .headers(headers)
                 .body(photoResponseParts.getResource());
 
@@ -1,15 +1,25 @@
 package dev.kapiaszczyk.mpp.controllers;
 
 import dev.kapiaszczyk.mpp.endpoints.SystemEndpoints;
+import dev.kapiaszczyk.mpp.models.api.BlobMigrationReport;
 import dev.kapiaszczyk.mpp.models.api.UserStatistics;
 import dev.kapiaszczyk.mpp.models.database.User;
+import dev.kapiaszczyk.mpp.services.BlobService;
+import dev.kapiaszczyk.mpp.services.BlobStorageService;
 import dev.kapiaszczyk.mpp.services.CompositeService;
+import dev.kapiaszczyk.mpp.services.ImageProcessingService;
+import dev.kapiaszczyk.mpp.services.OriginalCache;
+import dev.kapiaszczyk.mpp.services.OrphanFileCollector;
 import dev.kapiaszczyk.mpp.services.PermissionsService;
+import dev.kapiaszczyk.mpp.services.ThumbnailCache;
+import dev.kapiaszczyk.mpp.services.ThumbnailPackStore;
 import dev.kapiaszczyk.mpp.services.UserService;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.util.Map;
@@ -26,10 +36,35 @@ public class SystemController implements SystemEndpoints {
 
     private final PermissionsService permissionsService;
 
-    public SystemController(UserService userService, CompositeService compositeService, PermissionsService permissionsService) {
+    private final ImageProcessingService imageProcessingService;
+
+    private final BlobService blobService;
+
+    private final BlobStorageService blobStorageService;
+
+    private final OrphanFileCollector orphanFileCollector;
+
+    private final ThumbnailCache thumbnailCache;
+
+    private final ThumbnailPackStore thumbnailPackStore;
+
+    private final OriginalCache originalCache;
+
+    public SystemController(UserService userService, CompositeService compositeService, PermissionsService permissionsService,
+                            ImageProcessingService imageProcessingService, BlobService blobService, BlobStorageService blobStorageService,
+                            OrphanFileCollector orphanFileCollector,
+                            ThumbnailCache thumbnailCache, ThumbnailPackStore thumbnailPackStore,
+                            OriginalCache originalCache) {
         this.userService = userService;
         this.compositeService = compositeService;
         this.permissionsService = permissionsService;
+        this.imageProcessingService = imageProcessingService;
+        this.blobService = blobService;
+        this.blobStorageService = blobStorageService;
+        this.orphanFileCollector = orphanFileCollector;
+        this.thumbnailCache = thumbnailCache;
+        this.thumbnailPackStore = thumbnailPackStore;
+        this.originalCache = originalCache;
     }
 
     /**
@@ -114,6 +149,88 @@ public class SystemController implements SystemEndpoints {
         return ResponseEntity.ok(compositeService.getSpaceUsedInSystem());
     }
 
+    /**
+     * Get the state of the memory reserved for image processing.
+     *
+     * @return the memory budget, the memory reserved at the moment and the time spent waiting for it
+     */
+    @GetMapping("/admin/statistics/image-processing")
+    public ResponseEntity<?> getImageProcessingStatistics() {
+        return ResponseEntity.ok(imageProcessingService.getStatistics());
+    }
+
+    /**
+     * Get the state of the in-process thumbnail cache.
+     *
+     * @return the space taken up by cached thumbnails, hits, misses and evictions
+     */
+    @GetMapping("/admin/statistics/thumbnail-cache")
+    public ResponseEntity<?> getThumbnailCacheStatistics() {
+        return ResponseEntity.ok(thumbnailCache.getStatistics());
+    }
+
+    /**
+     * Get statistics of the thumbnail pack store.
+     *
+     * @return the number of packs and thumbnails, and the space taken up by deleted thumbnails
+     */
+    @GetMapping("/admin/statistics/thumbnail-packs")
+    public ResponseEntity<?> getThumbnailPackStatistics() {
+        return ResponseEntity.ok(thumbnailPackStore.getStatistics());
+    }
+
+    /**
+     * Get statistics of the local disk cache of photos read from GridFS.
+     *
+     * @return the space taken up by cached photos, hits, misses and evictions
+     */
+    @GetMapping("/admin/statistics/original-cache")
+    public ResponseEntity<?> getOriginalCacheStatistics() {
+        return ResponseEntity.ok(originalCache.getStatistics());
+    }
+
+    /**
+     * Recount the references of all stored files from the photos referencing them.
+     *
+     * @return response entity
+     */
+    @PutMapping("/admin/blobs/references")
+    public ResponseEntity<?> recountBlobReferences() {
+        blobService.recountReferences();
+        return ResponseEntity.ok("References recounted");
+    }
+
+    /**
+     * Move stored files to another blob store while the application keeps serving them.
+     *
+     * @param target the name of the blob store to move the files to
+     * @param limit  the maximum number of files to move in this run
+     * @return the number and size of the moved files
+     */
+    @PutMapping("/admin/blobs/store")
+    public ResponseEntity<?> migrateBlobs(@RequestParam String target, @RequestParam(defaultValue = "1000") int limit) {
+        BlobMigrationReport report;
+        try {
+            report = blobStorageService.migrate(target, limit);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+        if (report == null) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("Migration already running");
+        }
+        return ResponseEntity.ok(report);
+    }
+
+    /**
+     * Report the files in GridFS not referenced by any photo, without deleting them.
+     *
+     * @return the number, size and a sample of the orphaned files
+     */
+    @GetMapping("/admin/storage/orphans")
+    public ResponseEntity<?> getOrphanedFiles() {
+        return ResponseEntity.ok(orphanFileCollector.collect(true));
+    }
+
     /**
      * Change the system role of a user.
      *
@@ -3,6 +3,7 @@ package dev.kapiaszczyk.mpp.endpoints;
 import dev.kapiaszczyk.mpp.requests.AlbumCreationRequest;
 import dev.kapiaszczyk.mpp.requests.AlbumDeletionRequest;
 import dev.kapiaszczyk.mpp.requests.PermissionsRequest;
+import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import org.springframework.http.ResponseEntity;
 
@@ -106,6 +107,19 @@ public interface AlbumEndpoints {
      */
     ResponseEntity<?> getAlbumById(String albumId);
 
+    /**
+     * Export all photos of an album as a ZIP archive.
+     *
+     * @param albumId id of the album to export
+     * @return response streaming the archive
+     */
+    @Operation(
+            summary = "Export an album",
+            description = "Download the originals of all photos in the album as a ZIP archive. Photos are stored without compression " +
+                    "and the archive is streamed as it is written, so its size is not known up front. Subalbums are not included."
+    )
+    ResponseEntity<?> exportAlbum(String albumId);
+
     /**
      * Get users who have access to an album.
      *
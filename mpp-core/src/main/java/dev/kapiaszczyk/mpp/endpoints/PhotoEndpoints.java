@@ -2,8 +2,10 @@ package dev.kapiaszczyk.mpp.endpoints;
 
 import io.swagger.v3.oas.annotations.tags.Tag;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -27,26 +29,90 @@ public interface PhotoEndpoints {
 
     /**
      * Download a photo from the system.
+     * <p>
+     * A downscaled rendition of the photo (for example {@code medium} or {@code large}) can be requested
+     * instead of the original. Until the rendition is generated, the original is returned.
      *
-     * @param photoId id of the photo to download
-     * @return response containing photo file
+     * <p>
+     * Byte ranges can be requested with the Range header, conditionally on the ETag or Last-Modified
+     * date with If-Range. Multiple ranges are returned as multipart/byteranges.
+     * Stored files never change, so they are cacheable for good and revalidated with If-None-Match
+     * or If-Modified-Since, which are answered with 304.
+     *
+     * @param photoId   id of the photo to download
+     * @param rendition optional name of the rendition to download
+     * @param range     optional byte ranges to download
+     * @param ifRange   optional validator the ranges are conditional on
+     * @param request   the request, for its conditional headers
+     * @return response containing photo file or the requested parts of it
      */
-    ResponseEntity<?> downloadPhoto(String photoId);
+    ResponseEntity<?> downloadPhoto(String photoId, String rendition, String range, String ifRange, WebRequest request);
 
     /**
      * Download a thumbnail of a photo from the system.
+     * <p>
+     * Thumbnails are generated in the background after the upload. Until the thumbnail is ready,
+     * the response has status 202 with a Retry-After header. Ready thumbnails are immutable,
+     * revalidation with If-None-Match or If-Modified-Since is answered with 304.
      *
      * @param photoId id of the photo to download
+     * @param request the request, for its conditional headers
      * @return response containing photo thumbnail file
      */
-    ResponseEntity<?> downloadPhotoThumbnail(String photoId);
+    ResponseEntity<?> downloadPhotoThumbnail(String photoId, WebRequest request);
 
     /**
-     * Get metadata of all photos in the system.
+     * Download the thumbnails of many photos in a single request.
+     * <p>
+     * The response is multipart/mixed with a part for each requested photo, in the requested order, naming the
+     * photo in its Content-ID header. Photos whose thumbnail cannot be returned get a plain text part with the
+     * status they would have been answered with on their own in the X-Status header, for example 202 for a
+     * thumbnail still being generated. The number of photos per request is limited.
      *
-     * @return response containing metadata of all photos
+     * @param photoIds ids of the photos
+     * @return response containing a part for each photo
      */
-    ResponseEntity<?> getMetadataOfPhotosInAlbum(String albumId);
+    ResponseEntity<?> downloadPhotoThumbnails(List<String> photoIds);
+
+    /**
+     * Render a photo in the requested dimensions and format.
+     * <p>
+     * The photo is scaled down to fit inside the dimensions ({@code contain}, default) or to cover them
+     * with the overflow cropped ({@code cover}, requires both dimensions). Photos are never enlarged.
+     * Rendered photos are cached. If too many images are being processed, the response has status 503.
+     *
+     * @param photoId id of the photo to render
+     * @param w       requested width in pixels
+     * @param h       requested height in pixels
+     * @param fit     contain or cover
+     * @param fmt     jpg (default) or png
+     * @param request the request, for its conditional headers
+     * @return response containing the rendered photo
+     */
+    ResponseEntity<?> renderPhoto(String photoId, Integer w, Integer h, String fit, String fmt, WebRequest request);
+
+    /**
+     * Get a page of metadata of the photos in an album.
+     * <p>
+     * Photos are sorted by {@code uploadDate} (default), {@code filename} or {@code size}, in ascending
+     * (default) or descending order, and then by their ids. The page contains the cursor of the next page,
+     * which is passed back with the same sort and order to get the next page, or null on the last page.
+     * The number of photos on a page is capped.
+     * <p>
+     * Only the requested fields of the photos are returned if {@code fields} is given, for example
+     * {@code fields=thumbnailId,width,height,uploadDate}. The id is always returned. The fields are
+     * filename, contentType, size, uploadDate, albumId, tags, thumbnailId, thumbnailStatus, width, height,
+     * dominantColor and blurHash.
+     *
+     * @param albumId id of the album
+     * @param sort    optional field to sort by
+     * @param order   optional order, asc or desc
+     * @param cursor  optional cursor of the page, the first page if missing
+     * @param limit   optional number of photos on the page
+     * @param fields  optional fields of the photos to return
+     * @return response containing a page of metadata of the photos
+     */
+    ResponseEntity<?> getMetadataOfPhotosInAlbum(String albumId, String sort, String order, String cursor, Integer limit, Set<String> fields);
 
     /**
      * Get metadata of all photos in the system.
@@ -91,20 +157,28 @@ public interface PhotoEndpoints {
 
     /**
      * Get metadata of a photo in the system by tag.
+     * Only the requested fields are returned if {@code fields} is given, as in album listings.
      *
-     * @param tag tag to search for
+     * @param tag    tag to search for
+     * @param fields optional fields of the photos to return
      * @return response containing metadata of the photos
      */
-    ResponseEntity<?> getPhotosWithTag(String tag);
+    ResponseEntity<?> getPhotosWithTag(String tag, Set<String> fields);
 
     /**
-     * Get metadata of a photo in the system by tag in album.
+     * Get a page of metadata of the photos by tag in album, newest first.
+     * The page contains the cursor of the next page, or null on the last page. The first page
+     * follows the preview of the album when photos are grouped by album, if its cursor is passed.
+     * Only the requested fields are returned if {@code fields} is given, as in album listings.
      *
      * @param tag     tag to search for
      * @param albumId id of the album to search in
-     * @return response containing metadata of the photos
+     * @param cursor  optional cursor of the page, the first page if missing
+     * @param limit   optional number of photos on the page
+     * @param fields  optional fields of the photos to return
+     * @return response containing a page of metadata of the photos
      */
-    ResponseEntity<?> getPhotosWithTagInAlbum(String tag, String albumId);
+    ResponseEntity<?> getPhotosWithTagInAlbum(String tag, String albumId, String cursor, Integer limit, Set<String> fields);
 
     /**
      * Get all tags for a user.
@@ -121,6 +195,28 @@ public interface PhotoEndpoints {
      */
     ResponseEntity<?> getAllTagsForUserInAlbum(String albumId);
 
+    /**
+     * Get the number of photos by tag for a user.
+     *
+     * @return response containing the number of photos by tag, most used first
+     */
+    ResponseEntity<?> getTagFacets();
+
+    /**
+     * Get the tags of a user with the number of photos, a cover photo and when they were last given to a photo.
+     *
+     * @return response containing the tags, most used first
+     */
+    ResponseEntity<?> getUserTags();
+
+    /**
+     * Get the number of photos by tag for a user in album.
+     *
+     * @param albumId id of the album to search in
+     * @return response containing the number of photos by tag, most used first
+     */
+    ResponseEntity<?> getTagFacetsInAlbum(String albumId);
+
     /**
      * Update tags for a photo.
      *
@@ -131,11 +227,15 @@ public interface PhotoEndpoints {
     ResponseEntity<?> updateTagsForPhoto(String photoId, Set<String> tags);
 
     /**
-     * Get photos by tag grouped by album.
+     * Get photos by tag grouped by album, the albums with the most photos first.
+     * Each album contains the number of its photos with the tag and a preview of the newest ones. If not all
+     * photos are in the preview, the rest are listed in pages of photos by tag in album from the cursor of the album.
+     * Only the requested fields are returned if {@code fields} is given, as in album listings.
      *
-     * @param tag tag to search for
+     * @param tag    tag to search for
+     * @param fields optional fields of the photos to return
      * @return response containing photo metadata grouped by album
      */
-    ResponseEntity<?> getPhotosByTagGroupedByAlbum(String tag);
+    ResponseEntity<?> getPhotosByTagGroupedByAlbum(String tag, Set<String> fields);
 
 }
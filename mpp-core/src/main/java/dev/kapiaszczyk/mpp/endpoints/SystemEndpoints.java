@@ -118,6 +118,73 @@ public interface SystemEndpoints {
      */
     ResponseEntity<?> getSpaceUsedInSystem();
 
+    /**
+     * Get the state of the memory reserved for image processing.
+     *
+     * @return response containing the memory budget, reserved memory and wait times
+     */
+    ResponseEntity<?> getImageProcessingStatistics();
+
+    /**
+     * Get the state of the in-process thumbnail cache.
+     *
+     * @return response containing the used space, hits, misses and evictions of the cache
+     */
+    ResponseEntity<?> getThumbnailCacheStatistics();
+
+    /**
+     * Get the state of the local thumbnail pack store.
+     *
+     * @return response containing the number of packs and thumbnails, and the space taken up by deleted thumbnails
+     */
+    ResponseEntity<?> getThumbnailPackStatistics();
+
+    /**
+     * Get the state of the local disk cache of photos read from GridFS.
+     *
+     * @return response containing the used space, hits, misses and evictions of the cache
+     */
+    ResponseEntity<?> getOriginalCacheStatistics();
+
+    /**
+     * Recount the references of all stored files, correcting counts that drifted.
+     *
+     * @return response confirming the recount
+     */
+    @Operation(
+            summary = "Recount references of stored files",
+            description = "Recount how many photos reference each stored file. Files are deleted once no photo references them.",
+            method = "PUT"
+    )
+    ResponseEntity<?> recountBlobReferences();
+
+    /**
+     * Move stored files to another blob store.
+     *
+     * @param target the name of the blob store to move the files to
+     * @param limit  the maximum number of files to move in this run
+     * @return response containing the report of the run
+     */
+    @Operation(
+            summary = "Move stored files to another blob store",
+            description = "Move up to the given number of stored files to the gridfs or filesystem blob store. Files are copied " +
+                    "and only then deleted from the other store, so they can be downloaded throughout. Run again until nothing is moved.",
+            method = "PUT"
+    )
+    ResponseEntity<?> migrateBlobs(String target, int limit);
+
+    /**
+     * Report the files not referenced by any photo without deleting them.
+     *
+     * @return response containing the report of the dry run
+     */
+    @Operation(
+            summary = "Report orphaned files",
+            description = "Dry run of the collector of stored files not referenced by any photo. Nothing is deleted. " +
+                    "Files younger than the grace period are not reported."
+    )
+    ResponseEntity<?> getOrphanedFiles();
+
     /**
      * Remove a user from the system and delete all their photos.
      */
@@ -29,6 +29,12 @@ public class GenericErrors {
     public static final String PERMISSIONS_ADDED = "Access added";
     public static final String PERMISSION_MODIFIED = "Permissions modified";
     public static final String FILE_NOT_FOUND = "File not found";
+    public static final String THUMBNAIL_PENDING = "Thumbnail is being generated";
+    public static final String THUMBNAIL_NOT_AVAILABLE = "Thumbnail is not available";
+    public static final String UNKNOWN_PHOTO_FIELD = "Unknown photo field requested";
+    public static final String RENDITION_NOT_SUPPORTED = "No such rendition exists";
+    public static final String INVALID_RENDER_PARAMETERS = "Invalid render parameters";
+    public static final String RENDERING_UNAVAILABLE = "Too many images are being processed, try again later";
 }
 
 
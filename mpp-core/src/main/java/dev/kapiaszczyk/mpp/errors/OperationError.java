@@ -48,5 +48,9 @@ public class OperationError {
         return new OperationError().httpStatusCode(HttpStatus.FORBIDDEN).message(message);
     }
 
+    public static OperationError serviceUnavailable(String message) {
+        return new OperationError().httpStatusCode(HttpStatus.SERVICE_UNAVAILABLE).message(message);
+    }
+
 
 }
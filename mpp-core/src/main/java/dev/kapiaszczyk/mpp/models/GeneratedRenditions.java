@@ -0,0 +1,27 @@
+package dev.kapiaszczyk.mpp.models;
+
+import java.util.Map;
+
+/**
+ * Represents the renditions generated from an uploaded photo, together with its preview.
+ */
+public class GeneratedRenditions {
+
+    // Encoded renditions by their names
+    private final Map<String, byte[]> renditions;
+    private final ImagePreview preview;
+
+    public GeneratedRenditions(Map<String, byte[]> renditions, ImagePreview preview) {
+        this.renditions = renditions;
+        this.preview = preview;
+    }
+
+    public Map<String, byte[]> getRenditions() {
+        return renditions;
+    }
+
+    public ImagePreview getPreview() {
+        return preview;
+    }
+
+}
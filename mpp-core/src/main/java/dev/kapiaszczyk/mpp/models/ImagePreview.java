@@ -0,0 +1,58 @@
+package dev.kapiaszczyk.mpp.models;
+
+/**
+ * Represents what is known about a photo before its thumbnail is loaded: the dimensions of the photo,
+ * its dominant colour and a BlurHash of it, from which a blurred placeholder is painted.
+ */
+public class ImagePreview {
+
+    // Pixel dimensions of the original, as displayed after applying the EXIF orientation
+    private int width;
+    private int height;
+    // Hex colour, e.g. #1a2b3c
+    private String dominantColor;
+    private String blurHash;
+
+    public ImagePreview() {
+    }
+
+    public ImagePreview(int width, int height, String dominantColor, String blurHash) {
+        this.width = width;
+        this.height = height;
+        this.dominantColor = dominantColor;
+        this.blurHash = blurHash;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public void setWidth(int width) {
+        this.width = width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setHeight(int height) {
+        this.height = height;
+    }
+
+    public String getDominantColor() {
+        return dominantColor;
+    }
+
+    public void setDominantColor(String dominantColor) {
+        this.dominantColor = dominantColor;
+    }
+
+    public String getBlurHash() {
+        return blurHash;
+    }
+
+    public void setBlurHash(String blurHash) {
+        this.blurHash = blurHash;
+    }
+
+}
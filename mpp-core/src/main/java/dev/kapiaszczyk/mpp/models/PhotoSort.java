@@ -0,0 +1,43 @@
+package dev.kapiaszczyk.mpp.models;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Optional;
+
+/**
+ * Represents the fields by which the photos of an album can be listed.
+ */
+public enum PhotoSort {
+
+    UPLOAD_DATE("uploadDate", Date.class),
+    FILENAME("filename", String.class),
+    SIZE("size", Number.class);
+
+    private final String field;
+    private final Class<?> valueType;
+
+    PhotoSort(String field, Class<?> valueType) {
+        this.field = field;
+        this.valueType = valueType;
+    }
+
+    /**
+     * The field of the photo metadata, also the name under which the sort is requested.
+     */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * Check if a value, e.g. the one of a page cursor, is of the type of the field. Photos missing the field
+     * have no value. Anything else, such as a document, would be read as query operators.
+     */
+    public boolean isValidValue(Object value) {
+        return value == null || valueType.isInstance(value);
+    }
+
+    public static Optional<PhotoSort> fromField(String field) {
+        return Arrays.stream(values()).filter(sort -> sort.field.equals(field)).findFirst();
+    }
+
+}
@@ -0,0 +1,18 @@
+package dev.kapiaszczyk.mpp.models;
+
+/**
+ * Represents how a photo rendered on demand is fitted into the requested dimensions.
+ */
+public enum RenderFit {
+
+    /**
+     * Photo is scaled down to fit inside the dimensions, keeping its aspect ratio
+     */
+    CONTAIN,
+
+    /**
+     * Photo is scaled to cover the dimensions and the overflow is cropped around the center
+     */
+    COVER
+
+}
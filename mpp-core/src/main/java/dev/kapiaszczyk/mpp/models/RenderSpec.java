@@ -0,0 +1,60 @@
+package dev.kapiaszczyk.mpp.models;
+
+import java.util.Set;
+
+/**
+ * Represents the parameters of a derivative of a photo rendered on demand.
+ * A missing width or height means the dimension is not constrained.
+ */
+public class RenderSpec {
+
+    /**
+     * The largest width or height that can be requested.
+     */
+    public static final int MAX_DIMENSION = 4096;
+
+    public static final Set<String> SUPPORTED_FORMATS = Set.of("jpg", "png");
+
+    private final Integer width;
+    private final Integer height;
+    private final RenderFit fit;
+    private final String format;
+
+    public RenderSpec(Integer width, Integer height, RenderFit fit, String format) {
+        this.width = width;
+        this.height = height;
+        this.fit = fit;
+        this.format = format;
+    }
+
+    public Integer getWidth() {
+        return width;
+    }
+
+    public Integer getHeight() {
+        return height;
+    }
+
+    public RenderFit getFit() {
+        return fit;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public String getContentType() {
+        return format.equals("png") ? "image/png" : "image/jpeg";
+    }
+
+    /**
+     * Get a key identifying the derivative among the derivatives of the same photo.
+     *
+     * @return the key, for example {@code 400xauto-contain.jpg}
+     */
+    public String getCacheKey() {
+        return (width == null ? "auto" : width) + "x" + (height == null ? "auto" : height)
+                + "-" + fit.name().toLowerCase() + "." + format;
+    }
+
+}
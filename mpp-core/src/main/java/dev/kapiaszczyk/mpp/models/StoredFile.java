@@ -0,0 +1,30 @@
+package dev.kapiaszczyk.mpp.models;
+
+/**
+ * Represents a small stored file, such as a thumbnail, read into memory with the details needed to serve it.
+ */
+public class StoredFile {
+
+    private final String filename;
+    private final long lastModified;
+    private final byte[] content;
+
+    public StoredFile(String filename, long lastModified, byte[] content) {
+        this.filename = filename;
+        this.lastModified = lastModified;
+        this.content = content;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+}
@@ -0,0 +1,23 @@
+package dev.kapiaszczyk.mpp.models;
+
+/**
+ * Represents the state of the thumbnail of a photo, which is generated in the background after the upload.
+ */
+public enum ThumbnailStatus {
+
+    /**
+     * Thumbnail has not been generated yet
+     */
+    PENDING,
+
+    /**
+     * Thumbnail has been generated and stored
+     */
+    READY,
+
+    /**
+     * Thumbnail could not be generated from the uploaded file
+     */
+    FAILED
+
+}
@@ -0,0 +1,60 @@
+package dev.kapiaszczyk.mpp.models.api;
+
+/**
+ * Represents the outcome of a run moving stored files from one blob store to another
+ * visible for the administrator of the system.
+ */
+public class BlobMigrationReport {
+
+    String source;
+    String target;
+    long scannedBlobs;
+    long movedBlobs;
+    long movedBytes;
+    // Blobs left in the source store, they are retried by the next run
+    long failedBlobs;
+    long durationMillis;
+
+    public BlobMigrationReport() {
+    }
+
+    public BlobMigrationReport(String source, String target, long scannedBlobs, long movedBlobs, long movedBytes,
+                               long failedBlobs, long durationMillis) {
+        this.source = source;
+        this.target = target;
+        this.scannedBlobs = scannedBlobs;
+        this.movedBlobs = movedBlobs;
+        this.movedBytes = movedBytes;
+        this.failedBlobs = failedBlobs;
+        this.durationMillis = durationMillis;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public long getScannedBlobs() {
+        return scannedBlobs;
+    }
+
+    public long getMovedBlobs() {
+        return movedBlobs;
+    }
+
+    public long getMovedBytes() {
+        return movedBytes;
+    }
+
+    public long getFailedBlobs() {
+        return failedBlobs;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+}
@@ -0,0 +1,62 @@
+package dev.kapiaszczyk.mpp.models.api;
+
+/**
+ * Represents the state of the memory reserved for image processing
+ * visible for the administrator of the system.
+ */
+public class ImageProcessingStatistics {
+
+    // Memory available for decoding images at the same time
+    long budgetBytes;
+    // Memory reserved by decodes running at the moment
+    long reservedBytes;
+    long waitingReservations;
+    long grantedReservations;
+    // Decodes postponed because no memory was available in time
+    long rejectedReservations;
+    long averageWaitMillis;
+    long maxWaitMillis;
+
+    public ImageProcessingStatistics() {
+    }
+
+    public ImageProcessingStatistics(long budgetBytes, long reservedBytes, long waitingReservations, long grantedReservations,
+                                     long rejectedReservations, long averageWaitMillis, long maxWaitMillis) {
+        this.budgetBytes = budgetBytes;
+        this.reservedBytes = reservedBytes;
+        this.waitingReservations = waitingReservations;
+        this.grantedReservations = grantedReservations;
+        this.rejectedReservations = rejectedReservations;
+        this.averageWaitMillis = averageWaitMillis;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    public long getWaitingReservations() {
+        return waitingReservations;
+    }
+
+    public long getGrantedReservations() {
+        return grantedReservations;
+    }
+
+    public long getRejectedReservations() {
+        return rejectedReservations;
+    }
+
+    public long getAverageWaitMillis() {
+        return averageWaitMillis;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+}
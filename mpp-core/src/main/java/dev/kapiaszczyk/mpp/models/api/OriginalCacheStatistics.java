@@ -0,0 +1,57 @@
+package dev.kapiaszczyk.mpp.models.api;
+
+/**
+ * Represents the state of the local disk cache of files stored in GridFS
+ * visible for the administrator of the system.
+ */
+public class OriginalCacheStatistics {
+
+    long capacityBytes;
+    long usedBytes;
+    long entries;
+    long hits;
+    long misses;
+    long evictions;
+
+    public OriginalCacheStatistics() {
+    }
+
+    public OriginalCacheStatistics(long capacityBytes, long usedBytes, long entries, long hits, long misses, long evictions) {
+        this.capacityBytes = capacityBytes;
+        this.usedBytes = usedBytes;
+        this.entries = entries;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getEntries() {
+        return entries;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public double getHitRatio() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+}
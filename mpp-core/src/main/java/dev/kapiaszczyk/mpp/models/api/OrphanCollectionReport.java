@@ -0,0 +1,69 @@
+package dev.kapiaszczyk.mpp.models.api;
+
+import java.util.List;
+
+/**
+ * Represents the outcome of a run of the collector of files in GridFS not referenced by any photo
+ * visible for the administrator of the system.
+ */
+public class OrphanCollectionReport {
+
+    // Whether orphaned files were only reported and not deleted
+    boolean dryRun;
+    long referencedFiles;
+    long scannedFiles;
+    long orphanedFiles;
+    long orphanedBytes;
+    long deletedFiles;
+    // IDs of the first orphaned files found, for inspection
+    List<String> sampleOrphanIds;
+    long durationMillis;
+
+    public OrphanCollectionReport() {
+    }
+
+    public OrphanCollectionReport(boolean dryRun, long referencedFiles, long scannedFiles, long orphanedFiles, long orphanedBytes,
+                                  long deletedFiles, List<String> sampleOrphanIds, long durationMillis) {
+        this.dryRun = dryRun;
+        this.referencedFiles = referencedFiles;
+        this.scannedFiles = scannedFiles;
+        this.orphanedFiles = orphanedFiles;
+        this.orphanedBytes = orphanedBytes;
+        this.deletedFiles = deletedFiles;
+        this.sampleOrphanIds = sampleOrphanIds;
+        this.durationMillis = durationMillis;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public long getReferencedFiles() {
+        return referencedFiles;
+    }
+
+    public long getScannedFiles() {
+        return scannedFiles;
+    }
+
+    public long getOrphanedFiles() {
+        return orphanedFiles;
+    }
+
+    public long getOrphanedBytes() {
+        return orphanedBytes;
+    }
+
+    public long getDeletedFiles() {
+        return deletedFiles;
+    }
+
+    public List<String> getSampleOrphanIds() {
+        return sampleOrphanIds;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+}
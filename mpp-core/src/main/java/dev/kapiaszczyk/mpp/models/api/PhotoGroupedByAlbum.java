@@ -1,19 +1,24 @@
 package dev.kapiaszczyk.mpp.models.api;
 
-import dev.kapiaszczyk.mpp.models.database.PhotoMetadata;
-
 import java.util.List;
 
 public class PhotoGroupedByAlbum {
 
     private String albumId;
     private String albumName;
-    private List<PhotoMetadata> photos;
-
-    public PhotoGroupedByAlbum(String albumId, String albumName, List<PhotoMetadata> photos) {
+    // Number of all photos in the album, not only the ones in the preview
+    private long count;
+    // The newest photos
+    private List<PhotoSummary> photos;
+    // Cursor of the page following the preview, null if all photos are in the preview
+    private String nextCursor;
+
+    public PhotoGroupedByAlbum(String albumId, String albumName, long count, List<PhotoSummary> photos, String nextCursor) {
         this.albumId = albumId;
         this.albumName = albumName;
+        this.count = count;
         this.photos = photos;
+        this.nextCursor = nextCursor;
     }
 
     public String getAlbumId() {
@@ -24,8 +29,16 @@ public class PhotoGroupedByAlbum {
         return albumName;
     }
 
-    public List<PhotoMetadata> getPhotos() {
+    public long getCount() {
+        return count;
+    }
+
+    public List<PhotoSummary> getPhotos() {
         return photos;
     }
 
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
 }
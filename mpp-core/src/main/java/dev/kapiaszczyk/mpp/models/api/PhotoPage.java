@@ -0,0 +1,27 @@
+package dev.kapiaszczyk.mpp.models.api;
+
+import java.util.List;
+
+/**
+ * Represents a page of the photos of an album, with the cursor from which the next page is listed.
+ */
+public class PhotoPage {
+
+    private final List<PhotoSummary> photos;
+    // Null on the last page
+    private final String nextCursor;
+
+    public PhotoPage(List<PhotoSummary> photos, String nextCursor) {
+        this.photos = photos;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<PhotoSummary> getPhotos() {
+        return photos;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+}
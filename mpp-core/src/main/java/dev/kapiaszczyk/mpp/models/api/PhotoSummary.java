@@ -0,0 +1,147 @@
+package dev.kapiaszczyk.mpp.models.api;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import dev.kapiaszczyk.mpp.models.ThumbnailStatus;
+
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * Represents a photo in a listing, without the details of how and where it is stored.
+ * Fields that were not requested are left out of the response.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class PhotoSummary {
+
+    private final String id;
+    private String filename;
+    private String contentType;
+    private Long size;
+    private Date uploadDate;
+    private String albumId;
+    private Set<String> tags;
+    private String thumbnailId;
+    private ThumbnailStatus thumbnailStatus;
+    // From the preview, set together with the thumbnail
+    private Integer width;
+    private Integer height;
+    private String dominantColor;
+    private String blurHash;
+
+    public PhotoSummary(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public Date getUploadDate() {
+        return uploadDate;
+    }
+
+    public String getAlbumId() {
+        return albumId;
+    }
+
+    public Set<String> getTags() {
+        return tags;
+    }
+
+    public String getThumbnailId() {
+        return thumbnailId;
+    }
+
+    public ThumbnailStatus getThumbnailStatus() {
+        return thumbnailStatus;
+    }
+
+    public Integer getWidth() {
+        return width;
+    }
+
+    public Integer getHeight() {
+        return height;
+    }
+
+    public String getDominantColor() {
+        return dominantColor;
+    }
+
+    public String getBlurHash() {
+        return blurHash;
+    }
+
+    public PhotoSummary filename(String filename) {
+        this.filename = filename;
+        return this;
+    }
+
+    public PhotoSummary contentType(String contentType) {
+        this.contentType = contentType;
+        return this;
+    }
+
+    public PhotoSummary size(Long size) {
+        this.size = size;
+        return this;
+    }
+
+    public PhotoSummary uploadDate(Date uploadDate) {
+        this.uploadDate = uploadDate;
+        return this;
+    }
+
+    public PhotoSummary albumId(String albumId) {
+        this.albumId = albumId;
+        return this;
+    }
+
+    public PhotoSummary tags(Set<String> tags) {
+        this.tags = tags;
+        return this;
+    }
+
+    public PhotoSummary thumbnailId(String thumbnailId) {
+        this.thumbnailId = thumbnailId;
+        return this;
+    }
+
+    public PhotoSummary thumbnailStatus(ThumbnailStatus thumbnailStatus) {
+        this.thumbnailStatus = thumbnailStatus;
+        return this;
+    }
+
+    public PhotoSummary width(Integer width) {
+        this.width = width;
+        return this;
+    }
+
+    public PhotoSummary height(Integer height) {
+        this.height = height;
+        return this;
+    }
+
+    public PhotoSummary dominantColor(String dominantColor) {
+        this.dominantColor = dominantColor;
+        return this;
+    }
+
+    public PhotoSummary blurHash(String blurHash) {
+        this.blurHash = blurHash;
+        return this;
+    }
+
+}
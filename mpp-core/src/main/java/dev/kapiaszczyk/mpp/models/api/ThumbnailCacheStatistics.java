@@ -0,0 +1,66 @@
+package dev.kapiaszczyk.mpp.models.api;
+
+/**
+ * Represents the state of the in-process thumbnail cache
+ * visible for the administrator of the system.
+ */
+public class ThumbnailCacheStatistics {
+
+    long capacityBytes;
+    // Space taken up by cached thumbnails, rounded up to whole blocks
+    long usedBytes;
+    long entries;
+    // Thumbnails requested more than once, kept in favour of the others
+    long protectedEntries;
+    long hits;
+    long misses;
+    long evictions;
+
+    public ThumbnailCacheStatistics() {
+    }
+
+    public ThumbnailCacheStatistics(long capacityBytes, long usedBytes, long entries, long protectedEntries,
+                                    long hits, long misses, long evictions) {
+        this.capacityBytes = capacityBytes;
+        this.usedBytes = usedBytes;
+        this.entries = entries;
+        this.protectedEntries = protectedEntries;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getEntries() {
+        return entries;
+    }
+
+    public long getProtectedEntries() {
+        return protectedEntries;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public double getHitRatio() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+}
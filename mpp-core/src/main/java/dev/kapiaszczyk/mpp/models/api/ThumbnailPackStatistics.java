@@ -0,0 +1,48 @@
+package dev.kapiaszczyk.mpp.models.api;
+
+/**
+ * Represents the state of the local thumbnail pack store
+ * visible for the administrator of the system.
+ */
+public class ThumbnailPackStatistics {
+
+    boolean enabled;
+    long packs;
+    long entries;
+    // Size of all packs, including deleted thumbnails
+    long bytes;
+    // Space taken up by deleted thumbnails until their packs are compacted
+    long deletedBytes;
+
+    public ThumbnailPackStatistics() {
+    }
+
+    public ThumbnailPackStatistics(boolean enabled, long packs, long entries, long bytes, long deletedBytes) {
+        this.enabled = enabled;
+        this.packs = packs;
+        this.entries = entries;
+        this.bytes = bytes;
+        this.deletedBytes = deletedBytes;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getPacks() {
+        return packs;
+    }
+
+    public long getEntries() {
+        return entries;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getDeletedBytes() {
+        return deletedBytes;
+    }
+
+}
@@ -0,0 +1,76 @@
+package dev.kapiaszczyk.mpp.models.database;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Represents the content of an uploaded file stored in a blob store, identified by its content hash.
+ * Photos with the same content share a single blob.
+ */
+@Document(collection = "blobs")
+public class Blob {
+
+    // Same as the ID of the file in the blob store
+    @Id
+    private String id;
+    // Missing for files uploaded before content hashing was introduced, unique among the blobs that have one
+    private String contentHash;
+    private long size;
+    private Date createdAt;
+    // Number of photos referencing the file, the file is deleted when it drops to zero
+    private long refCount;
+
+    public Blob() {
+    }
+
+    public Blob(String id, String contentHash, long size, Date createdAt, long refCount) {
+        this.id = id;
+        this.contentHash = contentHash;
+        this.size = size;
+        this.createdAt = createdAt;
+        this.refCount = refCount;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public Date getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Date createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public long getRefCount() {
+        return refCount;
+    }
+
+    public void setRefCount(long refCount) {
+        this.refCount = refCount;
+    }
+
+}
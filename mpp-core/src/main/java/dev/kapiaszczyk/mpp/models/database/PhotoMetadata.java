@@ -1,9 +1,12 @@
 package dev.kapiaszczyk.mpp.models.database;
 
+import dev.kapiaszczyk.mpp.models.ImagePreview;
+import dev.kapiaszczyk.mpp.models.ThumbnailStatus;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.util.Date;
+import java.util.Map;
 import java.util.Set;
 
 @Document(collection = "photos")
@@ -19,6 +22,12 @@ public class PhotoMetadata {
     private String gridFsId;
     private String albumId;
     private String thumbnailId;
+    private ThumbnailStatus thumbnailStatus;
+    private String contentHash;
+    // Rendition name and the ID of the rendition in GridFS
+    private Map<String, String> renditions = Map.of();
+    // Set together with the renditions
+    private ImagePreview preview;
 
     public String getId() {
         return id;
@@ -108,6 +117,38 @@ public class PhotoMetadata {
         this.thumbnailId = thumbnailId;
     }
 
+    public ThumbnailStatus getThumbnailStatus() {
+        return thumbnailStatus;
+    }
+
+    public void setThumbnailStatus(ThumbnailStatus thumbnailStatus) {
+        this.thumbnailStatus = thumbnailStatus;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public Map<String, String> getRenditions() {
+        return renditions;
+    }
+
+    public void setRenditions(Map<String, String> renditions) {
+        this.renditions = renditions;
+    }
+
+    public ImagePreview getPreview() {
+        return preview;
+    }
+
+    public void setPreview(ImagePreview preview) {
+        this.preview = preview;
+    }
+
     public PhotoMetadata filename(String filename) {
         this.filename = filename;
         return this;
@@ -158,4 +199,24 @@ public class PhotoMetadata {
         return this;
     }
 
+    public PhotoMetadata thumbnailStatus(ThumbnailStatus thumbnailStatus) {
+        this.thumbnailStatus = thumbnailStatus;
+        return this;
+    }
+
+    public PhotoMetadata contentHash(String contentHash) {
+        this.contentHash = contentHash;
+        return this;
+    }
+
+    public PhotoMetadata renditions(Map<String, String> renditions) {
+        this.renditions = renditions;
+        return this;
+    }
+
+    public PhotoMetadata preview(ImagePreview preview) {
+        this.preview = preview;
+        return this;
+    }
+
 }
@@ -0,0 +1,68 @@
+package dev.kapiaszczyk.mpp.models.database;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Represents the number and size of photos in the system, of a user or in an album,
+ * maintained incrementally as photos are added, moved and deleted.
+ */
+@Document(collection = "storage_counters")
+public class StorageCounter {
+
+    // "system", "user:<userId>" or "album:<albumId>"
+    @Id
+    private String id;
+    // Sum of the sizes of the photos, photos sharing a file are counted separately
+    private long bytes;
+    private long photos;
+    // Size of all stored files including renditions, only counted for the system
+    private long storedBytes;
+    private Date reconciledAt;
+
+    public StorageCounter() {
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    public long getPhotos() {
+        return photos;
+    }
+
+    public void setPhotos(long photos) {
+        this.photos = photos;
+    }
+
+    public long getStoredBytes() {
+        return storedBytes;
+    }
+
+    public void setStoredBytes(long storedBytes) {
+        this.storedBytes = storedBytes;
+    }
+
+    public Date getReconciledAt() {
+        return reconciledAt;
+    }
+
+    public void setReconciledAt(Date reconciledAt) {
+        this.reconciledAt = reconciledAt;
+    }
+
+}
@@ -0,0 +1,86 @@
+package dev.kapiaszczyk.mpp.models.database;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Represents a tag used by a user and the number of the user's photos with the tag,
+ * maintained incrementally as photos are tagged, duplicated and deleted.
+ */
+@Document(collection = "user_tags")
+public class UserTag {
+
+    // "<userId>:<tag>"
+    @Id
+    private String id;
+    private String userId;
+    private String tag;
+    private long count;
+    // When the tag was last given to a photo, the upload date of the newest photo with the tag once reconciled
+    private Date lastSeen;
+    // Photo last given the tag, null if it lost the tag or was deleted since
+    private String coverPhotoId;
+    private Date reconciledAt;
+
+    public UserTag() {
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public void setTag(String tag) {
+        this.tag = tag;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    public Date getLastSeen() {
+        return lastSeen;
+    }
+
+    public void setLastSeen(Date lastSeen) {
+        this.lastSeen = lastSeen;
+    }
+
+    public String getCoverPhotoId() {
+        return coverPhotoId;
+    }
+
+    public void setCoverPhotoId(String coverPhotoId) {
+        this.coverPhotoId = coverPhotoId;
+    }
+
+    public Date getReconciledAt() {
+        return reconciledAt;
+    }
+
+    public void setReconciledAt(Date reconciledAt) {
+        this.reconciledAt = reconciledAt;
+    }
+
+}
@@ -0,0 +1,13 @@
+package dev.kapiaszczyk.mpp.repositories;
+
+import dev.kapiaszczyk.mpp.models.database.Blob;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Interface representing operations performed on blobs.
+ */
+@Repository
+public interface BlobRepository extends MongoRepository<Blob, String> {
+
+}
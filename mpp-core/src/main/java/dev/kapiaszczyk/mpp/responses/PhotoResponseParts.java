@@ -1,25 +1,34 @@
 package dev.kapiaszczyk.mpp.responses;
 
-import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
 
 /**
  * Represents parts of a photo response in a ResponseEntity.
  */
 public class PhotoResponseParts {
 
-    private final InputStreamResource resource;
+    private final Resource resource;
     private final String filename;
     private final String contentType;
     private final long size;
+    // Strong validator of the file, stored files never change
+    private final String eTag;
+    private final long lastModified;
+    private final CacheControl cacheControl;
 
-    public PhotoResponseParts(InputStreamResource resource, String filename, String contentType, long size) {
+    public PhotoResponseParts(Resource resource, String filename, String contentType, long size, String eTag, long lastModified,
+                              CacheControl cacheControl) {
         this.resource = resource;
         this.filename = filename;
         this.contentType = contentType;
         this.size = size;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.cacheControl = cacheControl;
     }
 
-    public InputStreamResource getResource() {
+    public Resource getResource() {
         return resource;
     }
 
@@ -35,4 +44,16 @@ public class PhotoResponseParts {
         return size;
     }
 
+    public String getETag() {
+        return eTag;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public CacheControl getCacheControl() {
+        return cacheControl;
+    }
+
 }
@@ -0,0 +1,187 @@
+package dev.kapiaszczyk.mpp.services;
+
+import dev.kapiaszczyk.mpp.models.database.PhotoMetadata;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Service responsible for exporting albums as ZIP archives streamed straight to the client.
+ * <p>
+ * Photos are stored in the archive without compression, as they are compressed already. A stored entry needs
+ * its CRC before it is written, as readers streaming the archive could not find the end of the entry otherwise,
+ * so the entries are prepared ahead: a small pool reads the next files while the current one is written,
+ * computing their CRCs. Files up to a size are kept in memory until they are written, larger ones are read
+ * from the blob store a second time. Files in the original cache are read from there, but exports do not add
+ * files to it. At most a fixed number of entries is prepared ahead per export, so the memory used is bounded
+ * and nothing is written to disk.
+ */
+@Service
+public class AlbumExportService {
+
+    private static final Logger logger = LoggerFactory.getLogger(AlbumExportService.class);
+    /**
+     * Size up to which a prepared file is kept in memory until it is written.
+     */
+    private static final long MAX_BUFFERED_SIZE = 8 * 1024 * 1024;
+
+    @Autowired
+    private final BlobStorageService blobStorageService;
+    private final ExecutorService prefetchPool;
+    private final int prefetchDepth;
+
+    public AlbumExportService(BlobStorageService blobStorageService,
+                              @Value("${mpp-core.album-export.prefetch-threads}") int prefetchThreads,
+                              @Value("${mpp-core.album-export.prefetch-depth}") int prefetchDepth) {
+        this.blobStorageService = blobStorageService;
+        this.prefetchPool = Executors.newFixedThreadPool(prefetchThreads, new CustomizableThreadFactory("album-export-"));
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        prefetchPool.shutdownNow();
+    }
+
+    /**
+     * Write the photos as a ZIP archive. Photos whose files are missing are left out.
+     *
+     * @param photos       the photos to export
+     * @param outputStream the stream to write to, not closed
+     * @throws IOException if the archive could not be written, e.g. because the client went away
+     */
+    public void writeZip(List<PhotoMetadata> photos, OutputStream outputStream) throws IOException {
+        long start = System.nanoTime();
+        Deque<Future<PreparedEntry>> prepared = new ArrayDeque<>();
+        Iterator<PhotoMetadata> remaining = photos.iterator();
+        Set<String> entryNames = new HashSet<>();
+        int written = 0;
+        try {
+            ZipOutputStream zip = new ZipOutputStream(outputStream);
+            zip.setMethod(ZipOutputStream.STORED);
+            while (prepared.size() < prefetchDepth && remaining.hasNext()) {
+                prepared.add(prepare(remaining.next()));
+            }
+            while (!prepared.isEmpty()) {
+                PreparedEntry entry = await(prepared.removeFirst());
+                if (remaining.hasNext()) {
+                    prepared.add(prepare(remaining.next()));
+                }
+                if (entry != null) {
+                    write(zip, entry, uniqueName(entry.photo.getFilename(), entryNames));
+                    written++;
+                }
+            }
+            zip.finish();
+            zip.flush();
+        } finally {
+            // The client may have gone away, the files prepared ahead are no longer needed
+            prepared.forEach(entry -> entry.cancel(true));
+        }
+        logger.info("Exported {} of {} photos in {} ms", written, photos.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Read the file of a photo on the prefetch pool, computing its CRC.
+     */
+    private Future<PreparedEntry> prepare(PhotoMetadata photo) {
+        return prefetchPool.submit(() -> {
+            Resource file;
+            try {
+                // Only originals read by clients are copied into the original cache
+                file = blobStorageService.get(photo.getGridFsId());
+            } catch (FileNotFoundException e) {
+                logger.warn("File of photo with ID {} not found, leaving it out of the export", photo.getId());
+                return null;
+            }
+            long size = file.contentLength();
+            CRC32 crc = new CRC32();
+            if (size <= MAX_BUFFERED_SIZE) {
+                byte[] content;
+                try (InputStream inputStream = file.getInputStream()) {
+                    content = inputStream.readAllBytes();
+                }
+                crc.update(content);
+                return new PreparedEntry(photo, file, content.length, crc.getValue(), content);
+            }
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream inputStream = file.getInputStream()) {
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    crc.update(buffer, 0, read);
+                }
+            }
+            return new PreparedEntry(photo, file, size, crc.getValue(), null);
+        });
+    }
+
+    private static void write(ZipOutputStream zip, PreparedEntry entry, String name) throws IOException {
+        ZipEntry zipEntry = new ZipEntry(name);
+        zipEntry.setMethod(ZipEntry.STORED);
+        zipEntry.setSize(entry.size);
+        zipEntry.setCompressedSize(entry.size);
+        zipEntry.setCrc(entry.crc);
+        if (entry.photo.getUploadDate() != null) {
+            zipEntry.setTime(entry.photo.getUploadDate().getTime());
+        }
+        zip.putNextEntry(zipEntry);
+        try (InputStream inputStream = entry.content != null ? new ByteArrayInputStream(entry.content) : entry.file.getInputStream()) {
+            inputStream.transferTo(zip);
+        }
+        zip.closeEntry();
+    }
+
+    private static PreparedEntry await(Future<PreparedEntry> entry) throws IOException {
+        try {
+            return entry.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while preparing the export", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to read a photo for the export", e.getCause());
+        }
+    }
+
+    /**
+     * Name of an entry that does not clash with the entries written so far, e.g. "photo (2).jpg".
+     */
+    private static String uniqueName(String filename, Set<String> entryNames) {
+        String name = filename == null || filename.isBlank() ? "photo" : filename.replace('/', '_').replace('\\', '_');
+        int extensionStart = name.lastIndexOf('.');
+        String baseName = extensionStart > 0 ? name.substring(0, extensionStart) : name;
+        String extension = extensionStart > 0 ? name.substring(extensionStart) : "";
+        String unique = name;
+        for (int i = 2; !entryNames.add(unique); i++) {
+            unique = baseName + " (" + i + ")" + extension;
+        }
+        return unique;
+    }
+
+    private record PreparedEntry(PhotoMetadata photo, Resource file, long size, long crc, byte[] content) {
+    }
+
+}
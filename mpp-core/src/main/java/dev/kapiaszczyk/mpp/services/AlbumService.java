@@ -182,6 +182,16 @@ public class AlbumService {
         return albumRepository.findById(id);
     }
 
+    /**
+     * Get albums by their ids.
+     *
+     * @param ids ids of the albums
+     * @return albums that exist
+     */
+    public List<Album> findAllById(Collection<String> ids) {
+        return albumRepository.findAllById(ids);
+    }
+
     /**
      * Get all albums belonging to a user.
      *
@@ -0,0 +1,214 @@
+package dev.kapiaszczyk.mpp.services;
+
+import dev.kapiaszczyk.mpp.models.database.Blob;
+import dev.kapiaszczyk.mpp.models.database.PhotoMetadata;
+import dev.kapiaszczyk.mpp.repositories.BlobRepository;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.GroupOperation;
+import org.springframework.data.mongodb.core.aggregation.MergeOperation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.group;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.newAggregation;
+
+/**
+ * Service responsible for the content of uploaded files, which is stored once per content hash
+ * and shared by all photos with the same content.
+ * <p>
+ * Every blob counts the photos referencing its file. The count is changed atomically on upload,
+ * duplication and deletion, so deciding whether a file can be deleted never requires scanning the photos.
+ */
+@Service
+public class BlobService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlobService.class);
+    /**
+     * Version of the blobs created for files uploaded before reference counting, to be raised whenever
+     * they have to be created again.
+     */
+    private static final int BACKFILL_VERSION = 1;
+    private static final String VERSIONS_COLLECTION = "migration_versions";
+    private static final String BACKFILL_ID = "blobs";
+
+    @Autowired
+    private final BlobRepository blobRepository;
+    @Autowired
+    private final MongoTemplate mongoTemplate;
+
+    public BlobService(BlobRepository blobRepository, MongoTemplate mongoTemplate) {
+        this.blobRepository = blobRepository;
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @PostConstruct
+    public void initialize() {
+        Document applied = mongoTemplate.findById(BACKFILL_ID, Document.class, VERSIONS_COLLECTION);
+        if (applied != null && applied.getInteger("version", 0) >= BACKFILL_VERSION) {
+            return;
+        }
+        backfill();
+        mongoTemplate.save(new Document("_id", BACKFILL_ID)
+                .append("version", BACKFILL_VERSION)
+                .append("migratedAt", new Date()), VERSIONS_COLLECTION);
+    }
+
+    /**
+     * Add a reference to the blob with the given content.
+     * <p>
+     * Blobs whose last reference has been released are skipped, as their files are about to be deleted.
+     *
+     * @param contentHash the hash of the content
+     * @return the blob or empty if the content is not stored
+     */
+    public Optional<Blob> acquire(String contentHash) {
+        return Optional.ofNullable(mongoTemplate.findAndModify(
+                new Query(Criteria.where("contentHash").is(contentHash).and("refCount").gt(0)),
+                new Update().inc("refCount", 1),
+                FindAndModifyOptions.options().returnNew(true),
+                Blob.class));
+    }
+
+    /**
+     * Add a reference to the blob of a file, for a photo sharing the file of another photo.
+     * <p>
+     * Like in {@link #acquire}, blobs whose last reference has been released are skipped.
+     *
+     * @param gridFsId the ID of the file in GridFS
+     * @return true if the reference was added, false if the file is deleted or about to be
+     */
+    public boolean retain(String gridFsId) {
+        return mongoTemplate.updateFirst(new Query(Criteria.where("id").is(gridFsId).and("refCount").gt(0)),
+                new Update().inc("refCount", 1), Blob.class).getMatchedCount() > 0;
+    }
+
+    /**
+     * Register a file stored in GridFS as the blob for its content, with a single reference.
+     * <p>
+     * If another blob with the same content was registered in the meantime, the file is registered
+     * without the hash, so that it is still reference counted but not shared with further uploads.
+     *
+     * @param blob the blob
+     */
+    public void register(Blob blob) {
+        try {
+            mongoTemplate.insert(blob);
+        } catch (DuplicateKeyException e) {
+            logger.info("Content {} was registered concurrently, file {} is stored separately", blob.getContentHash(), blob.getId());
+            blob.setContentHash(null);
+            mongoTemplate.insert(blob);
+        }
+    }
+
+    /**
+     * Release references to files in bulk and remove the blobs that are no longer referenced.
+     *
+     * @param references the number of released references by the IDs of the files in GridFS
+     * @return the IDs of the files whose blobs were removed, which can be deleted
+     */
+    public List<String> release(Map<String, Integer> references) {
+        if (references.isEmpty()) {
+            return List.of();
+        }
+        BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Blob.class);
+        references.forEach((gridFsId, count) ->
+                operations.updateOne(new Query(Criteria.where("id").is(gridFsId)), new Update().inc("refCount", -count)));
+        operations.execute();
+
+        Query unreferenced = new Query(Criteria.where("id").in(references.keySet()).and("refCount").lte(0));
+        unreferenced.fields().include("id");
+        List<String> removedIds = new ArrayList<>();
+        for (Blob blob : mongoTemplate.find(unreferenced, Blob.class)) {
+            // A blob referenced again in the meantime is kept and its file must not be deleted,
+            // so each blob is removed only if it is still unreferenced
+            Query stillUnreferenced = new Query(Criteria.where("id").is(blob.getId()).and("refCount").lte(0));
+            if (mongoTemplate.findAndRemove(stillUnreferenced, Blob.class) != null) {
+                removedIds.add(blob.getId());
+            }
+        }
+        return removedIds;
+    }
+
+    /**
+     * Remove the blobs of files deleted by the orphan collector. Blobs still referenced are kept.
+     *
+     * @param gridFsIds the IDs of the deleted files in GridFS
+     */
+    public void removeUnreferenced(Collection<String> gridFsIds) {
+        mongoTemplate.remove(new Query(Criteria.where("id").in(gridFsIds).and("refCount").lte(0)), Blob.class);
+    }
+
+    /**
+     * Recount the references of all blobs from the photos, correcting counts that drifted,
+     * e.g. because the application stopped between deleting photos and releasing their files.
+     */
+    public void recountReferences() {
+        // The hashes of existing blobs are kept, a file stored separately must not take over the hash of another
+        countReferences(MergeOperation.WhenDocumentsMatch.mergeDocuments(), false);
+        logger.info("Recounted references of {} blobs", blobRepository.count());
+    }
+
+    /**
+     * Create the blobs of files uploaded before reference counting was introduced. Blobs of files whose photos
+     * have a content hash get the hash, so that further uploads of the same content share the file.
+     */
+    private void backfill() {
+        long start = System.nanoTime();
+        try {
+            countReferences(MergeOperation.WhenDocumentsMatch.keepExistingDocument(), true);
+        } catch (DuplicateKeyException e) {
+            // Files with the same content were stored more than once, the blobs not created so far get no hash
+            logger.warn("Blobs of files with the same content found, creating the remaining blobs without hashes");
+            countReferences(MergeOperation.WhenDocumentsMatch.keepExistingDocument(), false);
+        }
+        logger.info("Created blobs of existing files in {} ms", (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Count the photos referencing each file and merge the counts into the blobs.
+     *
+     * @param whenMatched     what to do with blobs that already exist
+     * @param withContentHash whether the content hash of the photos is merged into the blobs
+     */
+    private void countReferences(MergeOperation.WhenDocumentsMatch whenMatched, boolean withContentHash) {
+        GroupOperation references = group("gridFsId").count().as("refCount").first("size").as("size").first("uploadDate").as("createdAt");
+        Document blob = new Document("_id", new Document("$toObjectId", "$_id"));
+        if (withContentHash) {
+            references = references.first("contentHash").as("contentHash");
+            // Photos uploaded before content hashing have no hash, their blobs are left out of the sparse index
+            blob.append("contentHash", new Document("$ifNull", List.of("$contentHash", "$$REMOVE")));
+        }
+        Aggregation aggregation = newAggregation(
+                match(Criteria.where("gridFsId").ne(null)),
+                references,
+                // Blobs are keyed by the ObjectId of the file, photos reference it as a string
+                context -> new Document("$set", blob),
+                Aggregation.merge()
+                        .intoCollection(mongoTemplate.getCollectionName(Blob.class))
+                        .on("_id")
+                        .whenMatched(whenMatched)
+                        .whenDocumentsDontMatch(MergeOperation.WhenDocumentsDontMatch.insertNewDocument())
+                        .build());
+        mongoTemplate.aggregate(aggregation, PhotoMetadata.class, Document.class);
+    }
+
+}
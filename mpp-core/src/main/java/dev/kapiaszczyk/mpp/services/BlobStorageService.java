@@ -0,0 +1,251 @@
+package dev.kapiaszczyk.mpp.services;
+
+import dev.kapiaszczyk.mpp.models.api.BlobMigrationReport;
+import dev.kapiaszczyk.mpp.models.database.Blob;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.io.Resource;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Service responsible for the blob stores holding the originals of photos.
+ * <p>
+ * New blobs are stored in the primary store. A blob is read from whichever store holds it, so blobs can be
+ * moved between the stores while the application is running. The local store is checked first, as it only
+ * takes a lookup on the disk, and a blob being moved is found in the store it is moved from until it is
+ * complete in the other one. Originals read from GridFS go through the original cache on the local disk.
+ */
+@Service
+public class BlobStorageService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlobStorageService.class);
+
+    @Autowired
+    private final MongoTemplate mongoTemplate;
+    @Autowired
+    private final OriginalCache originalCache;
+    @Autowired
+    private final FileSystemBlobStore fileSystemBlobStore;
+    @Autowired
+    private final GridFsBlobStore gridFsBlobStore;
+    // In the order in which blobs are looked up
+    private final List<BlobStore> stores;
+    private final BlobStore primary;
+    /**
+     * Migrations are not run concurrently.
+     */
+    private final ReentrantLock migrationLock = new ReentrantLock();
+
+    public BlobStorageService(MongoTemplate mongoTemplate,
+                              FileSystemBlobStore fileSystemBlobStore,
+                              GridFsBlobStore gridFsBlobStore,
+                              OriginalCache originalCache,
+                              @Value("${mpp-core.blob-store.primary}") String primary) {
+        this.mongoTemplate = mongoTemplate;
+        this.originalCache = originalCache;
+        this.fileSystemBlobStore = fileSystemBlobStore;
+        this.gridFsBlobStore = gridFsBlobStore;
+        this.stores = List.of(fileSystemBlobStore, gridFsBlobStore);
+        this.primary = getStore(primary)
+                .orElseThrow(() -> new IllegalStateException("The primary blob store " + primary + " is not known or not configured"));
+        logger.info("New blobs are stored in the {} blob store", this.primary.getName());
+    }
+
+    /**
+     * Store a new blob in the primary store.
+     *
+     * @param filename    the filename of the uploaded photo
+     * @param contentType the content type of the uploaded photo
+     * @param content     the content, not closed
+     * @return the ID of the blob
+     * @throws IOException if the blob could not be stored
+     */
+    public String put(String filename, String contentType, InputStream content) throws IOException {
+        String id = new ObjectId().toHexString();
+        primary.put(id, filename, contentType, content);
+        return id;
+    }
+
+    /**
+     * Copy a newly uploaded blob into the original cache, if it was stored in GridFS.
+     *
+     * @param id      the ID of the blob
+     * @param content the uploaded content
+     */
+    public void cacheUploaded(String id, InputStreamSource content) {
+        if (primary == gridFsBlobStore && originalCache.isEnabled()) {
+            gridFsBlobStore.get(id).ifPresent(stored -> originalCache.cacheUploaded(id, stored, content));
+        }
+    }
+
+    /**
+     * Get a blob from the store holding it, or from the original cache if it is cached. Nothing is copied
+     * to the cache, so this is used for files read once, and for renditions stored next to the originals.
+     *
+     * @param id the ID of the blob
+     * @return the blob, nothing is read until its content is
+     * @throws FileNotFoundException if no store holds the blob
+     */
+    public Resource get(String id) throws FileNotFoundException {
+        return get(id, false);
+    }
+
+    /**
+     * Get the original of a photo from the store holding it, or from the original cache if it is cached.
+     * An original in GridFS is copied to the cache in the background once its content is read.
+     *
+     * @param id the ID of the blob
+     * @return the blob, nothing is read until its content is
+     * @throws FileNotFoundException if no store holds the blob
+     */
+    public Resource getOriginal(String id) throws FileNotFoundException {
+        return get(id, true);
+    }
+
+    private Resource get(String id, boolean original) throws FileNotFoundException {
+        if (fileSystemBlobStore.isEnabled()) {
+            Optional<Resource> blob = fileSystemBlobStore.get(id);
+            if (blob.isPresent()) {
+                return blob.get();
+            }
+        }
+        Optional<Resource> cached = originalCache.get(id);
+        if (cached.isPresent()) {
+            return cached.get();
+        }
+        Optional<Resource> blob = gridFsBlobStore.get(id);
+        if (blob.isPresent()) {
+            return original ? originalCache.readThrough(id, blob.get()) : blob.get();
+        }
+        logger.error("Blob with ID {} not found in any blob store", id);
+        throw new FileNotFoundException("Photo not found");
+    }
+
+    /**
+     * Delete blobs from all stores.
+     *
+     * @param ids the IDs of the blobs
+     * @return the size of the deleted blobs
+     */
+    public long delete(Collection<String> ids) {
+        originalCache.invalidate(ids);
+        return stores.stream().filter(BlobStore::isEnabled).mapToLong(store -> store.delete(ids)).sum();
+    }
+
+    /**
+     * Get the size of all blobs in all stores.
+     *
+     * @return the size in bytes
+     */
+    public long getTotalSize() {
+        return stores.stream().filter(BlobStore::isEnabled).mapToLong(BlobStore::getTotalSize).sum();
+    }
+
+    /**
+     * Move blobs from the other store to the given one. A blob is copied, compared by size and only then
+     * deleted from the store it was moved from, so it can be read throughout. Blobs that fail to be moved
+     * stay where they are.
+     *
+     * @param target the name of the store to move the blobs to
+     * @param limit  the maximum number of blobs to move in this run
+     * @return the report of the run, or null if another migration is already running
+     * @throws IllegalArgumentException if the store is not known or not configured
+     */
+    public BlobMigrationReport migrate(String target, int limit) {
+        BlobStore targetStore = getStore(target)
+                .orElseThrow(() -> new IllegalArgumentException("The blob store " + target + " is not known or not configured"));
+        BlobStore sourceStore = stores.stream().filter(store -> store != targetStore).findFirst().orElseThrow();
+        if (!sourceStore.isEnabled()) {
+            throw new IllegalArgumentException("The blob store " + sourceStore.getName() + " is not configured");
+        }
+        if (!migrationLock.tryLock()) {
+            logger.info("Blob migration is already running");
+            return null;
+        }
+        try {
+            return migrate(sourceStore, targetStore, limit);
+        } finally {
+            migrationLock.unlock();
+        }
+    }
+
+    private BlobMigrationReport migrate(BlobStore source, BlobStore target, int limit) {
+        long start = System.nanoTime();
+        long scanned = 0;
+        long moved = 0;
+        long movedBytes = 0;
+        long failed = 0;
+
+        Query referencedBlobs = new Query(Criteria.where("refCount").gt(0)).with(Sort.by("id"));
+        try (Stream<Blob> blobs = mongoTemplate.stream(referencedBlobs, Blob.class)) {
+            Iterator<Blob> iterator = blobs.iterator();
+            while (moved + failed < limit && iterator.hasNext()) {
+                String id = iterator.next().getId();
+                scanned++;
+                Optional<Resource> blob = source.get(id);
+                if (blob.isEmpty()) {
+                    continue;
+                }
+                try {
+                    movedBytes += move(id, blob.get(), source, target);
+                    moved++;
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Failed to move blob with ID {} from the {} to the {} blob store", id, source.getName(), target.getName(), e);
+                    failed++;
+                }
+            }
+        }
+        long durationMillis = (System.nanoTime() - start) / 1_000_000;
+        logger.info("Moved {} blobs ({} bytes) from the {} to the {} blob store in {} ms, {} failed",
+                moved, movedBytes, source.getName(), target.getName(), durationMillis, failed);
+        return new BlobMigrationReport(source.getName(), target.getName(), scanned, moved, movedBytes, failed, durationMillis);
+    }
+
+    /**
+     * Copy a blob to the target store and delete it from the source store.
+     */
+    private long move(String id, Resource blob, BlobStore source, BlobStore target) throws IOException {
+        long size = blob.contentLength();
+        // A copy left by an interrupted run is complete, as blobs only become visible once they are
+        if (target.get(id).isEmpty()) {
+            try (InputStream content = blob.getInputStream()) {
+                target.put(id, blob.getFilename(), null, content);
+            }
+        }
+        Resource copy = target.get(id).orElseThrow(() -> new IOException("Blob not found after copying"));
+        if (copy.contentLength() != size) {
+            target.delete(List.of(id));
+            throw new IOException("Copied " + copy.contentLength() + " of " + size + " bytes");
+        }
+        if (!mongoTemplate.exists(new Query(Criteria.where("id").is(id)), Blob.class)) {
+            // Released while it was copied, the copy may have been missed by the deletion
+            target.delete(List.of(id));
+        }
+        source.delete(List.of(id));
+        originalCache.invalidate(List.of(id));
+        return size;
+    }
+
+    private Optional<BlobStore> getStore(String name) {
+        return stores.stream().filter(store -> store.getName().equals(name) && store.isEnabled()).findFirst();
+    }
+
+}
@@ -0,0 +1,69 @@
+package dev.kapiaszczyk.mpp.services;
+
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Optional;
+
+/**
+ * Backend storing the originals of uploaded photos.
+ * <p>
+ * Blobs are identified by an ObjectId in hexadecimal form chosen when the photo is uploaded, the ID is
+ * kept as the gridFsId of the photos whichever backend stores the blob. A blob is never modified
+ * after it is stored.
+ */
+public interface BlobStore {
+
+    /**
+     * Get the name of the backend, as used in the configuration.
+     *
+     * @return the name
+     */
+    String getName();
+
+    /**
+     * Check if the backend is configured and can be used.
+     *
+     * @return true if blobs can be stored
+     */
+    boolean isEnabled();
+
+    /**
+     * Store a blob. It is not visible to readers until it is stored completely.
+     *
+     * @param id          the ID of the blob
+     * @param filename    the filename of the uploaded photo
+     * @param contentType the content type of the uploaded photo
+     * @param content     the content, not closed
+     * @throws IOException if the blob could not be stored
+     */
+    void put(String id, String filename, String contentType, InputStream content) throws IOException;
+
+    /**
+     * Get a blob as a resource that can be read several times. Nothing is read until its content is,
+     * so the resource also serves to look up the size and the time the blob was stored. Skipping
+     * in the content does not read the skipped bytes, which is what byte ranges rely on.
+     *
+     * @param id the ID of the blob
+     * @return the blob, or empty if it is not stored in this backend
+     */
+    Optional<Resource> get(String id);
+
+    /**
+     * Delete blobs. IDs of blobs not stored in this backend are ignored.
+     *
+     * @param ids the IDs of the blobs
+     * @return the size of the deleted blobs
+     */
+    long delete(Collection<String> ids);
+
+    /**
+     * Get the size of all blobs stored in this backend.
+     *
+     * @return the size in bytes
+     */
+    long getTotalSize();
+
+}
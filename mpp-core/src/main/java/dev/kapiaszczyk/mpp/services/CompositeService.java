@@ -3,29 +3,45 @@ package dev.kapiaszczyk.mpp.services;
 import dev.kapiaszczyk.mpp.constants.Constants;
 import dev.kapiaszczyk.mpp.errors.OperationError;
 import dev.kapiaszczyk.mpp.models.AlbumAccessRoles;
+import dev.kapiaszczyk.mpp.models.PhotoSort;
+import dev.kapiaszczyk.mpp.models.RenderFit;
+import dev.kapiaszczyk.mpp.models.RenderSpec;
+import dev.kapiaszczyk.mpp.models.ThumbnailStatus;
 import dev.kapiaszczyk.mpp.models.api.AlbumInformation;
 import dev.kapiaszczyk.mpp.models.api.PhotoGroupedByAlbum;
+import dev.kapiaszczyk.mpp.models.api.PhotoPage;
+import dev.kapiaszczyk.mpp.models.api.PhotoSummary;
 import dev.kapiaszczyk.mpp.models.api.SharedAlbumInformation;
 import dev.kapiaszczyk.mpp.models.api.SharedUsersInfo;
 import dev.kapiaszczyk.mpp.models.database.Album;
 import dev.kapiaszczyk.mpp.models.database.PhotoMetadata;
 import dev.kapiaszczyk.mpp.models.database.User;
-import dev.kapiaszczyk.mpp.responses.PhotoDownloadResponse;
+import dev.kapiaszczyk.mpp.models.database.UserTag;
 import dev.kapiaszczyk.mpp.responses.PhotoResponseParts;
 import dev.kapiaszczyk.mpp.util.Either;
+import dev.kapiaszczyk.mpp.util.PageCursor;
 import jakarta.validation.constraints.NotBlank;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
 
 import static dev.kapiaszczyk.mpp.errors.GenericErrors.*;
@@ -37,6 +53,16 @@ import static dev.kapiaszczyk.mpp.errors.GenericErrors.*;
 public class CompositeService {
 
     private static final Logger logger = LoggerFactory.getLogger(CompositeService.class);
+    private static final int THUMBNAIL_RETRY_AFTER_SECONDS = 2;
+    /**
+     * Files in GridFS and derivatives rendered from them never change, so they can be cached for good.
+     * Private, as they are only served to authorized users.
+     */
+    private static final CacheControl IMMUTABLE = CacheControl.maxAge(Duration.ofDays(365)).cachePrivate().immutable();
+    /**
+     * A response that can change later, e.g. the original served until the requested rendition is generated.
+     */
+    private static final CacheControl REVALIDATE = CacheControl.noCache().cachePrivate();
 
     @Autowired
     private final PhotoService photoService;
@@ -47,10 +73,27 @@ public class CompositeService {
     @Autowired
     private final PermissionsService permissionsService;
 
-    public CompositeService(PhotoService photoService, AlbumService albumService, PermissionsService permissionsService) {
+    @Autowired
+    private final DerivativeService derivativeService;
+
+    @Autowired
+    private final AlbumExportService albumExportService;
+
+    @Autowired
+    private final ThumbnailBatchService thumbnailBatchService;
+
+    @Autowired
+    private final UserTagService userTagService;
+
+    public CompositeService(PhotoService photoService, AlbumService albumService, PermissionsService permissionsService, DerivativeService derivativeService,
+                            AlbumExportService albumExportService, ThumbnailBatchService thumbnailBatchService, UserTagService userTagService) {
         this.photoService = photoService;
         this.albumService = albumService;
         this.permissionsService = permissionsService;
+        this.derivativeService = derivativeService;
+        this.albumExportService = albumExportService;
+        this.thumbnailBatchService = thumbnailBatchService;
+        this.userTagService = userTagService;
     }
 
     /**
@@ -87,16 +130,22 @@ public class CompositeService {
     }
 
     /**
-     * Return the photo with the specified id
+     * Return the photo with the specified id, or one of its renditions.
+     * The original is returned if the rendition has not been generated yet.
      *
-     * @param photoId The id of the photo to download
+     * @param photoId   The id of the photo to download
+     * @param rendition The name of the rendition to download, or null for the original
      * @return The photo
      */
-    public Either<OperationError, PhotoResponseParts> downloadPhoto(String photoId) {
+    public Either<OperationError, PhotoResponseParts> downloadPhoto(String photoId, String rendition) {
         if (photoIdIsInvalid(photoId)) {
             return Either.ofLeft(OperationError.badRequest("Invalid photo ID"));
         }
 
+        if (rendition != null && !photoService.isRenditionSupported(rendition)) {
+            return Either.ofLeft(OperationError.badRequest(RENDITION_NOT_SUPPORTED));
+        }
+
         Optional<PhotoMetadata> metadata = this.photoService.getPhotoById(photoId);
 
         if (metadata.isEmpty()) {
@@ -110,16 +159,14 @@ public class CompositeService {
         }
 
         try {
-            PhotoDownloadResponse photo = this.photoService.downloadPhoto(metadata.get().getGridFsId());
-
-            String filename = photo.getMetadata().getFilename();
-            long size = photo.getMetadata().getLength();
-            InputStreamResource resource = new InputStreamResource(photo.getFile());
-            String contentType = determineContentType(filename);
-
-            PhotoResponseParts response = new PhotoResponseParts(resource, filename, contentType, size);
-
-            return Either.ofRight(response);
+            String renditionId = rendition != null ? metadata.get().getRenditions().get(rendition) : null;
+            String fileId = renditionId != null ? renditionId : metadata.get().getGridFsId();
+            // Until the rendition is generated, the original is served under its URL
+            CacheControl cacheControl = rendition != null && renditionId == null ? REVALIDATE : IMMUTABLE;
+            // The blob of the original may be shared with photos uploaded under other names
+            String filename = renditionId != null ? null : metadata.get().getFilename();
+            Resource resource = renditionId != null ? this.photoService.getFileResource(fileId) : this.photoService.getOriginalResource(fileId);
+            return Either.ofRight(toResponseParts(fileId, filename, resource, cacheControl));
         } catch (Exception e) {
             return Either.ofLeft(OperationError.internalServerError(e.getMessage()));
         }
@@ -128,10 +175,14 @@ public class CompositeService {
     /**
      * Download the thumbnail of the photo with the specified id
      *
+     * <p>
+     * Requests revalidating a cached thumbnail are answered with 304 before the thumbnail is looked up in GridFS.
+     *
      * @param photoId The id of the photo
+     * @param request The request, for its conditional headers
      * @return The thumbnail
      */
-    public Either<OperationError, ResponseEntity<?>> downloadThumbnail(String photoId) {
+    public Either<OperationError, ResponseEntity<?>> downloadThumbnail(String photoId, WebRequest request) {
         if (photoIdIsInvalid(photoId)) {
             return Either.ofLeft(OperationError.badRequest("Invalid photo ID"));
         }
@@ -143,22 +194,142 @@ public class CompositeService {
                 return Either.ofLeft(OperationError.notFound(PHOTO_NOT_FOUND));
             }
 
-            PhotoDownloadResponse photo = this.photoService.downloadThumbnail(metadata.get().getThumbnailId());
+            if (metadata.get().getThumbnailId() == null) {
+                return thumbnailNotReady(metadata.get());
+            }
 
-            String filename = photo.getMetadata().getFilename();
-            long size = photo.getMetadata().getLength();
-            InputStreamResource resource = new InputStreamResource(photo.getFile());
+            String eTag = toETag(metadata.get().getThumbnailId());
+            if (request.checkNotModified(eTag)) {
+                return Either.ofRight(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).cacheControl(IMMUTABLE).build());
+            }
 
+            Resource thumbnail = this.photoService.getThumbnail(metadata.get().getThumbnailId());
+            String filename = thumbnail.getFilename();
             String contentType = determineContentType(filename);
 
             HttpHeaders headers = new HttpHeaders();
             headers.setContentType(MediaType.parseMediaType(contentType));
             headers.setContentDispositionFormData("attachment", filename);
-            headers.setContentLength(size);
+            headers.setContentLength(thumbnail.contentLength());
+            headers.setETag(eTag);
+            headers.setLastModified(thumbnail.lastModified());
+            headers.setCacheControl(IMMUTABLE);
 
+            // Streamed from where it is stored, cached thumbnails are not copied to the heap first
             return Either.ofRight(ResponseEntity.ok()
                     .headers(headers)
-                    .body(resource));
+                    .body(thumbnail));
+        } catch (Exception e) {
+            return Either.ofLeft(OperationError.internalServerError(e.getMessage()));
+        }
+    }
+
+    /**
+     * Download the thumbnails of many photos at once, as a multipart/mixed response with a part for each photo.
+     * <p>
+     * The metadata of the photos and their albums is looked up in a single query each, and the permissions are
+     * checked once per album. Photos that cannot be answered with their thumbnail get a part with the status they
+     * would have been answered with on their own.
+     *
+     * @param photoIds The ids of the photos
+     * @return The response streaming the thumbnails
+     */
+    public Either<OperationError, ResponseEntity<?>> downloadThumbnails(List<String> photoIds) {
+        if (photoIds == null || photoIds.isEmpty()) {
+            return Either.ofLeft(OperationError.badRequest("No photo IDs"));
+        }
+        Set<String> requested = new LinkedHashSet<>(photoIds);
+        if (requested.size() > thumbnailBatchService.getMaxPhotos()) {
+            return Either.ofLeft(OperationError.badRequest("At most " + thumbnailBatchService.getMaxPhotos() + " photos can be requested at once"));
+        }
+
+        Map<String, PhotoMetadata> photos = new HashMap<>();
+        this.photoService.getPhotosByIds(requested.stream().filter(id -> !photoIdIsInvalid(id)).toList())
+                .forEach(photo -> photos.put(photo.getId(), photo));
+        Set<String> albumIds = new HashSet<>();
+        photos.values().forEach(photo -> albumIds.add(photo.getAlbumId()));
+        String userId = permissionsService.getUserFromCtx().getId();
+        Set<String> viewableAlbumIds = new HashSet<>();
+        for (Album album : albumService.findAllById(albumIds)) {
+            if (permissionsService.isOwnerAdminOrEditorOrViewer(album, userId)) {
+                viewableAlbumIds.add(album.getId());
+            }
+        }
+
+        Map<String, Either<OperationError, String>> thumbnails = new LinkedHashMap<>();
+        for (String photoId : requested) {
+            PhotoMetadata photo = photos.get(photoId);
+            if (photoIdIsInvalid(photoId)) {
+                thumbnails.put(photoId, Either.ofLeft(OperationError.badRequest("Invalid photo ID")));
+            } else if (photo == null) {
+                thumbnails.put(photoId, Either.ofLeft(OperationError.notFound(PHOTO_NOT_FOUND)));
+            } else if (!viewableAlbumIds.contains(photo.getAlbumId())) {
+                thumbnails.put(photoId, Either.ofLeft(OperationError.forbidden(NO_PERMISSION_TO_DOWNLOAD_PHOTO)));
+            } else if (photo.getThumbnailId() == null) {
+                thumbnails.put(photoId, Either.ofLeft(photo.getThumbnailStatus() == ThumbnailStatus.FAILED
+                        ? OperationError.notFound(THUMBNAIL_NOT_AVAILABLE)
+                        : new OperationError().httpStatusCode(HttpStatus.ACCEPTED).message(THUMBNAIL_PENDING)));
+            } else {
+                thumbnails.put(photoId, Either.ofRight(photo.getThumbnailId()));
+            }
+        }
+
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        StreamingResponseBody body = outputStream -> thumbnailBatchService.writeMultipart(thumbnails, boundary, outputStream);
+        return Either.ofRight(ResponseEntity.ok()
+                .contentType(new MediaType("multipart", "mixed", Map.of("boundary", boundary)))
+                .cacheControl(CacheControl.noStore())
+                .body(body));
+    }
+
+    /**
+     * Render the photo with the specified id in the requested dimensions and format.
+     * Rendered photos are cached, so repeated requests with the same parameters are not rendered again.
+     *
+     * @param photoId The id of the photo
+     * @param width   The requested width, or null if not constrained
+     * @param height  The requested height, or null if not constrained
+     * @param fit     How the photo is fitted into the dimensions - contain (default) or cover
+     * @param format  The format of the rendered photo - jpg (default) or png
+     * @param request The request, for its conditional headers
+     * @return The rendered photo
+     */
+    public Either<OperationError, ResponseEntity<?>> renderPhoto(String photoId, Integer width, Integer height, String fit, String format, WebRequest request) {
+        if (photoIdIsInvalid(photoId)) {
+            return Either.ofLeft(OperationError.badRequest("Invalid photo ID"));
+        }
+
+        Optional<RenderSpec> spec = parseRenderSpec(width, height, fit, format);
+        if (spec.isEmpty()) {
+            return Either.ofLeft(OperationError.badRequest(INVALID_RENDER_PARAMETERS));
+        }
+
+        Optional<PhotoMetadata> metadata = this.photoService.getPhotoById(photoId);
+        if (metadata.isEmpty()) {
+            return Either.ofLeft(OperationError.notFound(PHOTO_NOT_FOUND));
+        }
+
+        Album album = albumService.findById(metadata.get().getAlbumId()).orElseThrow(() -> new IllegalArgumentException(NO_SUCH_ALBUM_EXISTS));
+        if (!this.permissionsService.isOwnerAdminOrEditorOrViewer(album)) {
+            return Either.ofLeft(OperationError.forbidden(NO_PERMISSION_TO_DOWNLOAD_PHOTO));
+        }
+
+        // A derivative is identified by the file it is rendered from and the render parameters
+        String eTag = toETag(metadata.get().getGridFsId() + "/" + spec.get().getCacheKey());
+        if (request.checkNotModified(eTag)) {
+            return Either.ofRight(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).cacheControl(IMMUTABLE).build());
+        }
+
+        try {
+            byte[] derivative = derivativeService.getDerivative(metadata.get(), spec.get());
+            return Either.ofRight(ResponseEntity.ok()
+                    .contentType(MediaType.parseMediaType(spec.get().getContentType()))
+                    .contentLength(derivative.length)
+                    .eTag(eTag)
+                    .cacheControl(IMMUTABLE)
+                    .body(derivative));
+        } catch (ImageMemoryGovernor.MemoryUnavailableException e) {
+            return Either.ofLeft(OperationError.serviceUnavailable(RENDERING_UNAVAILABLE));
         } catch (Exception e) {
             return Either.ofLeft(OperationError.internalServerError(e.getMessage()));
         }
@@ -183,32 +354,77 @@ public class CompositeService {
                 return Either.ofLeft(OperationError.notFound(PHOTO_NOT_FOUND));
             }
 
-            PhotoDownloadResponse photo = this.photoService.downloadPhoto(metadata.get().getGridFsId());
-
-            String filename = photo.getMetadata().getFilename();
-            long size = photo.getMetadata().getLength();
-            InputStreamResource resource = new InputStreamResource(photo.getFile());
-            String contentType = determineContentType(filename);
-            PhotoResponseParts response = new PhotoResponseParts(resource, filename, contentType, size);
-
-            return Either.ofRight(response);
+            return Either.ofRight(toResponseParts(metadata.get().getGridFsId(), metadata.get().getFilename(),
+                    this.photoService.getOriginalResource(metadata.get().getGridFsId()), IMMUTABLE));
         } catch (Exception e) {
             return Either.ofLeft(OperationError.internalServerError(e.getMessage()));
         }
     }
 
     /**
-     * Get metadata of all photos in the specified album
+     * Response parts of a stored file, served under the given filename or under the stored one if it is null.
+     */
+    private PhotoResponseParts toResponseParts(String fileId, String filename, Resource resource, CacheControl cacheControl) throws IOException {
+        if (filename == null) {
+            filename = resource.getFilename();
+        }
+        return new PhotoResponseParts(resource, filename, determineContentType(filename), resource.contentLength(),
+                toETag(fileId), resource.lastModified(), cacheControl);
+    }
+
+    /**
+     * Strong entity tag of a stored file or a derivative of it, identified by values that never change.
+     */
+    private static String toETag(String id) {
+        return "\"" + id + "\"";
+    }
+
+    /**
+     * Get a page of the metadata of the photos in the specified album
      *
      * @param albumId The id of the album
-     * @return The metadata of the photos
+     * @param sort    The field to sort by, uploadDate if null
+     * @param order   asc or desc, asc if null
+     * @param cursor  The cursor returned with the previous page, or null for the first page
+     * @param limit   The number of photos on the page, or null for the default
+     * @param fields  The fields of the photos to return, or null for all of them
+     * @return The page of the metadata of the photos
      */
-    public Either<String, List<PhotoMetadata>> getMetadataOfPhotosInAlbum(String albumId) {
-        Album album = albumService.findById(albumId).orElseThrow(() -> new IllegalArgumentException(NO_SUCH_ALBUM_EXISTS));
-        if (!this.permissionsService.isOwnerAdminOrEditorOrViewer(album)) {
-            return Either.ofLeft(NO_PERMISSION_TO_VIEW_PHOTO);
+    public Either<OperationError, PhotoPage> getMetadataOfPhotosInAlbum(String albumId, String sort, String order, String cursor, Integer limit,
+                                                                         Set<String> fields) {
+        Optional<PhotoSort> photoSort = sort == null ? Optional.of(PhotoSort.UPLOAD_DATE) : PhotoSort.fromField(sort);
+        if (photoSort.isEmpty()) {
+            return Either.ofLeft(OperationError.badRequest("Photos can be sorted by uploadDate, filename or size"));
+        }
+        if (order != null && !order.equals("asc") && !order.equals("desc")) {
+            return Either.ofLeft(OperationError.badRequest("Order must be asc or desc"));
+        }
+        boolean ascending = !"desc".equals(order);
+        if (limit != null && limit < 1) {
+            return Either.ofLeft(OperationError.badRequest("Limit must be positive"));
+        }
+        if (summaryFieldsAreInvalid(fields)) {
+            return Either.ofLeft(OperationError.badRequest(UNKNOWN_PHOTO_FIELD));
+        }
+        PageCursor pageCursor = null;
+        if (cursor != null) {
+            pageCursor = PageCursor.decode(cursor)
+                    .filter(decoded -> decoded.getField().equals(photoSort.get().getField()) && decoded.isAscending() == ascending
+                            && photoSort.get().isValidValue(decoded.getValue()))
+                    .orElse(null);
+            if (pageCursor == null) {
+                return Either.ofLeft(OperationError.badRequest("Invalid cursor"));
+            }
+        }
+
+        Optional<Album> album = albumService.findById(albumId);
+        if (album.isEmpty()) {
+            return Either.ofLeft(OperationError.notFound(NO_SUCH_ALBUM_EXISTS));
+        }
+        if (!this.permissionsService.isOwnerAdminOrEditorOrViewer(album.get())) {
+            return Either.ofLeft(OperationError.forbidden(NO_PERMISSION_TO_VIEW_PHOTO));
         }
-        return Either.ofRight(this.photoService.getAllPhotoMetadataInAlbum(albumId));
+        return Either.ofRight(this.photoService.getPhotoMetadataPageInAlbum(albumId, photoSort.get(), ascending, pageCursor, limit, fields));
     }
 
     /**
@@ -324,28 +540,55 @@ public class CompositeService {
     /**
      * Get metadata of all photos with the specified tag
      *
-     * @param tag The tag to search for
+     * @param tag    The tag to search for
+     * @param fields The fields of the photos to return, or null for all of them
      * @return The metadata of the photos
      */
-    public Either<String, List<PhotoMetadata>> getPhotosWithTag(String tag) {
+    public Either<OperationError, List<PhotoSummary>> getPhotosWithTag(String tag, Set<String> fields) {
+        if (summaryFieldsAreInvalid(fields)) {
+            return Either.ofLeft(OperationError.badRequest(UNKNOWN_PHOTO_FIELD));
+        }
         User user = this.permissionsService.getUserFromCtx();
-        return Either.ofRight(this.photoService.getPhotosWithTag(user.getId(), tag));
+        return Either.ofRight(this.photoService.getPhotosWithTag(user.getId(), tag, fields));
     }
 
     /**
-     * Get metadata of all photos with the specified tag in the specified album
+     * Get a page of metadata of the photos with the specified tag in the specified album, newest first
      *
      * @param tag     The tag to search for
      * @param albumId The id of the album
-     * @return The metadata of the photos
+     * @param cursor  The cursor of the page, or null for the first page
+     * @param limit   The number of photos on the page, or null for the default
+     * @param fields  The fields of the photos to return, or null for all of them
+     * @return The page of metadata of the photos
      */
-    public Either<String, List<PhotoMetadata>> getPhotosWithTagInAlbum(String tag, String albumId) {
-        Album album = albumService.findById(albumId).orElseThrow(() -> new IllegalArgumentException(NO_SUCH_ALBUM_EXISTS));
+    public Either<OperationError, PhotoPage> getPhotosWithTagInAlbum(String tag, String albumId, String cursor, Integer limit,
+                                                                     Set<String> fields) {
+        if (limit != null && limit < 1) {
+            return Either.ofLeft(OperationError.badRequest("Limit must be positive"));
+        }
+        if (summaryFieldsAreInvalid(fields)) {
+            return Either.ofLeft(OperationError.badRequest(UNKNOWN_PHOTO_FIELD));
+        }
+        PageCursor pageCursor = null;
+        if (cursor != null) {
+            pageCursor = PageCursor.decode(cursor)
+                    .filter(decoded -> decoded.getField().equals(PhotoSort.UPLOAD_DATE.getField()) && !decoded.isAscending()
+                            && PhotoSort.UPLOAD_DATE.isValidValue(decoded.getValue()))
+                    .orElse(null);
+            if (pageCursor == null) {
+                return Either.ofLeft(OperationError.badRequest("Invalid cursor"));
+            }
+        }
+        Optional<Album> album = albumService.findById(albumId);
+        if (album.isEmpty()) {
+            return Either.ofLeft(OperationError.notFound(NO_SUCH_ALBUM_EXISTS));
+        }
         User user = this.permissionsService.getUserFromCtx();
-        if (!permissionsService.isOwnerAdminOrEditor(album)) {
-            return Either.ofLeft(NO_PERMISSION_TO_VIEW_PHOTO);
+        if (!permissionsService.isOwnerAdminOrEditor(album.get())) {
+            return Either.ofLeft(OperationError.forbidden(NO_PERMISSION_TO_VIEW_PHOTO));
         }
-        return Either.ofRight(this.photoService.getPhotosWithTagInAlbum(user.getId(), tag, album));
+        return Either.ofRight(this.photoService.getPhotosWithTagInAlbum(user.getId(), tag, album.get(), pageCursor, limit, fields));
     }
 
     /**
@@ -358,6 +601,44 @@ public class CompositeService {
         return Either.ofRight(photoService.getAllTagsForUser(user.getId()));
     }
 
+    /**
+     * Count the photos belonging to the user by tag
+     *
+     * @return The number of photos by tag, most used first
+     */
+    public Either<OperationError, Map<String, Long>> getTagFacets() {
+        User user = this.permissionsService.getUserFromCtx();
+        return Either.ofRight(photoService.getTagFacets(user.getId(), null));
+    }
+
+    /**
+     * Get the tags of the user with the number of photos, the cover photo and when they were last given to a photo
+     *
+     * @return The tags, most used first
+     */
+    public Either<OperationError, List<UserTag>> getUserTags() {
+        User user = this.permissionsService.getUserFromCtx();
+        return Either.ofRight(userTagService.getTags(user.getId()));
+    }
+
+    /**
+     * Count the photos in the specified album by tag
+     *
+     * @param albumId The id of the album
+     * @return The number of photos by tag, most used first
+     */
+    public Either<OperationError, Map<String, Long>> getTagFacetsInAlbum(String albumId) {
+        Optional<Album> album = albumService.findById(albumId);
+        if (album.isEmpty()) {
+            return Either.ofLeft(OperationError.notFound(NO_SUCH_ALBUM_EXISTS));
+        }
+        if (!this.permissionsService.isUserFromCtxOwnerOfAlbum(album.get())) {
+            return Either.ofLeft(OperationError.forbidden(NO_ACCESS_TO_SUCH_ALBUM));
+        }
+        User user = this.permissionsService.getUserFromCtx();
+        return Either.ofRight(photoService.getTagFacets(user.getId(), albumId));
+    }
+
     /**
      * Get all tags on photos in the specified album
      *
@@ -588,6 +869,30 @@ public class CompositeService {
         return Either.ofRight(album);
     }
 
+    /**
+     * Export the photos of an album as a ZIP archive streamed to the client.
+     * The photos are listed up front, photos added while the archive is written are not included.
+     *
+     * @param albumId The id of the album
+     * @return The response streaming the archive
+     */
+    public Either<OperationError, ResponseEntity<?>> exportAlbum(String albumId) {
+        Either<OperationError, Album> album = getAlbumById(albumId);
+        if (album.isLeft()) {
+            return Either.ofLeft(album.left().get());
+        }
+
+        List<PhotoMetadata> photos = this.photoService.getAllPhotoMetadataInAlbum(albumId);
+        StreamingResponseBody archive = outputStream -> albumExportService.writeZip(photos, outputStream);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType("application/zip"));
+        headers.setContentDisposition(ContentDisposition.attachment()
+                .filename(album.right().get().getName() + ".zip", StandardCharsets.UTF_8)
+                .build());
+        return Either.ofRight(ResponseEntity.ok().headers(headers).body(archive));
+    }
+
     /**
      * Get the root album for the user who authenticated the request
      *
@@ -789,8 +1094,9 @@ public class CompositeService {
     public Map<String, Long> getAlbumNamesAndSizes(User user) {
         Map<String, Long> albumNamesAndSizes = new HashMap<>();
         List<Album> albums = albumService.getAllAlbumsOwnedByUser(user.getId());
+        Map<String, Long> spaceUsed = photoService.getSpaceUsedByAlbums(albums.stream().map(Album::getId).toList());
         for (Album album : albums) {
-            albumNamesAndSizes.put(album.getName(), photoService.getSpaceUsedByAlbum(album.getId()));
+            albumNamesAndSizes.put(album.getName(), spaceUsed.getOrDefault(album.getId(), 0L));
         }
         return albumNamesAndSizes;
     }
@@ -817,15 +1123,19 @@ public class CompositeService {
     /**
      * Get metadata of all photos with the specified tag grouped by albums
      *
-     * @param tag The tag to search for
+     * @param tag    The tag to search for
+     * @param fields The fields of the photos to return, or null for all of them
      * @return The metadata of the photos
      */
-    public List<PhotoGroupedByAlbum> getPhotoMetadataByTagGroupedByAlbums(String tag) {
+    public Either<OperationError, List<PhotoGroupedByAlbum>> getPhotoMetadataByTagGroupedByAlbums(String tag, Set<String> fields) {
+        if (summaryFieldsAreInvalid(fields)) {
+            return Either.ofLeft(OperationError.badRequest(UNKNOWN_PHOTO_FIELD));
+        }
         User user = this.permissionsService.getUserFromCtx();
         if (!permissionsService.isContextUser(user.getId())) {
-            return new ArrayList<>();
+            return Either.ofRight(new ArrayList<>());
         }
-        return photoService.getPhotoMetadataByTagGroupedByAlbums(tag, user.getId());
+        return Either.ofRight(photoService.getPhotoMetadataByTagGroupedByAlbums(tag, user.getId(), fields));
     }
 
     /**
@@ -919,6 +1229,61 @@ public class CompositeService {
         };
     }
 
+    /**
+     * Response for a photo without a thumbnail - either it is still being generated
+     * and the client should retry later, or it could not be generated at all.
+     */
+    private Either<OperationError, ResponseEntity<?>> thumbnailNotReady(PhotoMetadata metadata) {
+        if (metadata.getThumbnailStatus() == ThumbnailStatus.FAILED) {
+            return Either.ofLeft(OperationError.notFound(THUMBNAIL_NOT_AVAILABLE));
+        }
+        return Either.ofRight(ResponseEntity.accepted()
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(THUMBNAIL_RETRY_AFTER_SECONDS))
+                .body(THUMBNAIL_PENDING));
+    }
+
+    /**
+     * Validate the render parameters. At least one dimension is required, and both for a cover fit.
+     *
+     * @return the parameters, or empty if they are invalid
+     */
+    private Optional<RenderSpec> parseRenderSpec(Integer width, Integer height, String fit, String format) {
+        if (width == null && height == null) {
+            return Optional.empty();
+        }
+        if ((width != null && (width < 1 || width > RenderSpec.MAX_DIMENSION))
+                || (height != null && (height < 1 || height > RenderSpec.MAX_DIMENSION))) {
+            return Optional.empty();
+        }
+
+        RenderFit renderFit;
+        try {
+            renderFit = fit == null ? RenderFit.CONTAIN : RenderFit.valueOf(fit.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+        if (renderFit == RenderFit.COVER && (width == null || height == null)) {
+            return Optional.empty();
+        }
+
+        String renderFormat = format == null ? "jpg" : format.toLowerCase();
+        if (renderFormat.equals("jpeg")) {
+            renderFormat = "jpg";
+        }
+        if (!RenderSpec.SUPPORTED_FORMATS.contains(renderFormat)) {
+            return Optional.empty();
+        }
+
+        return Optional.of(new RenderSpec(width, height, renderFit, renderFormat));
+    }
+
+    /**
+     * Check if any of the requested fields of photo summaries is unknown. No fields means all of them.
+     */
+    private boolean summaryFieldsAreInvalid(Set<String> fields) {
+        return fields != null && !fields.stream().allMatch(photoService::isSummaryField);
+    }
+
     private boolean photoIdIsInvalid(String id) {
         if (id == null || id.isEmpty()) {
             return true;
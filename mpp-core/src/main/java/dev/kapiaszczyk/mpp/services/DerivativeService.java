@@ -0,0 +1,258 @@
+package dev.kapiaszczyk.mpp.services;
+
+import com.mongodb.MongoGridFSException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import dev.kapiaszczyk.mpp.models.RenderFit;
+import dev.kapiaszczyk.mpp.models.RenderSpec;
+import dev.kapiaszczyk.mpp.models.database.PhotoMetadata;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static dev.kapiaszczyk.mpp.constants.Constants.DERIVATIVES_BUCKET;
+
+/**
+ * Service responsible for derivatives of photos rendered on demand with arbitrary dimensions and formats.
+ * <p>
+ * Rendered derivatives are cached in a separate GridFS bucket, keyed by the file of the photo and the render
+ * parameters. Once the cache exceeds its size limit, the least recently used derivatives are evicted.
+ * Concurrent requests for the same derivative are rendered only once.
+ */
+@Service
+public class DerivativeService {
+
+    private static final Logger logger = LoggerFactory.getLogger(DerivativeService.class);
+    /**
+     * Share of the size limit the cache is trimmed down to when it overflows, so that not every new
+     * derivative triggers an eviction.
+     */
+    private static final double EVICTION_TARGET = 0.9;
+    /**
+     * How often the last access time of a cached derivative is updated at most.
+     */
+    private static final Duration ACCESS_TIME_RESOLUTION = Duration.ofMinutes(1);
+
+    @Autowired
+    private final BlobStorageService blobStorageService;
+    @Autowired
+    private final GridFSBucket derivativesBucket;
+    @Autowired
+    private final ImageProcessingService imageProcessingService;
+
+    private final MongoCollection<Document> derivativeFiles;
+    private final MongoCollection<Document> derivativeChunks;
+    private final long maxCacheBytes;
+    private final AtomicLong cachedBytes = new AtomicLong();
+    /**
+     * Derivatives being rendered at the moment by their cache keys.
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<byte[]>> rendersInProgress = new ConcurrentHashMap<>();
+
+    public DerivativeService(BlobStorageService blobStorageService,
+                             @Qualifier("derivativesBucket") GridFSBucket derivativesBucket,
+                             MongoDatabase gridFsDatabase,
+                             ImageProcessingService imageProcessingService,
+                             @Value("${mpp-core.derivatives.max-cache-size-mb}") long maxCacheMegabytes) {
+        this.blobStorageService = blobStorageService;
+        this.derivativesBucket = derivativesBucket;
+        this.imageProcessingService = imageProcessingService;
+        this.derivativeFiles = gridFsDatabase.getCollection(DERIVATIVES_BUCKET + ".files");
+        this.derivativeChunks = gridFsDatabase.getCollection(DERIVATIVES_BUCKET + ".chunks");
+        this.maxCacheBytes = maxCacheMegabytes * 1024 * 1024;
+    }
+
+    @PostConstruct
+    public void initialize() {
+        derivativeFiles.createIndex(Indexes.ascending("filename"));
+        derivativeFiles.createIndex(Indexes.ascending("metadata.lastAccess"));
+        derivativeFiles.createIndex(Indexes.ascending("metadata.gridFsId"));
+
+        Document total = derivativeFiles.aggregate(List.of(Aggregates.group(null, Accumulators.sum("length", "$length")))).first();
+        cachedBytes.set(total == null ? 0 : ((Number) total.get("length")).longValue());
+        logger.info("Derivative cache holds {} bytes", cachedBytes.get());
+    }
+
+    /**
+     * Get a derivative of a photo, rendering it if it is not cached yet.
+     * <p>
+     * Contained derivatives are rendered from the smallest rendition large enough if it is available,
+     * otherwise from the original.
+     *
+     * @param photo the metadata of the photo
+     * @param spec  the dimensions, fit and format of the derivative
+     * @return the encoded derivative
+     * @throws ImageMemoryGovernor.MemoryUnavailableException if there was not enough memory to render the derivative
+     * @throws IOException                                    if the derivative could not be rendered
+     */
+    public byte[] getDerivative(PhotoMetadata photo, RenderSpec spec) throws IOException {
+        String key = photo.getGridFsId() + "/" + spec.getCacheKey();
+        byte[] cached = readCached(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        CompletableFuture<byte[]> render = new CompletableFuture<>();
+        CompletableFuture<byte[]> renderInProgress = rendersInProgress.putIfAbsent(key, render);
+        if (renderInProgress != null) {
+            return awaitRender(renderInProgress);
+        }
+
+        try {
+            // Checked again, the derivative could have been stored after the first check
+            byte[] derivative = readCached(key);
+            if (derivative == null) {
+                try (InputStream source = openSource(photo, spec)) {
+                    derivative = imageProcessingService.render(source, spec);
+                }
+                store(key, photo.getGridFsId(), derivative);
+            }
+            render.complete(derivative);
+            return derivative;
+        } catch (IOException | RuntimeException e) {
+            render.completeExceptionally(e);
+            throw e;
+        } finally {
+            rendersInProgress.remove(key, render);
+        }
+    }
+
+    /**
+     * Delete all cached derivatives of the given files in bulk.
+     *
+     * @param gridFsIds the IDs of the files in GridFS
+     */
+    public void deleteDerivatives(Collection<String> gridFsIds) {
+        List<ObjectId> derivativeIds = new ArrayList<>();
+        long length = 0;
+        for (Document file : derivativeFiles.find(Filters.in("metadata.gridFsId", gridFsIds)).projection(Projections.include("length"))) {
+            derivativeIds.add(file.getObjectId("_id"));
+            length += ((Number) file.get("length")).longValue();
+        }
+        if (derivativeIds.isEmpty()) {
+            return;
+        }
+        derivativeFiles.deleteMany(Filters.in("_id", derivativeIds));
+        derivativeChunks.deleteMany(Filters.in("files_id", derivativeIds));
+        cachedBytes.addAndGet(-length);
+    }
+
+    private InputStream openSource(PhotoMetadata photo, RenderSpec spec) throws IOException {
+        String sourceId = photo.getGridFsId();
+        if (spec.getFit() == RenderFit.CONTAIN) {
+            sourceId = imageProcessingService.getRenditionCovering(spec.getWidth(), spec.getHeight())
+                    .map(rendition -> photo.getRenditions().get(rendition))
+                    .orElse(sourceId);
+        }
+        return blobStorageService.get(sourceId).getInputStream();
+    }
+
+    private byte[] awaitRender(CompletableFuture<byte[]> render) throws IOException {
+        try {
+            return render.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the derivative", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Failed to render the derivative", e.getCause());
+        }
+    }
+
+    /**
+     * Read a cached derivative, updating its last access time.
+     *
+     * @return the derivative or null if it is not cached
+     */
+    private byte[] readCached(String key) {
+        GridFSFile file = derivativesBucket.find(Filters.eq("filename", key)).first();
+        if (file == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream((int) file.getLength());
+            derivativesBucket.downloadToStream(file.getObjectId(), output);
+
+            Date lastAccess = file.getMetadata() != null ? file.getMetadata().getDate("lastAccess") : null;
+            if (lastAccess == null || lastAccess.toInstant().isBefore(Instant.now().minus(ACCESS_TIME_RESOLUTION))) {
+                derivativeFiles.updateOne(Filters.eq("_id", file.getObjectId()), Updates.set("metadata.lastAccess", new Date()));
+            }
+            return output.toByteArray();
+        } catch (MongoGridFSException e) {
+            // Evicted while being read
+            return null;
+        }
+    }
+
+    private void store(String key, String gridFsId, byte[] derivative) {
+        derivativesBucket.uploadFromStream(key, new ByteArrayInputStream(derivative),
+                new GridFSUploadOptions().metadata(new Document("gridFsId", gridFsId).append("lastAccess", new Date())));
+        if (cachedBytes.addAndGet(derivative.length) > maxCacheBytes) {
+            evictLeastRecentlyUsed();
+        }
+    }
+
+    /**
+     * Evict the least recently used derivatives until the cache is below its size limit.
+     */
+    private synchronized void evictLeastRecentlyUsed() {
+        long target = (long) (maxCacheBytes * EVICTION_TARGET);
+        if (cachedBytes.get() <= target) {
+            return;
+        }
+        int evicted = 0;
+        for (Document file : derivativeFiles.find()
+                .sort(Sorts.ascending("metadata.lastAccess"))
+                .projection(Projections.include("length"))) {
+            if (cachedBytes.get() <= target) {
+                break;
+            }
+            deleteCached(file);
+            evicted++;
+        }
+        logger.info("Evicted {} derivatives, the cache holds {} bytes", evicted, cachedBytes.get());
+    }
+
+    private void deleteCached(Document file) {
+        try {
+            derivativesBucket.delete(file.getObjectId("_id"));
+            cachedBytes.addAndGet(-((Number) file.get("length")).longValue());
+        } catch (MongoGridFSException e) {
+            // Already deleted by another eviction
+        }
+    }
+
+}
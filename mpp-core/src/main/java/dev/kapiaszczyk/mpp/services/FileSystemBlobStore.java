@@ -0,0 +1,144 @@
+package dev.kapiaszczyk.mpp.services;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Blob store keeping blobs as plain files in a local directory, which may also be a mounted network share.
+ * <p>
+ * Blobs are spread over two levels of subdirectories named after the last bytes of their IDs, which come
+ * from the counter of the ObjectId and are evenly distributed, so no directory grows too large. Files on the
+ * local disk can be sent to clients by the servlet container with sendfile, without passing through the heap.
+ * <p>
+ * A blob is written to a temporary file and moved into place once it is flushed to disk, so readers never see
+ * a partial blob. Only the content is stored, the filename and content type are kept in the metadata of photos.
+ */
+@Component
+public class FileSystemBlobStore implements BlobStore {
+
+    public static final String NAME = "filesystem";
+    private static final Logger logger = LoggerFactory.getLogger(FileSystemBlobStore.class);
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    // Null if the store is disabled
+    private final Path directory;
+
+    public FileSystemBlobStore(@Value("${mpp-core.blob-store.filesystem.directory}") String directory) {
+        this.directory = directory == null || directory.isBlank() ? null : Path.of(directory);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    @Override
+    public void put(String id, String filename, String contentType, InputStream content) throws IOException {
+        if (directory == null) {
+            throw new IllegalStateException("The filesystem blob store is not configured");
+        }
+        Path path = resolve(id);
+        Files.createDirectories(path.getParent());
+        Path temporary = Files.createTempFile(path.getParent(), id, TEMPORARY_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                long position = 0;
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = content.read(buffer)) != -1) {
+                    position += channel.write(ByteBuffer.wrap(buffer, 0, read), position);
+                }
+                channel.force(true);
+            }
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    @Override
+    public Optional<Resource> get(String id) {
+        if (directory == null || !ObjectId.isValid(id)) {
+            return Optional.empty();
+        }
+        Path path = resolve(id);
+        return Files.isRegularFile(path) ? Optional.of(new FileSystemResource(path)) : Optional.empty();
+    }
+
+    @Override
+    public long delete(Collection<String> ids) {
+        if (directory == null) {
+            return 0;
+        }
+        long deletedBytes = 0;
+        for (String id : ids) {
+            if (!ObjectId.isValid(id)) {
+                continue;
+            }
+            Path path = resolve(id);
+            try {
+                long size = Files.size(path);
+                if (Files.deleteIfExists(path)) {
+                    deletedBytes += size;
+                }
+            } catch (NoSuchFileException e) {
+                // Not stored here
+            } catch (IOException e) {
+                logger.error("Failed to delete blob {}", path, e);
+            }
+        }
+        return deletedBytes;
+    }
+
+    @Override
+    public long getTotalSize() {
+        if (directory == null || !Files.isDirectory(directory)) {
+            return 0;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(file -> !file.getFileName().toString().endsWith(TEMPORARY_SUFFIX))
+                    .mapToLong(file -> {
+                        try {
+                            return Files.size(file);
+                        } catch (IOException e) {
+                            return 0;
+                        }
+                    })
+                    .sum();
+        } catch (IOException | UncheckedIOException e) {
+            logger.error("Failed to compute the size of the blobs in {}", directory, e);
+            return 0;
+        }
+    }
+
+    private Path resolve(String id) {
+        String hex = id.toLowerCase();
+        return directory.resolve(hex.substring(22, 24)).resolve(hex.substring(20, 22)).resolve(hex);
+    }
+
+}
@@ -0,0 +1,87 @@
+package dev.kapiaszczyk.mpp.services;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import dev.kapiaszczyk.mpp.util.GridFsFileResource;
+import org.bson.BsonObjectId;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Blob store keeping blobs in the default GridFS bucket.
+ * <p>
+ * Deleting works for any file in the bucket, so it is also used for the renditions stored next to the originals.
+ */
+@Component
+public class GridFsBlobStore implements BlobStore {
+
+    public static final String NAME = "gridfs";
+
+    @Autowired
+    private final GridFSBucket gridFSBucket;
+    @Autowired
+    private final MongoDatabase gridFsDatabase;
+
+    public GridFsBlobStore(GridFSBucket gridFSBucket, MongoDatabase gridFsDatabase) {
+        this.gridFSBucket = gridFSBucket;
+        this.gridFsDatabase = gridFsDatabase;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public void put(String id, String filename, String contentType, InputStream content) {
+        // The files document is inserted after the chunks, so the file is not found until it is complete
+        gridFSBucket.uploadFromStream(new BsonObjectId(new ObjectId(id)), filename, content,
+                new GridFSUploadOptions().metadata(new Document("contentType", contentType)));
+    }
+
+    @Override
+    public Optional<Resource> get(String id) {
+        GridFSFile file = gridFSBucket.find(Filters.eq("_id", new ObjectId(id))).first();
+        return Optional.ofNullable(file).map(found -> new GridFsFileResource(gridFSBucket, found));
+    }
+
+    @Override
+    public long delete(Collection<String> ids) {
+        List<ObjectId> fileIds = ids.stream().filter(ObjectId::isValid).map(ObjectId::new).toList();
+        if (fileIds.isEmpty()) {
+            return 0;
+        }
+        Document deletedLength = gridFsDatabase.getCollection("fs.files").aggregate(List.of(
+                Aggregates.match(Filters.in("_id", fileIds)),
+                Aggregates.group(null, Accumulators.sum("length", "$length")))).first();
+        gridFsDatabase.getCollection("fs.files").deleteMany(Filters.in("_id", fileIds));
+        gridFsDatabase.getCollection("fs.chunks").deleteMany(Filters.in("files_id", fileIds));
+        return deletedLength == null ? 0 : ((Number) deletedLength.get("length")).longValue();
+    }
+
+    @Override
+    public long getTotalSize() {
+        Document files = gridFsDatabase.getCollection("fs.files")
+                .aggregate(List.of(Aggregates.group(null, Accumulators.sum("length", "$length")))).first();
+        return files == null ? 0 : ((Number) files.get("length")).longValue();
+    }
+
+}
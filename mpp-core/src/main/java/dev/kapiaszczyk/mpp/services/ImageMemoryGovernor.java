@@ -0,0 +1,146 @@
+package dev.kapiaszczyk.mpp.services;
+
+import dev.kapiaszczyk.mpp.models.api.ImageProcessingStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for image processing, shared by all decoding workers.
+ * <p>
+ * Every decode reserves the memory it is estimated to allocate before any pixels are read.
+ * Once the budget is used up, further decodes wait for a reservation to be released, so a burst
+ * of large images slows processing down instead of exhausting the heap.
+ */
+@Component
+public class ImageMemoryGovernor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageMemoryGovernor.class);
+
+    /**
+     * Reservations are tracked in kibibytes, so that the budget fits in the permits of a semaphore.
+     */
+    private static final long BYTES_PER_PERMIT = 1024;
+
+    private final Semaphore permits;
+    private final int totalPermits;
+    private final Duration waitTimeout;
+
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final AtomicLong waitingReservations = new AtomicLong();
+    private final AtomicLong grantedReservations = new AtomicLong();
+    private final AtomicLong rejectedReservations = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public ImageMemoryGovernor(@Value("${mpp-core.image-processing.memory-budget-mb}") long budgetMegabytes,
+                               @Value("${mpp-core.image-processing.memory-wait-timeout}") long waitTimeoutMillis) {
+        this.totalPermits = (int) Math.min(Integer.MAX_VALUE, budgetMegabytes * 1024 * 1024 / BYTES_PER_PERMIT);
+        // Fair, so that a large reservation is not starved by a stream of small ones
+        this.permits = new Semaphore(totalPermits, true);
+        this.waitTimeout = Duration.ofMillis(waitTimeoutMillis);
+    }
+
+    /**
+     * Reserve memory for decoding an image, waiting up to the configured timeout if the budget is used up.
+     * <p>
+     * A single reservation larger than the whole budget is capped to the budget, so that it can still run
+     * on its own instead of never being admitted.
+     *
+     * @param bytes the estimated number of bytes the decode allocates
+     * @param wait  whether to wait for other reservations to be released, or give up right away
+     * @return the reservation, to be closed once the decoded image is no longer referenced
+     * @throws MemoryUnavailableException if the memory could not be reserved in time
+     * @throws InterruptedIOException     if the thread was interrupted while waiting
+     */
+    public Reservation reserve(long bytes, boolean wait) throws IOException {
+        int requested = (int) Math.min(totalPermits, Math.max(1, (bytes + BYTES_PER_PERMIT - 1) / BYTES_PER_PERMIT));
+        long start = System.nanoTime();
+        boolean acquired;
+        waitingReservations.incrementAndGet();
+        try {
+            acquired = wait
+                    ? permits.tryAcquire(requested, waitTimeout.toNanos(), TimeUnit.NANOSECONDS)
+                    : permits.tryAcquire(requested);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for image processing memory");
+        } finally {
+            waitingReservations.decrementAndGet();
+        }
+
+        long waited = System.nanoTime() - start;
+        totalWaitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+        if (!acquired) {
+            rejectedReservations.incrementAndGet();
+            throw new MemoryUnavailableException(bytes);
+        }
+        grantedReservations.incrementAndGet();
+        reservedBytes.addAndGet(requested * BYTES_PER_PERMIT);
+        logger.debug("Reserved {} bytes for image processing after {} ms", bytes, TimeUnit.NANOSECONDS.toMillis(waited));
+        return new Reservation(requested);
+    }
+
+    /**
+     * Get the current state of the memory budget and the wait times observed so far.
+     *
+     * @return the statistics
+     */
+    public ImageProcessingStatistics getStatistics() {
+        long granted = grantedReservations.get();
+        long rejected = rejectedReservations.get();
+        long attempts = granted + rejected;
+        return new ImageProcessingStatistics(
+                totalPermits * BYTES_PER_PERMIT,
+                reservedBytes.get(),
+                waitingReservations.get(),
+                granted,
+                rejected,
+                attempts == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / attempts),
+                TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+    }
+
+    /**
+     * Memory reserved for a single decode, released when closed.
+     */
+    public class Reservation implements AutoCloseable {
+
+        private final int reservedPermits;
+        private boolean released;
+
+        private Reservation(int reservedPermits) {
+            this.reservedPermits = reservedPermits;
+        }
+
+        @Override
+        public void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            reservedBytes.addAndGet(-reservedPermits * BYTES_PER_PERMIT);
+            permits.release(reservedPermits);
+        }
+    }
+
+    /**
+     * Thrown when there is not enough memory in the budget to decode an image.
+     * The image can be processed later, once other decodes have finished.
+     */
+    public static class MemoryUnavailableException extends IOException {
+
+        public MemoryUnavailableException(long bytes) {
+            super("Not enough image processing memory available to reserve " + bytes + " bytes");
+        }
+    }
+}
@@ -0,0 +1,540 @@
+package dev.kapiaszczyk.mpp.services;
+
+import dev.kapiaszczyk.mpp.models.GeneratedRenditions;
+import dev.kapiaszczyk.mpp.models.ImagePreview;
+import dev.kapiaszczyk.mpp.models.RenderFit;
+import dev.kapiaszczyk.mpp.models.RenderSpec;
+import dev.kapiaszczyk.mpp.models.api.ImageProcessingStatistics;
+import dev.kapiaszczyk.mpp.util.BlurHash;
+import jakarta.annotation.PreDestroy;
+import net.coobird.thumbnailator.Thumbnails;
+import net.coobird.thumbnailator.geometry.Positions;
+import net.coobird.thumbnailator.util.exif.ExifFilterUtils;
+import net.coobird.thumbnailator.util.exif.ExifUtils;
+import net.coobird.thumbnailator.util.exif.Orientation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.*;
+
+import static dev.kapiaszczyk.mpp.constants.Constants.THUMBNAIL_RENDITION;
+
+/**
+ * Service responsible for decoding uploaded images and generating renditions (thumbnails and downscaled
+ * copies for viewing) from them on a bounded pool of workers, off the request threads.
+ */
+@Service
+public class ImageProcessingService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageProcessingService.class);
+    /**
+     * JPEG quality of fitted renditions, which are much larger than thumbnails and viewed at full size.
+     */
+    private static final float FITTED_RENDITION_QUALITY = 0.85f;
+    /**
+     * How many times larger than a cropped rendition the subsampled image may be, so that the final resize
+     * still has enough pixels to interpolate from. Fitted renditions are decoded at no less than their
+     * own size only - with the headroom, a large rendition would need the full resolution of most photos.
+     */
+    private static final int SUBSAMPLING_HEADROOM = 2;
+    /**
+     * Decoded rasters use at most four bytes per pixel.
+     */
+    private static final int BYTES_PER_PIXEL = 4;
+    /**
+     * Longer side of the image the preview is computed from, a BlurHash does not need more detail.
+     */
+    private static final int PREVIEW_SIZE = 32;
+    /**
+     * Number of BlurHash components along the longer side, three along the shorter one.
+     */
+    private static final int PREVIEW_COMPONENTS = 4;
+
+    private final ThreadPoolExecutor decoderPool;
+
+    private final ImageMemoryGovernor memoryGovernor;
+
+    private final List<Rendition> renditions;
+
+    public ImageProcessingService(@Value("${mpp-core.image-processing.threads}") int threads,
+                                  @Value("${mpp-core.image-processing.renditions}") String[] renditions,
+                                  ImageMemoryGovernor memoryGovernor) {
+        this.memoryGovernor = memoryGovernor;
+        // Largest first, fitted before cropped, see generateRenditions
+        this.renditions = Arrays.stream(renditions)
+                .map(Rendition::parse)
+                .sorted(Comparator.comparingInt(Rendition::size).reversed().thenComparing(Rendition::crop))
+                .toList();
+        if (!isRenditionSupported(THUMBNAIL_RENDITION)) {
+            throw new IllegalArgumentException("The rendition ladder must contain the " + THUMBNAIL_RENDITION + " rendition");
+        }
+        // The pool has no queue on purpose - a decoder reads the upload while it is being stored,
+        // so it has to start right away, otherwise the upload would wait for a free worker.
+        // Photos that did not get a worker are picked up later by the pending thumbnail job.
+        this.decoderPool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<>(), new CustomizableThreadFactory("rendition-"));
+    }
+
+    /**
+     * Start generating all renditions of an image and its preview on a worker thread.
+     * <p>
+     * The stream is opened on the worker and closed once the renditions are generated or the generation fails.
+     * If the memory needed to decode the image cannot be reserved, the future completes with
+     * {@link ImageMemoryGovernor.MemoryUnavailableException} and the image can be processed again later.
+     *
+     * @param source        supplier of the stream containing the image
+     * @param waitForMemory whether to wait for memory reserved by other decodes to be released
+     * @return future completed with the encoded renditions by their names and the preview
+     * @throws RejectedExecutionException if there is no free worker
+     */
+    public CompletableFuture<GeneratedRenditions> generateRenditionsAsync(Callable<InputStream> source, boolean waitForMemory) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (InputStream inputStream = source.call()) {
+                return generateRenditions(inputStream, waitForMemory);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, decoderPool);
+    }
+
+    /**
+     * Check if renditions with the given name are generated for uploaded photos.
+     *
+     * @param name the name of the rendition
+     * @return true if the rendition is part of the configured ladder
+     */
+    public boolean isRenditionSupported(String name) {
+        return renditions.stream().anyMatch(rendition -> rendition.name().equals(name));
+    }
+
+    /**
+     * Get the number of workers that are not generating renditions at the moment.
+     *
+     * @return the number of idle workers
+     */
+    public int getIdleWorkers() {
+        return Math.max(0, decoderPool.getMaximumPoolSize() - decoderPool.getActiveCount());
+    }
+
+    /**
+     * Get the state of the memory reserved for decoding images.
+     *
+     * @return the statistics of the memory governor
+     */
+    public ImageProcessingStatistics getStatistics() {
+        return memoryGovernor.getStatistics();
+    }
+
+    private GeneratedRenditions generateRenditions(InputStream inputStream, boolean waitForMemory) throws IOException {
+        Map<String, byte[]> encoded = new LinkedHashMap<>();
+        ImagePreview preview;
+        // The reservation is held until all renditions are encoded
+        try (DecodedImage decoded = decode(inputStream, waitForMemory, this::planRenditions)) {
+            BufferedImage source = decoded.takeImage();
+            Orientation orientation = decoded.orientation();
+            // Renditions are ordered from the largest, and every fitted rendition is the source of the smaller ones,
+            // so the full decoded image is resized only once and can be released right after
+            for (Rendition rendition : renditions) {
+                BufferedImage resized = resize(source, rendition, orientation);
+                encoded.put(rendition.name(), encode(resized, rendition));
+                if (!rendition.crop()) {
+                    source = resized;
+                    orientation = null;
+                }
+            }
+            // Computed from the smallest fitted rendition, which shows the whole photo, unless all renditions are crops
+            preview = createPreview(source, orientation, decoded.width(), decoded.height());
+        } catch (ImageMemoryGovernor.MemoryUnavailableException e) {
+            logger.info("Postponing rendition generation: {}", e.getMessage());
+            throw e;
+        } catch (IOException e) {
+            logger.error("Error generating renditions: {}", e.getMessage());
+            throw e;
+        }
+        logger.info("Generated renditions {}", encoded.keySet());
+        return new GeneratedRenditions(encoded, preview);
+    }
+
+    /**
+     * Scale the image down to a few pixels and compute the preview from them. The dominant colour is the
+     * average of the most common colour, with each channel reduced to four bits.
+     *
+     * @param width  the width of the original as stored
+     * @param height the height of the original as stored
+     */
+    private static ImagePreview createPreview(BufferedImage image, Orientation orientation, int width, int height) throws IOException {
+        Thumbnails.Builder<BufferedImage> builder = Thumbnails.of(image)
+                .size(PREVIEW_SIZE, PREVIEW_SIZE)
+                .imageType(BufferedImage.TYPE_INT_RGB);
+        if (orientation != null) {
+            builder.addFilter(ExifFilterUtils.getFilterForOrientation(orientation));
+        }
+        BufferedImage small = builder.asBufferedImage();
+
+        int[] pixels = small.getRGB(0, 0, small.getWidth(), small.getHeight(), null, 0, small.getWidth());
+        int[] counts = new int[4096];
+        long[] sums = new long[4096 * 3];
+        int dominant = 0;
+        for (int pixel : pixels) {
+            int r = (pixel >> 16) & 0xff;
+            int g = (pixel >> 8) & 0xff;
+            int b = pixel & 0xff;
+            int bucket = (r >> 4) << 8 | (g >> 4) << 4 | b >> 4;
+            counts[bucket]++;
+            sums[bucket * 3] += r;
+            sums[bucket * 3 + 1] += g;
+            sums[bucket * 3 + 2] += b;
+            if (counts[bucket] > counts[dominant]) {
+                dominant = bucket;
+            }
+        }
+        String dominantColor = String.format("#%02x%02x%02x", sums[dominant * 3] / counts[dominant],
+                sums[dominant * 3 + 1] / counts[dominant], sums[dominant * 3 + 2] / counts[dominant]);
+
+        boolean landscape = small.getWidth() >= small.getHeight();
+        String blurHash = BlurHash.encode(small, landscape ? PREVIEW_COMPONENTS : 3, landscape ? 3 : PREVIEW_COMPONENTS);
+        boolean transposed = isTransposed(orientation);
+        return new ImagePreview(transposed ? height : width, transposed ? width : height, dominantColor, blurHash);
+    }
+
+    /**
+     * Resize an image to a rendition, applying the EXIF orientation if given.
+     * Images smaller than a fitted rendition are not enlarged.
+     */
+    private static BufferedImage resize(BufferedImage image, Rendition rendition, Orientation orientation) throws IOException {
+        boolean fitsAlready = Math.max(image.getWidth(), image.getHeight()) <= rendition.size();
+        if (!rendition.crop() && fitsAlready && orientation == null) {
+            return image;
+        }
+        Thumbnails.Builder<BufferedImage> builder = Thumbnails.of(image);
+        if (rendition.crop()) {
+            builder.size(rendition.size(), rendition.size()).crop(Positions.CENTER);
+        } else if (fitsAlready) {
+            builder.scale(1.0);
+        } else {
+            builder.size(rendition.size(), rendition.size());
+        }
+        if (orientation != null) {
+            builder.addFilter(ExifFilterUtils.getFilterForOrientation(orientation));
+        }
+        return builder.asBufferedImage();
+    }
+
+    private static byte[] encode(BufferedImage image, Rendition rendition) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Thumbnails.of(image)
+                .scale(1.0)
+                .outputQuality(rendition.crop() ? 1.0 : FITTED_RENDITION_QUALITY)
+                .outputFormat("jpg")
+                .toOutputStream(output);
+        return output.toByteArray();
+    }
+
+    /**
+     * Render a derivative of an image with the given dimensions and format on the calling thread,
+     * waiting for memory reserved by other decodes if needed.
+     *
+     * @param inputStream the stream containing the image
+     * @param spec        the dimensions, fit and format of the derivative
+     * @return the encoded derivative
+     * @throws ImageMemoryGovernor.MemoryUnavailableException if the memory could not be reserved in time
+     * @throws IOException                                    if the image could not be decoded
+     */
+    public byte[] render(InputStream inputStream, RenderSpec spec) throws IOException {
+        try (DecodedImage decoded = decode(inputStream, true, (width, height, orientation) -> planRender(width, height, orientation, spec))) {
+            BufferedImage image = decoded.takeImage();
+            // The image is resized before it is rotated according to the orientation, so the box is rotated as well
+            boolean transposed = isTransposed(decoded.orientation());
+            Integer boxWidth = transposed ? spec.getHeight() : spec.getWidth();
+            Integer boxHeight = transposed ? spec.getWidth() : spec.getHeight();
+
+            Thumbnails.Builder<BufferedImage> builder = Thumbnails.of(image);
+            if (spec.getFit() == RenderFit.COVER) {
+                // Only the centered region with the requested aspect ratio was decoded, it is never enlarged
+                double scale = Math.min(1.0, (double) image.getWidth() / boxWidth);
+                builder.size(Math.max(1, (int) Math.round(boxWidth * scale)), Math.max(1, (int) Math.round(boxHeight * scale)))
+                        .crop(Positions.CENTER);
+            } else if ((boxWidth == null || image.getWidth() <= boxWidth) && (boxHeight == null || image.getHeight() <= boxHeight)) {
+                builder.scale(1.0);
+            } else if (boxHeight == null) {
+                builder.width(boxWidth);
+            } else if (boxWidth == null) {
+                builder.height(boxHeight);
+            } else {
+                builder.size(boxWidth, boxHeight);
+            }
+            if (decoded.orientation() != null) {
+                builder.addFilter(ExifFilterUtils.getFilterForOrientation(decoded.orientation()));
+            }
+            if (spec.getFormat().equals("jpg")) {
+                builder.outputQuality(FITTED_RENDITION_QUALITY);
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            builder.outputFormat(spec.getFormat()).toOutputStream(output);
+            return output.toByteArray();
+        }
+    }
+
+    /**
+     * Get the smallest fitted rendition from which a derivative fitted into the given dimensions
+     * can be rendered without losing detail.
+     *
+     * @param width  the requested width, or null if not constrained
+     * @param height the requested height, or null if not constrained
+     * @return the name of the rendition, or empty if the original has to be used
+     */
+    public Optional<String> getRenditionCovering(Integer width, Integer height) {
+        if (width == null || height == null) {
+            // A fitted rendition is bounded on its longer side, which is not known for a single dimension
+            return Optional.empty();
+        }
+        int longerSide = Math.max(width, height);
+        return renditions.stream()
+                .filter(rendition -> !rendition.crop() && rendition.size() >= longerSide)
+                .min(Comparator.comparingInt(Rendition::size))
+                .map(Rendition::name);
+    }
+
+    /**
+     * Decode only the region of the image needed for the renditions, skipping rows and columns
+     * (subsampling) so that the decoded raster is only as large as the largest rendition needs,
+     * instead of the full resolution of the photo. If all renditions are center crops, only the
+     * centered square is decoded.
+     */
+    private ReadPlan planRenditions(int width, int height, Orientation orientation) {
+        boolean onlyCrops = renditions.stream().allMatch(Rendition::crop);
+        Rectangle region = onlyCrops ? centeredRegion(width, height, 1, 1) : new Rectangle(0, 0, width, height);
+        int subsampling = renditions.stream()
+                .mapToInt(rendition -> allowedSubsampling(region, rendition))
+                .min()
+                .orElse(1);
+        return new ReadPlan(region, subsampling);
+    }
+
+    /**
+     * Decode only the region and the pixels needed for a derivative. A covered box needs only the centered
+     * region with its aspect ratio, with the same headroom as cropped renditions. A contained box needs
+     * the whole image at no less than the box size.
+     */
+    private static ReadPlan planRender(int width, int height, Orientation orientation, RenderSpec spec) {
+        boolean transposed = isTransposed(orientation);
+        Integer boxWidth = transposed ? spec.getHeight() : spec.getWidth();
+        Integer boxHeight = transposed ? spec.getWidth() : spec.getHeight();
+        if (spec.getFit() == RenderFit.COVER) {
+            Rectangle region = centeredRegion(width, height, boxWidth, boxHeight);
+            int subsampling = Math.min(region.width / (boxWidth * SUBSAMPLING_HEADROOM), region.height / (boxHeight * SUBSAMPLING_HEADROOM));
+            return new ReadPlan(region, Math.max(1, subsampling));
+        }
+        // The side which has to shrink the most decides the scale of the whole image
+        int subsampling = Math.max(
+                boxWidth == null ? 1 : width / boxWidth,
+                boxHeight == null ? 1 : height / boxHeight);
+        return new ReadPlan(new Rectangle(0, 0, width, height), Math.max(1, subsampling));
+    }
+
+    /**
+     * Check if the orientation swaps the width and the height of the image.
+     */
+    private static boolean isTransposed(Orientation orientation) {
+        return orientation == Orientation.LEFT_TOP || orientation == Orientation.RIGHT_TOP
+                || orientation == Orientation.RIGHT_BOTTOM || orientation == Orientation.LEFT_BOTTOM;
+    }
+
+    /**
+     * Decode an image reading only the pixels chosen by the planner.
+     * <p>
+     * The dimensions are read from the header first and passed to the planner, which decides which region
+     * is decoded and how many rows and columns are skipped.
+     * <p>
+     * Before any pixels are read, the memory needed for the decoded raster is reserved with the memory governor.
+     * The reservation is released when the returned image is closed.
+     */
+    private DecodedImage decode(InputStream inputStream, boolean waitForMemory, ReadPlanner planner) throws IOException {
+        try (ImageInputStream imageInputStream = new MemoryCacheImageInputStream(inputStream)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageInputStream, true, false);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                Orientation orientation = readOrientation(reader);
+
+                ReadPlan plan = planner.plan(width, height, orientation);
+                Rectangle region = plan.region();
+                int subsampling = plan.subsampling();
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(region);
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                logger.debug("Decoding {}x{} region of {}x{} image with subsampling {}", region.width, region.height, width, height, subsampling);
+
+                ImageMemoryGovernor.Reservation reservation = memoryGovernor.reserve(estimateDecodingBytes(width, region, subsampling), waitForMemory);
+                try {
+                    return new DecodedImage(reader.read(0, param), width, height, orientation, reservation);
+                } catch (IOException | RuntimeException e) {
+                    reservation.close();
+                    throw e;
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Get the largest subsampling which still leaves enough pixels for the rendition.
+     * A crop is limited by the shorter side of the region, a fitted image by the longer one.
+     */
+    private static int allowedSubsampling(Rectangle region, Rendition rendition) {
+        if (rendition.crop()) {
+            return Math.max(1, Math.min(region.width, region.height) / (rendition.size() * SUBSAMPLING_HEADROOM));
+        }
+        return Math.max(1, Math.max(region.width, region.height) / rendition.size());
+    }
+
+    /**
+     * Get the largest region in the center of the image with the same aspect ratio as the target.
+     */
+    private static Rectangle centeredRegion(int width, int height, int targetWidth, int targetHeight) {
+        int regionWidth = width;
+        int regionHeight = height;
+        if ((long) width * targetHeight > (long) height * targetWidth) {
+            regionWidth = Math.max(1, (int) ((long) height * targetWidth / targetHeight));
+        } else {
+            regionHeight = Math.max(1, (int) ((long) width * targetHeight / targetWidth));
+        }
+        return new Rectangle((width - regionWidth) / 2, (height - regionHeight) / 2, regionWidth, regionHeight);
+    }
+
+    /**
+     * Estimate the memory allocated while decoding the region: the decoded raster, a copy of it made
+     * while cropping and resizing, and a row of the source image buffered by the reader.
+     */
+    private static long estimateDecodingBytes(int width, Rectangle region, int subsampling) {
+        long decodedWidth = (region.width + subsampling - 1) / subsampling;
+        long decodedHeight = (region.height + subsampling - 1) / subsampling;
+        return (2 * decodedWidth * decodedHeight + width) * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Read the EXIF orientation, which has to be applied manually when decoding through ImageIO.
+     *
+     * @return the orientation or null if the image does not specify one
+     */
+    private static Orientation readOrientation(ImageReader reader) {
+        try {
+            return ExifUtils.getExifOrientation(reader, 0);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A size in which images are stored next to the original, configured as {@code name:size:crop|fit}.
+     *
+     * @param name the name under which the rendition is requested
+     * @param size the side of the square the image is cropped or fitted into
+     * @param crop whether the image is cropped to the square or scaled to fit inside it
+     */
+    private record Rendition(String name, int size, boolean crop) {
+
+        static Rendition parse(String definition) {
+            String[] parts = definition.trim().split(":");
+            if (parts.length != 3 || !(parts[2].equals("crop") || parts[2].equals("fit"))) {
+                throw new IllegalArgumentException("Invalid rendition definition: " + definition);
+            }
+            return new Rendition(parts[0], Integer.parseInt(parts[1]), parts[2].equals("crop"));
+        }
+    }
+
+    /**
+     * Chooses the pixels to decode once the dimensions of the image are known.
+     */
+    @FunctionalInterface
+    private interface ReadPlanner {
+        ReadPlan plan(int width, int height, Orientation orientation);
+    }
+
+    /**
+     * @param region      the region of the image to decode
+     * @param subsampling how many rows and columns are skipped for every decoded one
+     */
+    private record ReadPlan(Rectangle region, int subsampling) {
+    }
+
+    /**
+     * A decoded image together with the memory reserved for it.
+     */
+    private static final class DecodedImage implements AutoCloseable {
+
+        private BufferedImage image;
+        // Dimensions of the whole image as stored, not of the decoded region
+        private final int width;
+        private final int height;
+        private final Orientation orientation;
+        private final ImageMemoryGovernor.Reservation reservation;
+
+        private DecodedImage(BufferedImage image, int width, int height, Orientation orientation, ImageMemoryGovernor.Reservation reservation) {
+            this.image = image;
+            this.width = width;
+            this.height = height;
+            this.orientation = orientation;
+            this.reservation = reservation;
+        }
+
+        /**
+         * Hand the image over to the caller, so that it can be garbage collected as soon as the caller is done with it.
+         */
+        BufferedImage takeImage() {
+            BufferedImage taken = image;
+            image = null;
+            return taken;
+        }
+
+        int width() {
+            return width;
+        }
+
+        int height() {
+            return height;
+        }
+
+        Orientation orientation() {
+            return orientation;
+        }
+
+        @Override
+        public void close() {
+            reservation.close();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        decoderPool.shutdownNow();
+    }
+
+}
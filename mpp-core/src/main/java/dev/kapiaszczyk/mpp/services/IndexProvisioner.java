@@ -0,0 +1,195 @@
+package dev.kapiaszczyk.mpp.services;
+
+import dev.kapiaszczyk.mpp.models.PhotoSort;
+import dev.kapiaszczyk.mpp.models.ThumbnailStatus;
+import dev.kapiaszczyk.mpp.models.database.Album;
+import dev.kapiaszczyk.mpp.models.database.Blob;
+import dev.kapiaszczyk.mpp.models.database.PhotoMetadata;
+import dev.kapiaszczyk.mpp.models.database.StorageCounter;
+import dev.kapiaszczyk.mpp.models.database.User;
+import dev.kapiaszczyk.mpp.models.database.UserTag;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
+import org.springframework.data.mongodb.core.index.WildcardIndex;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates the indexes backing the queries of the services and repositories at startup.
+ * <p>
+ * The indexes are declared in one place, per collection, under a version. Declared indexes missing from the
+ * database are built on every startup. The names of the indexes provisioned are recorded
+ * with the version, so when the version is raised, indexes provisioned before and no longer declared are
+ * dropped. Indexes not provisioned here, e.g. the ones of the GridFS buckets, are left alone.
+ */
+@Component
+public class IndexProvisioner {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexProvisioner.class);
+    /**
+     * Version of the declared indexes, to be raised whenever an index is removed from the declarations.
+     */
+    private static final int VERSION = 2;
+    private static final String VERSIONS_COLLECTION = "index_versions";
+    private static final String VERSION_ID = "indexes";
+
+    @Autowired
+    private final MongoTemplate mongoTemplate;
+
+    public IndexProvisioner(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /**
+     * Get the declared indexes by the entity classes of their collections.
+     *
+     * @return the declared indexes
+     */
+    public static Map<Class<?>, List<IndexDefinition>> declaredIndexes() {
+        Map<Class<?>, List<IndexDefinition>> indexes = new LinkedHashMap<>();
+
+        List<IndexDefinition> photos = new ArrayList<>();
+        // Listings of an album are sorted by one of the fields and then by ID, see getPhotoMetadataPageInAlbum.
+        // Also serve all other queries by album, as the album is the prefix.
+        for (PhotoSort sort : PhotoSort.values()) {
+            photos.add(new Index()
+                    .on("albumId", Sort.Direction.ASC)
+                    .on(sort.getField(), Sort.Direction.ASC)
+                    .on("_id", Sort.Direction.ASC)
+                    );
+        }
+        // Photos of a user, with a tag, and with a tag in an album newest first
+        photos.add(new Index()
+                .on("userId", Sort.Direction.ASC)
+                .on("tags", Sort.Direction.ASC)
+                .on("albumId", Sort.Direction.ASC)
+                .on("uploadDate", Sort.Direction.ASC)
+                .on("_id", Sort.Direction.ASC)
+                );
+        // Photos sharing a stored file
+        photos.add(new Index("gridFsId", Sort.Direction.ASC));
+        // Photos waiting for renditions, only a few at any time
+        photos.add(new Index("thumbnailStatus", Sort.Direction.ASC)
+                .partial(PartialIndexFilter.of(Criteria.where("thumbnailStatus").is(ThumbnailStatus.PENDING.name())))
+                );
+        indexes.put(PhotoMetadata.class, photos);
+
+        indexes.put(Album.class, List.of(
+                // Albums of a user, and the root album of a user
+                new Index().on("ownerId", Sort.Direction.ASC).on("parentId", Sort.Direction.ASC),
+                // Children of an album, and a child by name
+                new Index().on("parentId", Sort.Direction.ASC).on("name", Sort.Direction.ASC),
+                new Index("name", Sort.Direction.ASC),
+                new Index("path", Sort.Direction.ASC),
+                // Permissions are keyed by the IDs of the users, only a wildcard index covers lookups by user
+                new WildcardIndex("permissions")));
+
+        indexes.put(User.class, List.of(
+                // Not unique, accounts created so far are not guaranteed to be
+                new Index("email", Sort.Direction.ASC),
+                // Case-insensitive searches by username scan this index instead of the collection
+                new Index("username", Sort.Direction.ASC)));
+
+        indexes.put(Blob.class, List.of(
+                // Sparse, as files uploaded before content hashing was introduced have no hash
+                new Index("contentHash", Sort.Direction.ASC).unique().sparse(),
+                new Index("refCount", Sort.Direction.ASC)));
+
+        indexes.put(StorageCounter.class, List.of(
+                new Index("reconciledAt", Sort.Direction.ASC)));
+
+        indexes.put(UserTag.class, List.of(
+                // Tags of a user, most used first
+                new Index().on("userId", Sort.Direction.ASC).on("count", Sort.Direction.DESC).on("tag", Sort.Direction.ASC),
+                new Index("reconciledAt", Sort.Direction.ASC)));
+
+        return indexes;
+    }
+
+    /**
+     * Build the declared indexes missing from the database and drop the ones no longer declared.
+     * An index failing to build, e.g. because existing documents violate its constraints, is logged
+     * and does not prevent the application from starting.
+     */
+    @PostConstruct
+    public void provision() {
+        long start = System.nanoTime();
+        Document applied = mongoTemplate.findById(VERSION_ID, Document.class, VERSIONS_COLLECTION);
+        int appliedVersion = applied != null ? applied.getInteger("version", 0) : 0;
+        if (appliedVersion > VERSION) {
+            logger.warn("Indexes were provisioned with version {}, newer than version {}, leaving them as they are", appliedVersion, VERSION);
+            return;
+        }
+
+        List<String> provisioned = new ArrayList<>();
+        for (Map.Entry<Class<?>, List<IndexDefinition>> declared : declaredIndexes().entrySet()) {
+            String collection = mongoTemplate.getCollectionName(declared.getKey());
+            for (IndexDefinition index : declared.getValue()) {
+                try {
+                    provisioned.add(collection + "." + mongoTemplate.indexOps(collection).ensureIndex(index));
+                } catch (DataAccessException e) {
+                    logger.error("Failed to build index {} on {}", index.getIndexKeys().toJson(), collection, e);
+                }
+            }
+        }
+
+        List<String> recorded = applied != null ? applied.getList("names", String.class, List.of()) : List.of();
+        List<String> names = new ArrayList<>(provisioned);
+        for (String name : recorded) {
+            if (provisioned.contains(name)) {
+                continue;
+            }
+            if (appliedVersion < VERSION) {
+                dropIndex(name);
+            } else {
+                // Dropped once the version is raised
+                names.add(name);
+            }
+        }
+
+        if (appliedVersion < VERSION || !new HashSet<>(names).equals(new HashSet<>(recorded))) {
+            mongoTemplate.save(new Document("_id", VERSION_ID)
+                    .append("version", VERSION)
+                    .append("names", names)
+                    .append("provisionedAt", new Date()), VERSIONS_COLLECTION);
+            if (appliedVersion < VERSION) {
+                logger.info("Provisioned indexes version {}, previously version {}", VERSION, appliedVersion);
+            }
+        }
+        logger.info("Ensured {} indexes in {} ms", provisioned.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Drop a retired index.
+     *
+     * @param name the name of the index prefixed with the name of its collection
+     */
+    private void dropIndex(String name) {
+        int separator = name.indexOf('.');
+        String collection = name.substring(0, separator);
+        String index = name.substring(separator + 1);
+        try {
+            mongoTemplate.indexOps(collection).dropIndex(index);
+            logger.info("Dropped retired index {} on {}", index, collection);
+        } catch (DataAccessException e) {
+            logger.warn("Failed to drop retired index {} on {}", index, collection, e);
+        }
+    }
+
+}
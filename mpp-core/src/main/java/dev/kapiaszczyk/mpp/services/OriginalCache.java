@@ -0,0 +1,418 @@
+package dev.kapiaszczyk.mpp.services;
+
+import dev.kapiaszczyk.mpp.models.api.OriginalCacheStatistics;
+import dev.kapiaszczyk.mpp.util.CachedFileResource;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.core.io.Resource;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Read-through cache of the originals of photos stored in GridFS on the local disk.
+ * <p>
+ * Photos are read many times in the first hours after they are uploaded or shared, each time streaming all
+ * chunks from MongoDB. Once the content of an original is read, it is copied to the cache directory in the
+ * background, and read from there afterwards, which also lets it be sent with sendfile. Looking up the size or
+ * the time the original was stored, e.g. to answer a conditional request, does not copy it. Uploaded originals
+ * are copied right away. Renditions and thumbnails are not cached.
+ * <p>
+ * Files are written to a temporary file and moved into place once complete, each file is copied once even if
+ * it is read concurrently. A cached file is served under the filename and upload date of the file in GridFS.
+ * The least recently used files are evicted once the cache exceeds its size, the order is saved to an index
+ * file together with the size, upload date and filename of each file, so the cache survives restarts.
+ */
+@Component
+public class OriginalCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(OriginalCache.class);
+    private static final String INDEX_FILE = "index";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    /**
+     * Share of the cache a single file may take up, larger ones are not cached.
+     */
+    private static final double MAX_ENTRY_SHARE = 0.1;
+    /**
+     * Copies from GridFS waiting for a free thread, further ones are skipped and made on a later read.
+     */
+    private static final int MAX_PENDING_COPIES = 64;
+
+    // Null if the cache is disabled
+    private final Path directory;
+    private final long maxSizeBytes;
+
+    // The cached files in access order, least recently used first
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes;
+    private boolean indexChanged;
+    /**
+     * IDs of the files being copied from GridFS at the moment, or waiting to be.
+     */
+    private final Set<String> copiesInProgress = ConcurrentHashMap.newKeySet();
+    private final ThreadPoolExecutor copyPool;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public OriginalCache(@Value("${mpp-core.original-cache.directory}") String directory,
+                         @Value("${mpp-core.original-cache.max-size-mb}") long maxSizeMegabytes) {
+        this.directory = directory == null || directory.isBlank() || maxSizeMegabytes <= 0 ? null : Path.of(directory);
+        this.maxSizeBytes = maxSizeMegabytes * 1024 * 1024;
+        // Copies are bound by the disk and the database, not by the CPU
+        this.copyPool = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_COPIES), new CustomizableThreadFactory("original-cache-"));
+    }
+
+    /**
+     * Load the index, keeping only the files listed in it with the recorded size. Other files may be incomplete,
+     * as the files are not flushed to disk when they are cached, and files listed without their upload date
+     * and filename were cached by an earlier version.
+     */
+    @PostConstruct
+    public void open() throws IOException {
+        if (directory == null) {
+            logger.info("Original cache is disabled");
+            return;
+        }
+        Files.createDirectories(directory);
+        Path index = directory.resolve(INDEX_FILE);
+        if (Files.exists(index)) {
+            for (String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+                // The filename comes last, as it may contain spaces
+                String[] entry = line.split(" ", 4);
+                if (entry.length != 4 || !ObjectId.isValid(entry[0])) {
+                    continue;
+                }
+                Path file = directory.resolve(entry[0]);
+                long size = Long.parseLong(entry[1]);
+                if (Files.isRegularFile(file) && Files.size(file) == size) {
+                    entries.put(entry[0], new Entry(size, Long.parseLong(entry[2]), entry[3]));
+                    usedBytes += size;
+                }
+            }
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (!name.equals(INDEX_FILE) && !entries.containsKey(name)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        evict(null);
+        logger.info("Original cache in {} holds {} files taking up {} of {} bytes", directory, entries.size(), usedBytes, maxSizeBytes);
+    }
+
+    @PreDestroy
+    public void close() {
+        copyPool.shutdownNow();
+        saveIndex();
+    }
+
+    /**
+     * Check if the cache is configured.
+     *
+     * @return true if files are cached
+     */
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Get a cached file.
+     *
+     * @param id the ID of the file in GridFS
+     * @return the cached file, under the filename and upload date of the file in GridFS, or empty if it is not cached
+     */
+    public Optional<Resource> get(String id) {
+        if (directory == null || !ObjectId.isValid(id)) {
+            return Optional.empty();
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(id);
+            if (entry == null) {
+                misses.incrementAndGet();
+                return Optional.empty();
+            }
+            indexChanged = true;
+        }
+        hits.incrementAndGet();
+        return Optional.of(new CachedFileResource(directory.resolve(id), entry.filename(), entry.lastModified()));
+    }
+
+    /**
+     * Wrap an original read from GridFS, so that it is copied into the cache in the background once its content
+     * is read. Nothing is copied while only its size or upload date are looked up.
+     *
+     * @param id   the ID of the file in GridFS
+     * @param file the file in GridFS
+     * @return the wrapped file, or the given file if the cache is disabled
+     */
+    public Resource readThrough(String id, Resource file) {
+        if (directory == null || !ObjectId.isValid(id)) {
+            return file;
+        }
+        return new ReadThroughResource(id, file);
+    }
+
+    /**
+     * Copy a newly uploaded original into the cache.
+     *
+     * @param id      the ID of the file in GridFS
+     * @param stored  the file in GridFS, for its size, upload date and filename
+     * @param content the uploaded content
+     */
+    public void cacheUploaded(String id, Resource stored, InputStreamSource content) {
+        if (directory == null) {
+            return;
+        }
+        try {
+            store(id, stored, content);
+        } catch (IOException e) {
+            logger.warn("Failed to cache uploaded file with ID {}", id, e);
+        }
+    }
+
+    /**
+     * Remove deleted files from the cache.
+     *
+     * @param ids the IDs of the files in GridFS
+     */
+    public void invalidate(Collection<String> ids) {
+        if (directory == null) {
+            return;
+        }
+        List<String> removed = new ArrayList<>();
+        synchronized (this) {
+            for (String id : ids) {
+                Entry entry = entries.remove(id);
+                if (entry != null) {
+                    usedBytes -= entry.size();
+                    removed.add(id);
+                    indexChanged = true;
+                }
+            }
+        }
+        removed.forEach(this::deleteFile);
+    }
+
+    /**
+     * Save the order of the cached files to the index file, if it changed since it was last saved.
+     */
+    public void saveIndex() {
+        if (directory == null) {
+            return;
+        }
+        List<Map.Entry<String, Entry>> snapshot;
+        synchronized (this) {
+            if (!indexChanged) {
+                return;
+            }
+            snapshot = List.copyOf(entries.entrySet());
+            indexChanged = false;
+        }
+        Path index = directory.resolve(INDEX_FILE);
+        Path temporary = directory.resolve(INDEX_FILE + TEMPORARY_SUFFIX);
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Entry> entry : snapshot) {
+                    writer.write(entry.getKey() + " " + entry.getValue().size() + " " + entry.getValue().lastModified()
+                            + " " + entry.getValue().filename());
+                    writer.newLine();
+                }
+            }
+            Files.move(temporary, index, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.warn("Failed to save the index of the original cache", e);
+            synchronized (this) {
+                indexChanged = true;
+            }
+        }
+    }
+
+    /**
+     * Get the number of cached files, the space they take up and the hit ratio so far.
+     *
+     * @return the statistics
+     */
+    public synchronized OriginalCacheStatistics getStatistics() {
+        return new OriginalCacheStatistics(directory != null ? maxSizeBytes : 0, usedBytes, entries.size(),
+                hits.get(), misses.get(), evictions.get());
+    }
+
+    /**
+     * Copy a file from GridFS into the cache on the copy thread, unless it is cached or being copied already.
+     */
+    private void copyInBackground(String id, Resource file) {
+        synchronized (this) {
+            if (entries.containsKey(id)) {
+                return;
+            }
+        }
+        if (!copiesInProgress.add(id)) {
+            return;
+        }
+        try {
+            copyPool.execute(() -> {
+                try {
+                    store(id, file, file);
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Failed to cache file with ID {}", id, e);
+                } finally {
+                    copiesInProgress.remove(id);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Copied on a later read
+            copiesInProgress.remove(id);
+        }
+    }
+
+    /**
+     * Write the content to a temporary file, move it into place and make room for it. Files too large for the
+     * cache, and files whose filename cannot be recorded in the index, are not cached.
+     */
+    private void store(String id, Resource stored, InputStreamSource content) throws IOException {
+        Path path = directory.resolve(id);
+        synchronized (this) {
+            if (entries.containsKey(id)) {
+                return;
+            }
+        }
+        long size = stored.contentLength();
+        String filename = stored.getFilename();
+        if (size > maxSizeBytes * MAX_ENTRY_SHARE || filename == null || filename.contains("\n") || filename.contains("\r")) {
+            return;
+        }
+        Path temporary = Files.createTempFile(directory, id, TEMPORARY_SUFFIX);
+        try {
+            try (InputStream inputStream = content.getInputStream()) {
+                Files.copy(inputStream, temporary, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        synchronized (this) {
+            if (entries.put(id, new Entry(size, stored.lastModified(), filename)) == null) {
+                usedBytes += size;
+            }
+            indexChanged = true;
+        }
+        evict(id);
+    }
+
+    /**
+     * Evict the least recently used files until the cache fits into its size, except the given one.
+     */
+    private void evict(String keep) {
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Map.Entry<String, Entry>> leastRecentlyUsed = entries.entrySet().iterator();
+            while (usedBytes > maxSizeBytes && leastRecentlyUsed.hasNext()) {
+                Map.Entry<String, Entry> entry = leastRecentlyUsed.next();
+                if (entry.getKey().equals(keep)) {
+                    continue;
+                }
+                leastRecentlyUsed.remove();
+                usedBytes -= entry.getValue().size();
+                evicted.add(entry.getKey());
+                indexChanged = true;
+            }
+        }
+        evictions.addAndGet(evicted.size());
+        evicted.forEach(this::deleteFile);
+    }
+
+    private void deleteFile(String id) {
+        try {
+            Files.deleteIfExists(directory.resolve(id));
+        } catch (IOException e) {
+            logger.warn("Failed to delete cached file with ID {}", id, e);
+        }
+    }
+
+    /**
+     * A cached file, with the size, upload date and filename of the file in GridFS.
+     */
+    private record Entry(long size, long lastModified, String filename) {
+    }
+
+    /**
+     * An original in GridFS that is copied into the cache once its content is read.
+     */
+    private class ReadThroughResource extends AbstractResource {
+
+        private final String id;
+        private final Resource file;
+
+        ReadThroughResource(String id, Resource file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            copyInBackground(id, file);
+            return file.getInputStream();
+        }
+
+        @Override
+        public boolean exists() {
+            return file.exists();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return file.contentLength();
+        }
+
+        @Override
+        public long lastModified() throws IOException {
+            return file.lastModified();
+        }
+
+        @Override
+        public String getFilename() {
+            return file.getFilename();
+        }
+
+        @Override
+        public String getDescription() {
+            return file.getDescription();
+        }
+
+    }
+
+}
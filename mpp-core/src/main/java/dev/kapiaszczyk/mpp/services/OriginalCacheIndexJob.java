@@ -0,0 +1,23 @@
+package dev.kapiaszczyk.mpp.services;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically saves the order of the files in the original cache, so that it survives a crash.
+ */
+@Component
+public class OriginalCacheIndexJob {
+
+    private final OriginalCache originalCache;
+
+    public OriginalCacheIndexJob(OriginalCache originalCache) {
+        this.originalCache = originalCache;
+    }
+
+    @Scheduled(fixedDelayString = "${mpp-core.original-cache.index-save-interval}")
+    public void saveIndex() {
+        originalCache.saveIndex();
+    }
+
+}
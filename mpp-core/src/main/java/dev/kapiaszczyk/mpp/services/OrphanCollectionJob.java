@@ -0,0 +1,23 @@
+package dev.kapiaszczyk.mpp.services;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically deletes files in GridFS that are no longer referenced by any photo.
+ */
+@Component
+public class OrphanCollectionJob {
+
+    private final OrphanFileCollector orphanFileCollector;
+
+    public OrphanCollectionJob(OrphanFileCollector orphanFileCollector) {
+        this.orphanFileCollector = orphanFileCollector;
+    }
+
+    @Scheduled(initialDelayString = "${mpp-core.orphan-collector.interval}", fixedDelayString = "${mpp-core.orphan-collector.interval}")
+    public void collectOrphanedFiles() {
+        orphanFileCollector.collect(false);
+    }
+
+}
@@ -0,0 +1,271 @@
+package dev.kapiaszczyk.mpp.services;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import dev.kapiaszczyk.mpp.models.api.OrphanCollectionReport;
+import dev.kapiaszczyk.mpp.models.database.Blob;
+import dev.kapiaszczyk.mpp.models.database.PhotoMetadata;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Service responsible for deleting files in GridFS that no photo references, such as originals of failed
+ * uploads or renditions left behind by deleted photos.
+ * <p>
+ * A run marks all files referenced by photos and blobs, then streams the files in GridFS and sweeps
+ * the unmarked ones in batches, pausing between batches to limit the load on the database.
+ * Files younger than the grace period are never swept, as they may belong to an upload in progress.
+ */
+@Service
+public class OrphanFileCollector {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrphanFileCollector.class);
+    /**
+     * Number of orphaned file IDs included in the report.
+     */
+    private static final int REPORT_SAMPLE_SIZE = 100;
+
+    @Autowired
+    private final MongoTemplate mongoTemplate;
+    @Autowired
+    private final BlobService blobService;
+    @Autowired
+    private final DerivativeService derivativeService;
+    @Autowired
+    private final StorageCounterService storageCounterService;
+    @Autowired
+    private final ThumbnailCache thumbnailCache;
+
+    private final MongoCollection<Document> files;
+    private final MongoCollection<Document> chunks;
+    private final Duration gracePeriod;
+    private final int batchSize;
+    private final Duration batchPause;
+    /**
+     * Sweeps are not run concurrently, dry runs do not take the lock as they delete nothing.
+     */
+    private final ReentrantLock sweepLock = new ReentrantLock();
+
+    public OrphanFileCollector(MongoTemplate mongoTemplate,
+                               BlobService blobService,
+                               DerivativeService derivativeService,
+                               StorageCounterService storageCounterService,
+                               ThumbnailCache thumbnailCache,
+                               MongoDatabase gridFsDatabase,
+                               @Value("${mpp-core.orphan-collector.grace-period}") long gracePeriodMillis,
+                               @Value("${mpp-core.orphan-collector.batch-size}") int batchSize,
+                               @Value("${mpp-core.orphan-collector.batch-pause}") long batchPauseMillis) {
+        this.mongoTemplate = mongoTemplate;
+        this.blobService = blobService;
+        this.derivativeService = derivativeService;
+        this.storageCounterService = storageCounterService;
+        this.thumbnailCache = thumbnailCache;
+        this.files = gridFsDatabase.getCollection("fs.files");
+        this.chunks = gridFsDatabase.getCollection("fs.chunks");
+        this.gracePeriod = Duration.ofMillis(gracePeriodMillis);
+        this.batchSize = batchSize;
+        this.batchPause = Duration.ofMillis(batchPauseMillis);
+    }
+
+    /**
+     * Find the files not referenced by any photo and delete them, unless it is a dry run.
+     *
+     * @param dryRun whether to only report the orphaned files
+     * @return the report of the run, or null if another sweep is already running
+     */
+    public OrphanCollectionReport collect(boolean dryRun) {
+        if (!dryRun && !sweepLock.tryLock()) {
+            logger.info("Orphaned file collection is already running");
+            return null;
+        }
+        try {
+            return run(dryRun);
+        } finally {
+            if (!dryRun) {
+                sweepLock.unlock();
+            }
+        }
+    }
+
+    private OrphanCollectionReport run(boolean dryRun) {
+        long start = System.nanoTime();
+        // Taken before marking, so that files stored while marking are within the grace period
+        Date uploadedBefore = Date.from(Instant.now().minus(gracePeriod));
+        ReferenceSet referenced = markReferencedFiles();
+
+        long scanned = 0;
+        long orphaned = 0;
+        long orphanedBytes = 0;
+        long deleted = 0;
+        List<String> sample = new ArrayList<>();
+        List<ObjectId> batch = new ArrayList<>(batchSize);
+        long batchBytes = 0;
+
+        try (MongoCursor<Document> cursor = files.find(Filters.lt("uploadDate", uploadedBefore))
+                .projection(Projections.include("length"))
+                .batchSize(batchSize)
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document file = cursor.next();
+                scanned++;
+                ObjectId fileId = file.getObjectId("_id");
+                if (referenced.contains(fileId)) {
+                    continue;
+                }
+                long length = ((Number) file.get("length")).longValue();
+                orphaned++;
+                orphanedBytes += length;
+                if (sample.size() < REPORT_SAMPLE_SIZE) {
+                    sample.add(fileId.toString());
+                }
+                if (!dryRun) {
+                    batch.add(fileId);
+                    batchBytes += length;
+                    if (batch.size() == batchSize) {
+                        deleted += sweep(batch, batchBytes);
+                        batch.clear();
+                        batchBytes = 0;
+                        if (!pause()) {
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            deleted += sweep(batch, batchBytes);
+        }
+
+        long duration = Duration.ofNanos(System.nanoTime() - start).toMillis();
+        logger.info("Orphaned file collection scanned {} files, found {} orphaned files of {} bytes and deleted {} in {} ms",
+                scanned, orphaned, orphanedBytes, deleted, duration);
+        return new OrphanCollectionReport(dryRun, referenced.size(), scanned, orphaned, orphanedBytes, deleted, sample, duration);
+    }
+
+    /**
+     * Collect the files referenced by photos as originals or renditions, and by blobs still referenced.
+     */
+    private ReferenceSet markReferencedFiles() {
+        ReferenceSet referenced = new ReferenceSet();
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(PhotoMetadata.class)).find()
+                .projection(Projections.include("gridFsId", "thumbnailId", "renditions"))
+                .batchSize(batchSize)
+                .forEach(photo -> {
+                    referenced.add(photo.get("gridFsId"));
+                    referenced.add(photo.get("thumbnailId"));
+                    Document renditions = photo.get("renditions", Document.class);
+                    if (renditions != null) {
+                        renditions.values().forEach(referenced::add);
+                    }
+                });
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(Blob.class)).find(Filters.gt("refCount", 0))
+                .projection(Projections.include("_id"))
+                .batchSize(batchSize)
+                .forEach(blob -> referenced.add(blob.get("_id")));
+        referenced.seal();
+        return referenced;
+    }
+
+    /**
+     * Delete a batch of orphaned files together with their blobs and cached derivatives.
+     *
+     * @return the number of deleted files
+     */
+    private long sweep(List<ObjectId> fileIds, long length) {
+        long deleted = files.deleteMany(Filters.in("_id", fileIds)).getDeletedCount();
+        chunks.deleteMany(Filters.in("files_id", fileIds));
+        List<String> gridFsIds = fileIds.stream().map(ObjectId::toString).toList();
+        blobService.removeUnreferenced(gridFsIds);
+        thumbnailCache.invalidate(gridFsIds);
+        derivativeService.deleteDerivatives(gridFsIds);
+        storageCounterService.recordStoredBytes(-length);
+        return deleted;
+    }
+
+    /**
+     * @return false if the thread was interrupted and the run should stop
+     */
+    private boolean pause() {
+        try {
+            Thread.sleep(batchPause.toMillis());
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Compact set of file IDs, holding a 64-bit fingerprint of each ID in a sorted array.
+     * <p>
+     * Distinct IDs may share a fingerprint, which can only make an orphaned file look referenced,
+     * never the other way around, so a collision at worst keeps a file for longer.
+     */
+    private static final class ReferenceSet {
+
+        private long[] fingerprints = new long[1024];
+        private int size;
+
+        void add(Object id) {
+            if (id == null) {
+                return;
+            }
+            ObjectId objectId;
+            if (id instanceof ObjectId value) {
+                objectId = value;
+            } else if (ObjectId.isValid(id.toString())) {
+                objectId = new ObjectId(id.toString());
+            } else {
+                return;
+            }
+            if (size == fingerprints.length) {
+                fingerprints = Arrays.copyOf(fingerprints, size * 2);
+            }
+            fingerprints[size++] = fingerprint(objectId);
+        }
+
+        void seal() {
+            Arrays.sort(fingerprints, 0, size);
+            // Files shared by several photos are referenced more than once
+            int distinct = 0;
+            for (int i = 0; i < size; i++) {
+                if (distinct == 0 || fingerprints[i] != fingerprints[distinct - 1]) {
+                    fingerprints[distinct++] = fingerprints[i];
+                }
+            }
+            size = distinct;
+        }
+
+        boolean contains(ObjectId id) {
+            return Arrays.binarySearch(fingerprints, 0, size, fingerprint(id)) >= 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private static long fingerprint(ObjectId id) {
+            ByteBuffer bytes = ByteBuffer.wrap(id.toByteArray());
+            return bytes.getLong() ^ (bytes.getInt() * 0x9E3779B97F4A7C15L);
+        }
+    }
+
+}
@@ -0,0 +1,23 @@
+package dev.kapiaszczyk.mpp.services;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically generates thumbnails for photos that are still waiting for one.
+ */
+@Component
+public class PendingThumbnailJob {
+
+    private final PhotoService photoService;
+
+    public PendingThumbnailJob(PhotoService photoService) {
+        this.photoService = photoService;
+    }
+
+    @Scheduled(fixedDelayString = "${mpp-core.image-processing.pending-thumbnails-interval}")
+    public void generatePendingThumbnails() {
+        photoService.generatePendingThumbnails();
+    }
+
+}
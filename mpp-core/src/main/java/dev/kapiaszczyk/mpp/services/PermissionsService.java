@@ -62,7 +62,17 @@ public class PermissionsService {
     }
 
     public boolean isOwnerAdminOrEditorOrViewer(Album album) {
-        String userId = getUserFromCtx().getId();
+        return isOwnerAdminOrEditorOrViewer(album, getUserFromCtx().getId());
+    }
+
+    /**
+     * Checks if the user can view the album, for checking many albums with a single user lookup.
+     *
+     * @param album  album
+     * @param userId user id
+     * @return true if the user is the owner or has any role in the album
+     */
+    public boolean isOwnerAdminOrEditorOrViewer(Album album, String userId) {
         if (Objects.equals(album.getOwnerId(), userId)) {
             return true;
         }
@@ -1,45 +1,95 @@
 package dev.kapiaszczyk.mpp.services;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.mongodb.BasicDBObject;
 import com.mongodb.MongoException;
 import com.mongodb.MongoGridFSException;
 import com.mongodb.client.gridfs.GridFSBucket;
-import com.mongodb.client.gridfs.GridFSDownloadStream;
-import com.mongodb.client.gridfs.model.GridFSFile;
 import com.mongodb.client.gridfs.model.GridFSUploadOptions;
 import dev.kapiaszczyk.mpp.constants.Constants;
+import dev.kapiaszczyk.mpp.models.GeneratedRenditions;
+import dev.kapiaszczyk.mpp.models.PhotoSort;
+import dev.kapiaszczyk.mpp.models.StoredFile;
+import dev.kapiaszczyk.mpp.models.ThumbnailStatus;
 import dev.kapiaszczyk.mpp.models.api.PhotoGroupedByAlbum;
+import dev.kapiaszczyk.mpp.models.api.PhotoPage;
+import dev.kapiaszczyk.mpp.models.api.PhotoSummary;
 import dev.kapiaszczyk.mpp.models.database.Album;
+import dev.kapiaszczyk.mpp.models.database.Blob;
 import dev.kapiaszczyk.mpp.models.database.PhotoMetadata;
 import dev.kapiaszczyk.mpp.repositories.PhotoRepository;
-import dev.kapiaszczyk.mpp.responses.PhotoDownloadResponse;
+import dev.kapiaszczyk.mpp.util.BoundedPipe;
 import dev.kapiaszczyk.mpp.util.Either;
-import net.coobird.thumbnailator.Thumbnails;
-import net.coobird.thumbnailator.geometry.Positions;
+import dev.kapiaszczyk.mpp.util.PageCursor;
+import dev.kapiaszczyk.mpp.util.StoredFileResource;
+import dev.kapiaszczyk.mpp.util.TeeInputStream;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 
 import static dev.kapiaszczyk.mpp.constants.Constants.RABBIT_REQUEST_QUEUE;
+import static dev.kapiaszczyk.mpp.constants.Constants.THUMBNAIL_RENDITION;
 import static dev.kapiaszczyk.mpp.errors.GenericErrors.FILE_NOT_FOUND;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.group;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.newAggregation;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.project;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.sort;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.unwind;
 
 @Service
 public class PhotoService {
 
     private static final Logger logger = LoggerFactory.getLogger(PhotoService.class);
+    private static final String CONTENT_HASH_ALGORITHM = "SHA-256";
+    /**
+     * Number of chunks buffered between the upload and the rendition decoder.
+     */
+    private static final int DECODER_PIPE_CAPACITY = 16;
+    /**
+     * Fields of photo summaries by the paths they are read from, also the names under which they are requested.
+     */
+    private static final Map<String, String> SUMMARY_FIELDS = Map.ofEntries(
+            Map.entry("id", "_id"),
+            Map.entry("filename", "filename"),
+            Map.entry("contentType", "contentType"),
+            Map.entry("size", "size"),
+            Map.entry("uploadDate", "uploadDate"),
+            Map.entry("albumId", "albumId"),
+            Map.entry("tags", "tags"),
+            Map.entry("thumbnailId", "thumbnailId"),
+            Map.entry("thumbnailStatus", "thumbnailStatus"),
+            Map.entry("width", "preview.width"),
+            Map.entry("height", "preview.height"),
+            Map.entry("dominantColor", "preview.dominantColor"),
+            Map.entry("blurHash", "preview.blurHash"));
+
+    /**
+     * Files for which renditions are being generated at the moment.
+     */
+    private final Set<String> renditionsInProgress = ConcurrentHashMap.newKeySet();
     @Autowired
     private final GridFSBucket gridFSBucket;
     @Autowired
@@ -48,16 +98,54 @@ public class PhotoService {
     private final PhotoRepository photoRepository;
     @Autowired
     private final RabbitTemplate rabbitTemplate;
+    @Autowired
+    private final ImageProcessingService imageProcessingService;
+    @Autowired
+    private final DerivativeService derivativeService;
+    @Autowired
+    private final BlobService blobService;
+    @Autowired
+    private final StorageCounterService storageCounterService;
+    @Autowired
+    private final UserTagService userTagService;
+    @Autowired
+    private final ThumbnailCache thumbnailCache;
+    @Autowired
+    private final ThumbnailPackStore thumbnailPackStore;
+    @Autowired
+    private final BlobStorageService blobStorageService;
+    private final int defaultPageSize;
+    private final int maxPageSize;
+    private final int tagPreviewSize;
 
-    public PhotoService(GridFSBucket gridFSBucket, MongoTemplate mongoTemplate, PhotoRepository photoRepository, RabbitTemplate rabbitTemplate) {
+    public PhotoService(GridFSBucket gridFSBucket, MongoTemplate mongoTemplate, PhotoRepository photoRepository, RabbitTemplate rabbitTemplate, ImageProcessingService imageProcessingService, DerivativeService derivativeService, BlobService blobService, StorageCounterService storageCounterService, UserTagService userTagService, ThumbnailCache thumbnailCache, ThumbnailPackStore thumbnailPackStore, BlobStorageService blobStorageService,
+                        @Value("${mpp-core.photo-listing.default-page-size}") int defaultPageSize,
+                        @Value("${mpp-core.photo-listing.max-page-size}") int maxPageSize,
+                        @Value("${mpp-core.photo-listing.tag-preview-size}") int tagPreviewSize) {
         this.gridFSBucket = gridFSBucket;
         this.mongoTemplate = mongoTemplate;
         this.photoRepository = photoRepository;
         this.rabbitTemplate = rabbitTemplate;
+        this.imageProcessingService = imageProcessingService;
+        this.derivativeService = derivativeService;
+        this.blobService = blobService;
+        this.storageCounterService = storageCounterService;
+        this.userTagService = userTagService;
+        this.thumbnailCache = thumbnailCache;
+        this.thumbnailPackStore = thumbnailPackStore;
+        this.blobStorageService = blobStorageService;
+        this.defaultPageSize = defaultPageSize;
+        this.maxPageSize = maxPageSize;
+        this.tagPreviewSize = tagPreviewSize;
     }
 
     /**
      * Upload a photo to the database and sends a message to RabbitMQ
+     * <p>
+     * The content is read only once - it is stored in the primary blob store, hashed and decoded into renditions
+     * at the same time. If the same content has been uploaded before, the photo shares the stored file and its
+     * renditions, and the copy just stored is deleted again. The method returns as soon as the photo and its
+     * metadata are stored, the renditions are stored by the worker generating them.
      *
      * @param file          the photo file
      * @param userId        the ID of the user uploading the photo
@@ -67,30 +155,17 @@ public class PhotoService {
      */
     public String uploadPhoto(MultipartFile file, String userId, String targetAlbumId) throws Exception {
         PhotoMetadata metadata = extractDataFromFile(file);
+        metadata.setUserId(userId);
+        metadata.setAlbumId(targetAlbumId);
 
-        try (InputStream inputStream = file.getInputStream();
-             InputStream thumbnailStream = file.getInputStream()) {
-
-            // Upload photo to GridFS
-            ObjectId fileId = uploadFileToGridFS(metadata, inputStream, userId);
-            logger.info("Uploaded photo with ID: {}", fileId);
-
-            // Generate and upload thumbnail
-            ObjectId thumbnailId = uploadThumbnailToGridFS(metadata, thumbnailStream, userId);
-            logger.info("Uploaded thumbnail with ID: {}", thumbnailId);
-
-            // Save metadata
-            metadata.setUserId(userId);
-            metadata.setAlbumId(targetAlbumId);
-            metadata.setGridFsId(fileId.toString());
-            metadata.setThumbnailId(thumbnailId.toString());
-            mongoTemplate.save(metadata);
+        try {
+            storeContent(metadata, file, userId);
 
             // Send message to RabbitMQ
             sendMessageToQueue(metadata.getId());
             logger.info("Sent message to RabbitMQ with photo ID: {}", metadata.getId());
 
-            incrementPhotoCount(targetAlbumId);
+            storageCounterService.recordAdded(userId, targetAlbumId, metadata.getSize());
 
             return metadata.getId();
         } catch (IOException | MongoException e) {
@@ -100,26 +175,282 @@ public class PhotoService {
     }
 
     /**
-     * Uploads a file to GridFS and returns its ID.
+     * Points the photo to an already stored file with the same content, taking over its renditions.
+     */
+    private void shareStoredContent(PhotoMetadata metadata, Blob blob) {
+        metadata.setGridFsId(blob.getId());
+        Query photosWithFile = new Query(Criteria.where("gridFsId").is(blob.getId()));
+        photosWithFile.fields().include("thumbnailId", "thumbnailStatus", "renditions", "preview");
+        PhotoMetadata photoWithFile = mongoTemplate.findOne(photosWithFile, PhotoMetadata.class);
+        if (photoWithFile == null) {
+            // The renditions are generated by the pending thumbnail job
+            metadata.setThumbnailStatus(ThumbnailStatus.PENDING);
+            return;
+        }
+        // Renditions still being generated are attached to all photos with the file once they are ready
+        metadata.setThumbnailId(photoWithFile.getThumbnailId());
+        metadata.setThumbnailStatus(photoWithFile.getThumbnailStatus());
+        metadata.setRenditions(photoWithFile.getRenditions());
+        metadata.setPreview(photoWithFile.getPreview());
+    }
+
+    /**
+     * Stores the file in the primary blob store and saves the metadata, hashing the content and decoding the renditions
+     * while the file is being stored. Content stored before is shared instead, see {@link #shareStoredContent}.
      */
-    private ObjectId uploadFileToGridFS(PhotoMetadata metadata, InputStream inputStream, String userId) {
-        GridFSUploadOptions options = new GridFSUploadOptions()
-                .metadata(new org.bson.Document("userId", userId)
-                        .append("contentType", metadata.getContentType()));
+    private void storeContent(PhotoMetadata metadata, MultipartFile file, String userId) throws IOException {
+        BoundedPipe decoderPipe = new BoundedPipe(DECODER_PIPE_CAPACITY);
+        CompletableFuture<GeneratedRenditions> renditions = startRenditionGeneration(decoderPipe);
+        OutputStream decoderBranch = renditions != null ? decoderPipe.sink() : OutputStream.nullOutputStream();
+
+        // Store the photo, hashing it and feeding the rendition decoder along the way
+        MessageDigest digest = newContentDigest();
+        String fileId;
+        try (InputStream inputStream = new DigestInputStream(new TeeInputStream(file.getInputStream(), decoderBranch), digest)) {
+            fileId = blobStorageService.put(metadata.getFilename(), metadata.getContentType(), inputStream);
+        }
+        metadata.setContentHash(HexFormat.of().formatHex(digest.digest()));
+
+        Optional<Blob> blob = blobService.acquire(metadata.getContentHash());
+        if (blob.isPresent()) {
+            logger.info("Content of the photo is already stored in file with ID: {}", blob.get().getId());
+            discardRenditions(renditions, fileId);
+            blobStorageService.delete(List.of(fileId));
+            shareStoredContent(metadata, blob.get());
+            try {
+                mongoTemplate.save(metadata);
+            } catch (RuntimeException e) {
+                // Files no longer referenced are left to the orphan collector
+                blobService.release(Map.of(blob.get().getId(), 1));
+                throw e;
+            }
+            return;
+        }
+        logger.info("Uploaded photo with ID: {}", fileId);
+        // Uploaded photos are usually viewed soon, the upload is still on the local disk
+        blobStorageService.cacheUploaded(fileId, file);
+        storageCounterService.recordStoredBytes(metadata.getSize());
+        blobService.register(new Blob(fileId, metadata.getContentHash(), metadata.getSize(), new Date(), 1));
 
-        return gridFSBucket.uploadFromStream(metadata.getFilename(), inputStream, options);
+        // Save metadata, the renditions are added once they are generated
+        metadata.setGridFsId(fileId);
+        metadata.setThumbnailStatus(ThumbnailStatus.PENDING);
+        if (renditions != null) {
+            // Keeps the pending thumbnail job away from the photo between saving it and attaching the renditions
+            renditionsInProgress.add(metadata.getGridFsId());
+        }
+        try {
+            mongoTemplate.save(metadata);
+        } catch (RuntimeException e) {
+            discardRenditions(renditions, metadata.getGridFsId());
+            deleteUnsavedFile(fileId);
+            throw e;
+        }
+        if (renditions != null) {
+            storeRenditionsWhenGenerated(renditions, metadata.getGridFsId(), metadata.getFilename(), userId);
+        }
+    }
+
+    /**
+     * Drops renditions being generated for a file no photo references, so that they are never stored.
+     */
+    private void discardRenditions(CompletableFuture<GeneratedRenditions> renditions, String gridFsId) {
+        if (renditions != null) {
+            renditions.cancel(false);
+            renditionsInProgress.remove(gridFsId);
+        }
     }
 
     /**
-     * Generates and uploads a thumbnail to GridFS.
+     * Releases and deletes a file stored for a photo whose metadata could not be saved. A failure is only logged,
+     * so that it does not hide the failed save.
      */
-    private ObjectId uploadThumbnailToGridFS(PhotoMetadata metadata, InputStream thumbnailStream, String userId) throws IOException {
-        ByteArrayOutputStream thumbnailOutput = generateThumbnail(thumbnailStream);
-        return gridFSBucket.uploadFromStream("thumbnail_" + metadata.getFilename(),
-                new ByteArrayInputStream(thumbnailOutput.toByteArray()),
+    private void deleteUnsavedFile(String fileId) {
+        try {
+            blobService.release(Map.of(fileId, 1));
+            storageCounterService.recordStoredBytes(-blobStorageService.delete(List.of(fileId)));
+            logger.info("Deleted file with ID: {} of a photo that was not saved", fileId);
+        } catch (RuntimeException e) {
+            logger.error("Failed to delete file with ID: {} of a photo that was not saved", fileId, e);
+        }
+    }
+
+    private static MessageDigest newContentDigest() {
+        try {
+            return MessageDigest.getInstance(CONTENT_HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Generate renditions for photos whose renditions were not generated during the upload,
+     * because no worker was free at the time or the application was restarted in the meantime.
+     * The originals are read back from the blob store.
+     */
+    public void generatePendingThumbnails() {
+        int idleWorkers = imageProcessingService.getIdleWorkers();
+        if (idleWorkers == 0) {
+            return;
+        }
+
+        Query query = new Query(Criteria.where("thumbnailStatus").is(ThumbnailStatus.PENDING)
+                .and("gridFsId").nin(renditionsInProgress))
+                .limit(idleWorkers);
+        query.fields().include("gridFsId", "filename", "userId");
+
+        for (PhotoMetadata photo : mongoTemplate.find(query, PhotoMetadata.class)) {
+            String gridFsId = photo.getGridFsId();
+            if (renditionsInProgress.contains(gridFsId)) {
+                // Another photo sharing the same file is already being processed
+                continue;
+            }
+            try {
+                // Nothing else waits for the job, so it can queue for memory taken by other decodes
+                CompletableFuture<GeneratedRenditions> renditions = imageProcessingService.generateRenditionsAsync(
+                        () -> blobStorageService.get(gridFsId).getInputStream(), true);
+                storeRenditionsWhenGenerated(renditions, gridFsId, photo.getFilename(), photo.getUserId());
+            } catch (RejectedExecutionException e) {
+                // Workers are busy with new uploads, the rest is picked up on the next run
+                break;
+            }
+        }
+    }
+
+    /**
+     * Starts decoding the renditions from the pipe on a worker thread.
+     * The decoder does not wait for memory, as the upload would be held up by the full pipe in the meantime.
+     *
+     * @return future of the renditions or null if no worker is free at the moment
+     */
+    private CompletableFuture<GeneratedRenditions> startRenditionGeneration(BoundedPipe decoderPipe) {
+        try {
+            return imageProcessingService.generateRenditionsAsync(decoderPipe::source, false);
+        } catch (RejectedExecutionException e) {
+            logger.debug("No free rendition worker, the renditions will be generated by the pending thumbnail job");
+            return null;
+        }
+    }
+
+    /**
+     * Stores the renditions once they are generated and attaches them to all photos referencing the given file.
+     * If the generation fails, the photos are marked as having no thumbnail. If it was postponed
+     * because there was not enough memory, the photos stay pending for the pending thumbnail job.
+     */
+    private void storeRenditionsWhenGenerated(CompletableFuture<GeneratedRenditions> renditions, String gridFsId, String filename, String userId) {
+        renditionsInProgress.add(gridFsId);
+        renditions.whenComplete((generated, error) -> {
+            try {
+                Query photosWithFile = new Query(Criteria.where("gridFsId").is(gridFsId));
+                if (error != null && error.getCause() instanceof ImageMemoryGovernor.MemoryUnavailableException) {
+                    logger.debug("Renditions for file with ID: {} postponed until memory is available", gridFsId);
+                    return;
+                }
+                if (error != null) {
+                    logger.error("Failed to generate renditions for file with ID: {}", gridFsId, error);
+                    mongoTemplate.updateMulti(photosWithFile, new Update().set("thumbnailStatus", ThumbnailStatus.FAILED), PhotoMetadata.class);
+                    return;
+                }
+                Map<String, String> renditionIds = new LinkedHashMap<>();
+                long storedBytes = 0;
+                for (Map.Entry<String, byte[]> rendition : generated.getRenditions().entrySet()) {
+                    Optional<String> packedId = THUMBNAIL_RENDITION.equals(rendition.getKey())
+                            ? thumbnailPackStore.store(renditionFilename(rendition.getKey(), filename), rendition.getValue())
+                            : Optional.empty();
+                    if (packedId.isPresent()) {
+                        renditionIds.put(rendition.getKey(), packedId.get());
+                    } else {
+                        renditionIds.put(rendition.getKey(), uploadRenditionToGridFS(rendition.getKey(), filename, rendition.getValue(), userId).toString());
+                        storedBytes += rendition.getValue().length;
+                    }
+                }
+                logger.info("Uploaded renditions {} for file with ID: {}", renditionIds, gridFsId);
+                storageCounterService.recordStoredBytes(storedBytes);
+                mongoTemplate.updateMulti(photosWithFile, new Update()
+                        .set("renditions", renditionIds)
+                        .set("thumbnailId", renditionIds.get(THUMBNAIL_RENDITION))
+                        .set("thumbnailStatus", ThumbnailStatus.READY)
+                        .set("preview", generated.getPreview()), PhotoMetadata.class);
+            } catch (MongoException e) {
+                logger.error("Failed to store renditions for file with ID: {}", gridFsId, e);
+            } finally {
+                renditionsInProgress.remove(gridFsId);
+            }
+        });
+    }
+
+    /**
+     * Uploads a generated rendition to GridFS.
+     */
+    private ObjectId uploadRenditionToGridFS(String renditionName, String filename, byte[] rendition, String userId) {
+        return gridFSBucket.uploadFromStream(renditionFilename(renditionName, filename),
+                new ByteArrayInputStream(rendition),
                 new GridFSUploadOptions().metadata(new org.bson.Document("userId", userId)));
     }
 
+    /**
+     * Filename of a rendition of the photo with the given filename. Renditions are always encoded as JPEG.
+     */
+    private static String renditionFilename(String renditionName, String filename) {
+        int extensionStart = filename.lastIndexOf('.');
+        String baseName = extensionStart > 0 ? filename.substring(0, extensionStart) : filename;
+        return renditionName + "_" + baseName + ".jpg";
+    }
+
+    /**
+     * Deletes the photos matching the given criteria and releases their files. Files no longer referenced
+     * by any photo are deleted from the blob stores in bulk, together with their renditions and cached derivatives.
+     * <p>
+     * The number of round trips does not depend on the number of photos.
+     */
+    private void deletePhotosAndReleaseFiles(Criteria photosToDelete) {
+        // Photos sharing a file share its renditions, so the first photo of each file is representative
+        Aggregation referencedFiles = newAggregation(
+                match(photosToDelete),
+                group("gridFsId").count().as("references").first("renditions").as("renditions").first("thumbnailId").as("thumbnailId"));
+        List<org.bson.Document> files = mongoTemplate.aggregate(referencedFiles, PhotoMetadata.class, org.bson.Document.class).getMappedResults();
+
+        // The metadata is deleted before the references are released, so that a failure in between
+        // leaves unreferenced files behind rather than photos without files
+        storageCounterService.recordRemoval(photosToDelete);
+        userTagService.recordRemoval(photosToDelete);
+        mongoTemplate.remove(new Query(photosToDelete), PhotoMetadata.class);
+
+        Map<String, Integer> references = new HashMap<>();
+        files.stream()
+                .filter(file -> file.getString("_id") != null)
+                .forEach(file -> references.put(file.getString("_id"), file.getInteger("references")));
+        Set<String> unreferenced = new HashSet<>(blobService.release(references));
+        if (unreferenced.isEmpty()) {
+            return;
+        }
+
+        List<ObjectId> fileIds = new ArrayList<>();
+        for (org.bson.Document file : files) {
+            if (!unreferenced.contains(file.getString("_id"))) {
+                continue;
+            }
+            fileIds.add(new ObjectId(file.getString("_id")));
+            org.bson.Document renditions = file.get("renditions", org.bson.Document.class);
+            if (renditions != null) {
+                renditions.values().forEach(renditionId -> fileIds.add(new ObjectId((String) renditionId)));
+            }
+            if (file.getString("thumbnailId") != null) {
+                // Photos uploaded before renditions were introduced only have a thumbnail
+                fileIds.add(new ObjectId(file.getString("thumbnailId")));
+            }
+        }
+        List<String> deletedFileIds = fileIds.stream().map(ObjectId::toHexString).toList();
+        // Renditions are kept in GridFS, which is one of the blob stores
+        long deletedBytes = blobStorageService.delete(deletedFileIds);
+        // Thumbnails are stored either in the packs or in GridFS, deleting them from both is harmless
+        thumbnailPackStore.delete(deletedFileIds);
+        thumbnailCache.invalidate(deletedFileIds);
+        derivativeService.deleteDerivatives(unreferenced);
+        storageCounterService.recordStoredBytes(-deletedBytes);
+        logger.info("Deleted {} files no longer referenced by any photo", unreferenced.size());
+    }
+
     /**
      * Sends a message to RabbitMQ with the given photo ID.
      */
@@ -127,65 +458,77 @@ public class PhotoService {
         rabbitTemplate.convertAndSend(RABBIT_REQUEST_QUEUE, createJsonMessage(photoId));
     }
 
-    private void incrementPhotoCount(String albumId) {
-        // do nothing
+    /**
+     * Get a stored file as a resource that is opened only once its content is read, and can be read several times.
+     * Thumbnails in the thumbnail packs are read from there, other files from the blob store holding them.
+     *
+     * @param fileId the ID of the file
+     * @return the resource of the file
+     * @throws FileNotFoundException if the file is not found
+     */
+    public Resource getFileResource(String fileId) throws FileNotFoundException {
+        if (fileId == null || !ObjectId.isValid(fileId)) {
+            logger.error("Invalid Photo ID: {}", fileId);
+            throw new IllegalArgumentException("Invalid Photo ID format");
+        }
+        Optional<StoredFile> packed = thumbnailPackStore.read(fileId);
+        if (packed.isPresent()) {
+            return new StoredFileResource(packed.get());
+        }
+        return blobStorageService.get(fileId);
     }
 
     /**
-     * Download a photo from the database
+     * Get the stored original of a photo as a resource that is opened only once its content is read, and can be
+     * read several times. Originals read from GridFS are copied to the original cache once their content is read.
      *
-     * @param gridFsId the ID of the photo in GridFS
-     * @return response containing the photo download stream and the GridFS file
-     * @throws FileNotFoundException if the photo is not found
+     * @param gridFsId the ID of the original
+     * @return the resource of the original
+     * @throws FileNotFoundException if the original is not found
      */
-    public PhotoDownloadResponse downloadPhoto(String gridFsId) throws FileNotFoundException {
-        if (gridFsId == null || gridFsId.isBlank()) {
+    public Resource getOriginalResource(String gridFsId) throws FileNotFoundException {
+        if (gridFsId == null || !ObjectId.isValid(gridFsId)) {
             logger.error("Invalid Photo ID: {}", gridFsId);
-            throw new IllegalArgumentException("Photo ID cannot be null or empty");
-        }
-        try {
-            ObjectId objectId = new ObjectId(gridFsId);
-            GridFSDownloadStream fileStream = gridFSBucket.openDownloadStream(objectId);
-            return new PhotoDownloadResponse(fileStream, gridFSBucket.find(new BasicDBObject("_id", objectId)).first());
-        } catch (IllegalArgumentException e) {
-            logger.error("Invalid ObjectId format for Photo ID: {}", gridFsId, e);
-            throw new IllegalArgumentException("Invalid Photo ID format", e);
-        } catch (MongoGridFSException e) {
-            logger.error("File with ID {} not found in GridFS", gridFsId, e);
-            throw new FileNotFoundException("Photo not found");
-        } catch (Exception e) {
-            logger.error("Unexpected error while retrieving photo with ID: {}", gridFsId, e);
-            throw new RuntimeException("An unexpected error occurred", e);
+            throw new IllegalArgumentException("Invalid Photo ID format");
         }
+        return blobStorageService.getOriginal(gridFsId);
     }
 
     /**
-     * Download a thumbnail from the database
+     * Get a thumbnail. Thumbnails in the thumbnail packs are read from there, thumbnails stored in GridFS
+     * are read from the thumbnail cache if possible and cached otherwise. Cached thumbnails are read from
+     * the cache when the returned resource is read, so its streams have to be closed.
      *
-     * @param thumbnailId the ID of the thumbnail in GridFS
-     * @return response containing the thumbnail download stream and the GridFS file
-     * @throws FileNotFoundException if the thumbnail is not found
+     * @param thumbnailId the ID of the thumbnail
+     * @return the thumbnail
+     * @throws IOException if the thumbnail is not found or could not be read
      */
-    public PhotoDownloadResponse downloadThumbnail(String thumbnailId) throws FileNotFoundException {
-        if (thumbnailId == null || thumbnailId.isBlank()) {
-            logger.error("Invalid Thumbnail ID: {}", thumbnailId);
-            throw new IllegalArgumentException("Thumbnail ID cannot be null or empty");
+    public Resource getThumbnail(String thumbnailId) throws IOException {
+        Optional<StoredFile> packed = thumbnailPackStore.read(thumbnailId);
+        if (packed.isPresent()) {
+            return new StoredFileResource(packed.get());
         }
-        try {
-            ObjectId objectId = new ObjectId(thumbnailId);
-            GridFSDownloadStream fileStream = gridFSBucket.openDownloadStream(objectId);
-            GridFSFile gridFSFile = gridFSBucket.find(new BasicDBObject("_id", objectId)).first();
-            return new PhotoDownloadResponse(fileStream, gridFSFile);
-        } catch (IllegalArgumentException e) {
-            logger.error("Invalid ObjectId format for Thumbnail ID: {}", thumbnailId, e);
-            throw new IllegalArgumentException("Invalid Thumbnail ID format", e);
-        } catch (MongoGridFSException e) {
-            logger.error("File with ID {} not found in GridFS", thumbnailId, e);
-            throw new FileNotFoundException("Thumbnail not found");
-        } catch (Exception e) {
-            logger.error("Unexpected error while retrieving thumbnail with ID: {}", thumbnailId, e);
-            throw new RuntimeException("An unexpected error occurred", e);
+        Resource cached = thumbnailCache.get(thumbnailId);
+        if (cached != null) {
+            return cached;
         }
+        Resource resource = getFileResource(thumbnailId);
+        StoredFile thumbnail;
+        try (InputStream inputStream = resource.getInputStream()) {
+            thumbnail = new StoredFile(resource.getFilename(), resource.lastModified(), inputStream.readAllBytes());
+        }
+        thumbnailCache.put(thumbnailId, thumbnail);
+        return new StoredFileResource(thumbnail);
+    }
+
+    /**
+     * Check if the rendition with the given name is generated for uploaded photos.
+     *
+     * @param rendition the name of the rendition
+     * @return true if the rendition is supported
+     */
+    public boolean isRenditionSupported(String rendition) {
+        return imageProcessingService.isRenditionSupported(rendition);
     }
 
     /**
@@ -196,18 +539,125 @@ public class PhotoService {
      */
     public void movePhotoToAlbum(String photoId, String albumId) {
         PhotoMetadata metadata = photoRepository.findById(photoId).orElseThrow(() -> new IllegalArgumentException(FILE_NOT_FOUND));
+        String currentAlbumId = metadata.getAlbumId();
         metadata.setAlbumId(albumId);
         mongoTemplate.save(metadata);
+        storageCounterService.recordMoved(currentAlbumId, albumId, metadata.getSize());
     }
 
     /**
      * Retrieve the metadata of all photos in a given album
+     * with only the fields needed to read their files: the filename, the ID of the file and the upload date
      *
      * @param albumId the ID of the album
      * @return a list of photo metadata
      */
     public List<PhotoMetadata> getAllPhotoMetadataInAlbum(String albumId) {
-        return mongoTemplate.find(new Query(Criteria.where("albumId").is(albumId)), PhotoMetadata.class);
+        Query query = new Query(Criteria.where("albumId").is(albumId));
+        query.fields().include("filename", "gridFsId", "uploadDate");
+        return mongoTemplate.find(query, PhotoMetadata.class);
+    }
+
+    /**
+     * Retrieve a page of the metadata of the photos in a given album, sorted by a field and then by ID.
+     * <p>
+     * The page starts right after the cursor, which is found in the index on the album and the field,
+     * so pages deep into a large album are read as fast as the first one. Photos added or removed
+     * in the meantime do not shift the following pages.
+     *
+     * @param albumId   the ID of the album
+     * @param sort      the field to sort by
+     * @param ascending whether the photos are sorted in ascending order
+     * @param cursor    the position after which the page starts, or null for the first page
+     * @param limit     the number of photos on the page, or null for the default, capped at the maximum page size
+     * @param fields    the fields of the summaries, or null for all of them
+     * @return the page with the cursor of the next page
+     */
+    public PhotoPage getPhotoMetadataPageInAlbum(String albumId, PhotoSort sort, boolean ascending, PageCursor cursor, Integer limit,
+                                                 Set<String> fields) {
+        int pageSize = limit == null ? defaultPageSize : Math.min(limit, maxPageSize);
+        Criteria criteria = Criteria.where("albumId").is(albumId);
+        if (cursor != null) {
+            criteria = criteria.andOperator(after(sort.getField(), ascending, cursor.getValue(), cursor.getId()));
+        }
+        Sort.Direction direction = ascending ? Sort.Direction.ASC : Sort.Direction.DESC;
+        // One more than the page, to find out if there is a next page
+        Query query = new Query(criteria).with(Sort.by(direction, sort.getField(), "_id")).limit(pageSize + 1);
+        // The sort field is read for the cursor even if it is not requested
+        List<org.bson.Document> photos = findSummaryDocuments(query, fields, sort.getField());
+        if (photos.size() <= pageSize) {
+            return new PhotoPage(toSummaries(photos, fields), null);
+        }
+        photos = photos.subList(0, pageSize);
+        org.bson.Document last = photos.get(pageSize - 1);
+        String nextCursor = new PageCursor(sort.getField(), ascending, last.get(sort.getField()), last.getObjectId("_id")).encode();
+        return new PhotoPage(toSummaries(photos, fields), nextCursor);
+    }
+
+    /**
+     * Check if the given field can be requested in photo summaries.
+     *
+     * @param field the name of the field
+     * @return true if the field is known
+     */
+    public boolean isSummaryField(String field) {
+        return SUMMARY_FIELDS.containsKey(field);
+    }
+
+    /**
+     * Find the photos reading only the fields of the summaries, and the additional fields, as raw documents,
+     * which are cheaper to decode than the full metadata.
+     */
+    private List<org.bson.Document> findSummaryDocuments(Query query, Set<String> fields, String... additionalFields) {
+        for (String field : fields == null ? SUMMARY_FIELDS.keySet() : fields) {
+            query.fields().include(SUMMARY_FIELDS.get(field));
+        }
+        query.fields().include(additionalFields);
+        return mongoTemplate.find(query, org.bson.Document.class, mongoTemplate.getCollectionName(PhotoMetadata.class));
+    }
+
+    private static List<PhotoSummary> toSummaries(List<org.bson.Document> photos, Set<String> fields) {
+        return photos.stream().map(photo -> toSummary(photo, fields == null ? SUMMARY_FIELDS.keySet() : fields)).toList();
+    }
+
+    private static PhotoSummary toSummary(org.bson.Document photo, Set<String> fields) {
+        PhotoSummary summary = new PhotoSummary(photo.getObjectId("_id").toHexString());
+        org.bson.Document preview = photo.get("preview", org.bson.Document.class);
+        for (String field : fields) {
+            switch (field) {
+                case "filename" -> summary.filename(photo.getString("filename"));
+                case "contentType" -> summary.contentType(photo.getString("contentType"));
+                case "size" -> summary.size(photo.get("size") instanceof Number size ? size.longValue() : null);
+                case "uploadDate" -> summary.uploadDate(photo.getDate("uploadDate"));
+                case "albumId" -> summary.albumId(photo.getString("albumId"));
+                case "tags" -> summary.tags(photo.containsKey("tags") ? new LinkedHashSet<>(photo.getList("tags", String.class)) : null);
+                case "thumbnailId" -> summary.thumbnailId(photo.getString("thumbnailId"));
+                case "thumbnailStatus" -> summary.thumbnailStatus(photo.containsKey("thumbnailStatus")
+                        ? ThumbnailStatus.valueOf(photo.getString("thumbnailStatus")) : null);
+                case "width" -> summary.width(preview != null ? preview.getInteger("width") : null);
+                case "height" -> summary.height(preview != null ? preview.getInteger("height") : null);
+                case "dominantColor" -> summary.dominantColor(preview != null ? preview.getString("dominantColor") : null);
+                case "blurHash" -> summary.blurHash(preview != null ? preview.getString("blurHash") : null);
+                default -> {
+                    // The ID is always included
+                }
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Criteria matching the documents after the given position in the sort order. Missing values sort first.
+     */
+    private static Criteria after(String field, boolean ascending, Object value, ObjectId id) {
+        if (value == null) {
+            return ascending
+                    ? new Criteria().orOperator(Criteria.where(field).ne(null), Criteria.where(field).is(null).and("_id").gt(id))
+                    : Criteria.where(field).is(null).and("_id").lt(id);
+        }
+        return ascending
+                ? new Criteria().orOperator(Criteria.where(field).gt(value), Criteria.where(field).is(value).and("_id").gt(id))
+                : new Criteria().orOperator(Criteria.where(field).lt(value), Criteria.where(field).is(value).and("_id").lt(id));
     }
 
     /**
@@ -220,6 +670,16 @@ public class PhotoService {
         return photoRepository.findById(photoId);
     }
 
+    /**
+     * Retrieve the metadata of photos by their IDs in a single query
+     *
+     * @param photoIds the IDs of the photos
+     * @return the metadata of the photos that exist
+     */
+    public List<PhotoMetadata> getPhotosByIds(Collection<String> photoIds) {
+        return photoRepository.findAllById(photoIds);
+    }
+
     /**
      * Move photos from one album to another
      *
@@ -228,18 +688,44 @@ public class PhotoService {
      */
     public void movePhotosToAlbum(String albumId, String targetAlbumId) {
         mongoTemplate.updateMulti(new Query(Criteria.where("albumId").is(albumId)),
-                new org.springframework.data.mongodb.core.query.Update().set("albumIdalbumId", targetAlbumId), PhotoMetadata.class);
+                new Update().set("albumId", targetAlbumId), PhotoMetadata.class);
+        storageCounterService.recordAlbumMoved(albumId, targetAlbumId);
     }
 
     /**
      * Retrieve all tags in user's photos
      *
      * @param userId the ID of the user
-     * @return a list of tags
+     * @return a list of tags, most used first
      */
     public List<String> getAllTagsForUser(String userId) {
-        List<PhotoMetadata> photos = mongoTemplate.find(new Query(Criteria.where("userId").is(userId)), PhotoMetadata.class);
-        return photos.stream().map(PhotoMetadata::getTags).toList().stream().distinct().flatMap(Collection::stream).distinct().collect(Collectors.toList());
+        return new ArrayList<>(getTagFacets(userId, null).keySet());
+    }
+
+    /**
+     * Count the user's photos by tag, in all photos or in an album. The counts of all photos are read from the
+     * tags of the user, the photos of an album are counted by the database, so only the counts are transferred.
+     *
+     * @param userId  the ID of the user
+     * @param albumId the ID of the album, or null for all photos
+     * @return the number of photos by tag, most used first
+     */
+    public Map<String, Long> getTagFacets(String userId, String albumId) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        if (albumId == null) {
+            userTagService.getTags(userId).forEach(tag -> counts.put(tag.getTag(), tag.getCount()));
+            return counts;
+        }
+        Aggregation facets = newAggregation(
+                match(Criteria.where("userId").is(userId).and("albumId").is(albumId)),
+                project("tags"),
+                unwind("tags"),
+                group("tags").count().as("count"),
+                sort(Sort.by(Sort.Order.desc("count"), Sort.Order.asc("_id"))));
+        for (org.bson.Document facet : mongoTemplate.aggregate(facets, PhotoMetadata.class, org.bson.Document.class)) {
+            counts.put(facet.getString("_id"), ((Number) facet.get("count")).longValue());
+        }
+        return counts;
     }
 
     /**
@@ -249,20 +735,37 @@ public class PhotoService {
      * @param tag    the tag
      * @return a list of photo metadata
      */
-    public List<PhotoMetadata> getPhotosWithTag(String userId, String tag) {
-        return mongoTemplate.find(new Query(Criteria.where("userId").is(userId).and("tags").is(tag)), PhotoMetadata.class);
+    public List<PhotoSummary> getPhotosWithTag(String userId, String tag, Set<String> fields) {
+        Query query = new Query(Criteria.where("userId").is(userId).and("tags").is(tag));
+        return toSummaries(findSummaryDocuments(query, fields), fields);
     }
 
     /**
-     * Retrieve all photo metadata with a given tag in a given album
+     * Retrieve a page of the metadata of the user's photos with a given tag in a given album, newest first.
+     * The first page follows the preview of the album in {@link #getPhotoMetadataByTagGroupedByAlbums}.
      *
      * @param userId the ID of the user
      * @param tag    the tag
      * @param album  the album
-     * @return a list of photo metadata
+     * @param cursor the position after which the page starts, or null for the first page
+     * @param limit  the number of photos on the page, or null for the default, capped at the maximum page size
+     * @param fields the fields of the summaries, or null for all of them
+     * @return the page with the cursor of the next page
      */
-    public List<PhotoMetadata> getPhotosWithTagInAlbum(String userId, String tag, Album album) {
-        return mongoTemplate.find(new Query(Criteria.where("userId").is(userId).and("tags").is(tag).and("albumId").is(album.getId())), PhotoMetadata.class);
+    public PhotoPage getPhotosWithTagInAlbum(String userId, String tag, Album album, PageCursor cursor, Integer limit, Set<String> fields) {
+        int pageSize = limit == null ? defaultPageSize : Math.min(limit, maxPageSize);
+        Criteria criteria = Criteria.where("userId").is(userId).and("tags").is(tag).and("albumId").is(album.getId());
+        if (cursor != null) {
+            criteria = criteria.andOperator(after("uploadDate", false, cursor.getValue(), cursor.getId()));
+        }
+        // One more than the page, to find out if there is a next page
+        Query query = new Query(criteria).with(Sort.by(Sort.Direction.DESC, "uploadDate", "_id")).limit(pageSize + 1);
+        List<org.bson.Document> photos = findSummaryDocuments(query, fields, "uploadDate");
+        if (photos.size() <= pageSize) {
+            return new PhotoPage(toSummaries(photos, fields), null);
+        }
+        photos = photos.subList(0, pageSize);
+        return new PhotoPage(toSummaries(photos, fields), newestFirstCursor(photos.get(pageSize - 1)));
     }
 
     /**
@@ -270,11 +773,10 @@ public class PhotoService {
      *
      * @param userId the ID of the user
      * @param album  the album
-     * @return a list of tags
+     * @return a list of tags, most used first
      */
     public Either<String, List<String>> getAllTagsForUserInAlbum(String userId, Album album) {
-        List<PhotoMetadata> photos = mongoTemplate.find(new Query(Criteria.where("userId").is(userId).and("albumId").is(album.getId())), PhotoMetadata.class);
-        return Either.ofRight(photos.stream().map(PhotoMetadata::getTags).toList().stream().distinct().flatMap(Collection::stream).distinct().collect(Collectors.toList()));
+        return Either.ofRight(new ArrayList<>(getTagFacets(userId, album.getId()).keySet()));
     }
 
     /**
@@ -284,6 +786,7 @@ public class PhotoService {
      * @param targetAlbumId the ID of the target album
      * @param userId        the ID of the user
      * @return the photo metadata
+     * @throws IllegalStateException if the file of the photo is being deleted
      */
     public String duplicatePhoto(String photoId, String targetAlbumId, String userId) {
         // Fetch the metadata of the original photo
@@ -295,7 +798,19 @@ public class PhotoService {
                 .userId(userId)
                 .albumId(targetAlbumId);
 
-        mongoTemplate.save(newMetadata);
+        // The file is referenced before the copy is saved, so it cannot be deleted in between
+        if (!blobService.retain(newMetadata.getGridFsId())) {
+            throw new IllegalStateException("The photo is being deleted");
+        }
+        try {
+            mongoTemplate.save(newMetadata);
+        } catch (RuntimeException e) {
+            // Files no longer referenced are left to the orphan collector
+            blobService.release(Map.of(newMetadata.getGridFsId(), 1));
+            throw e;
+        }
+        storageCounterService.recordAdded(userId, targetAlbumId, newMetadata.getSize());
+        userTagService.recordAdded(newMetadata);
 
         return newMetadata.getId();
     }
@@ -316,20 +831,8 @@ public class PhotoService {
      * @param albumId the ID of the album
      */
     public void deleteAllPhotosInAlbum(String albumId) {
-        // Since photo duplication is supported, we cannot just delete the files from GridFS
-        List<PhotoMetadata> photosToBeDeleted = mongoTemplate.find(new Query(Criteria.where("albumId").is(albumId)), PhotoMetadata.class);
-
-        // TODO: This is a temporary solution, as it is not efficient to check for each photo with a call to the database
-        // Check if there are any other photos, where the gridFsId is the same as the one to be deleted
-        photosToBeDeleted.forEach(photo -> {
-            if (!mongoTemplate.exists(new Query(Criteria.where("gridFsId").is(photo.getGridFsId()).and("albumId").ne(albumId)), PhotoMetadata.class)) {
-                // If there are no other photos with the same gridFsId, delete the file from GridFS
-                gridFSBucket.delete(new ObjectId(photo.getGridFsId()));
-            }
-        });
-
-        // The metadata can be deleted safely
-        mongoTemplate.remove(new Query(Criteria.where("albumId").is(albumId)), PhotoMetadata.class);
+        // Since photo duplication is supported, files are only deleted once no other photo references them
+        deletePhotosAndReleaseFiles(Criteria.where("albumId").is(albumId));
     }
 
     /**
@@ -338,17 +841,8 @@ public class PhotoService {
      * @param photoId the ID of the photo
      */
     public void deletePhotoById(String photoId) {
-        // Since photo duplication is supported, we cannot just delete the file from GridFS
-        PhotoMetadata photo = mongoTemplate.findById(photoId, PhotoMetadata.class);
-
-        // Check if there are any other photos, where the gridFsId is the same as the one to be deleted
-        if (!mongoTemplate.exists(new Query(Criteria.where("gridFsId").is(photo.getGridFsId()).and("albumId").ne(photo.getAlbumId())), PhotoMetadata.class)) {
-            // If there are no other photos with the same gridFsId, delete the file from GridFS
-            gridFSBucket.delete(new ObjectId(photo.getGridFsId()));
-        }
-
-        // The metadata can be deleted safely
-        mongoTemplate.remove(new Query(Criteria.where("id").is(photoId)), PhotoMetadata.class);
+        // Photos with the same content share the file, also within the same album
+        deletePhotosAndReleaseFiles(Criteria.where("id").is(photoId));
     }
 
     /**
@@ -358,9 +852,13 @@ public class PhotoService {
      * @param tag     the tag
      */
     public void tagPhoto(String photoId, String tag) {
-        PhotoMetadata photo = mongoTemplate.findById(photoId, PhotoMetadata.class);
-        photo.addTag(tag);
-        mongoTemplate.save(photo);
+        // Only matches if the photo does not have the tag yet, so the tag is counted once
+        Query query = new Query(Criteria.where("id").is(photoId).and("tags").ne(tag));
+        query.fields().include("userId");
+        PhotoMetadata photo = mongoTemplate.findAndModify(query, new Update().addToSet("tags", tag), PhotoMetadata.class);
+        if (photo != null) {
+            userTagService.recordTagged(photo.getUserId(), photoId, List.of(tag), List.of());
+        }
     }
 
     /**
@@ -370,9 +868,16 @@ public class PhotoService {
      * @param tags    the new tags
      */
     public void editTags(String photoId, Set<String> tags) {
-        PhotoMetadata photo = mongoTemplate.findById(photoId, PhotoMetadata.class);
-        photo.setTags(tags);
-        mongoTemplate.save(photo);
+        Query query = new Query(Criteria.where("id").is(photoId));
+        query.fields().include("userId", "tags");
+        PhotoMetadata photo = mongoTemplate.findAndModify(query, new Update().set("tags", tags), PhotoMetadata.class);
+        if (photo == null) {
+            return;
+        }
+        Set<String> previousTags = photo.getTags() != null ? photo.getTags() : Set.of();
+        userTagService.recordTagged(photo.getUserId(), photoId,
+                tags.stream().filter(tag -> !previousTags.contains(tag)).toList(),
+                previousTags.stream().filter(tag -> !tags.contains(tag)).toList());
     }
 
     /**
@@ -381,7 +886,7 @@ public class PhotoService {
      * @return the amount of photos in the system
      */
     public long getNumberOfPhotos() {
-        return mongoTemplate.count(new Query(), PhotoMetadata.class);
+        return storageCounterService.getSystemCounter().getPhotos();
     }
 
     /**
@@ -390,7 +895,7 @@ public class PhotoService {
      * @return the amount of space used in the system
      */
     public Long getSpaceUsed() {
-        return gridFSBucket.find().into(new ArrayList<>()).stream().mapToLong(GridFSFile::getLength).sum();
+        return storageCounterService.getSystemCounter().getStoredBytes();
     }
 
     /**
@@ -400,8 +905,19 @@ public class PhotoService {
      * @return the amount of space used by the album
      */
     public Long getSpaceUsedByAlbum(String albumId) {
-        return mongoTemplate.find(new Query(Criteria.where("albumId").is(albumId)), PhotoMetadata.class)
-                .stream().mapToLong(PhotoMetadata::getSize).sum();
+        return storageCounterService.getAlbumCounter(albumId).getBytes();
+    }
+
+    /**
+     * Get the amount of space used by several albums at once
+     *
+     * @param albumIds the IDs of the albums
+     * @return the amount of space used by the IDs of the albums, albums without photos may be missing
+     */
+    public Map<String, Long> getSpaceUsedByAlbums(Collection<String> albumIds) {
+        Map<String, Long> spaceUsed = new HashMap<>();
+        storageCounterService.getAlbumCounters(albumIds).forEach((albumId, counter) -> spaceUsed.put(albumId, counter.getBytes()));
+        return spaceUsed;
     }
 
     /**
@@ -410,44 +926,65 @@ public class PhotoService {
      * @param userId the ID of the user
      */
     public void deletePhotosByUser(String userId) {
-        List<PhotoMetadata> photos = mongoTemplate.find(new Query(Criteria.where("ownerId").is(userId)), PhotoMetadata.class);
-
-        // Check if there are any other photos, where the gridFsId is the same as the one to be deleted
-        for (PhotoMetadata photo : photos) {
-            if (!mongoTemplate.exists(new Query(Criteria.where("gridFsId").is(photo.getGridFsId()).and("ownerId").ne(userId)), PhotoMetadata.class)) {
-                // If there are no other photos with the same gridFsId, delete the file from GridFS
-                gridFSBucket.delete(new ObjectId(photo.getGridFsId()));
-            }
-        }
-
-        mongoTemplate.remove(new Query(Criteria.where("ownerId").is(userId)), PhotoMetadata.class);
+        deletePhotosAndReleaseFiles(Criteria.where("userId").is(userId));
     }
 
     /**
-     * Get photos that have a given tag and group them by album
+     * Get photos that have a given tag and group them by album, with the number of photos in each album and
+     * a preview of the newest ones. The rest of the photos of an album are listed in pages by
+     * {@link #getPhotosWithTagInAlbum}, starting at the cursor of the group.
+     * <p>
+     * The photos are grouped and the albums named by a single aggregation, so only the previews are transferred.
      *
      * @param tag    the tag
      * @param userId the ID of the user
-     * @return a list of DTOs containing the album ID, album name, and a list of photos
+     * @param fields the fields of the summaries, or null for all of them
+     * @return a list of DTOs containing the album ID, album name, number of photos and a preview of the photos,
+     * the albums with the most photos first
      */
-    public List<PhotoGroupedByAlbum> getPhotoMetadataByTagGroupedByAlbums(String tag, String userId) {
-        // Get photos that have a given tag and group them by album
+    public List<PhotoGroupedByAlbum> getPhotoMetadataByTagGroupedByAlbums(String tag, String userId, Set<String> fields) {
+        // The upload date and ID are read for the cursor even if they are not requested
+        org.bson.Document preview = new org.bson.Document("_id", "$_id").append("uploadDate", "$uploadDate");
+        for (String field : fields == null ? SUMMARY_FIELDS.keySet() : fields) {
+            String topLevelField = SUMMARY_FIELDS.get(field).split("\\.")[0];
+            preview.append(topLevelField, "$" + topLevelField);
+        }
         // Photos must belong to the user (in this case they do not include shared photos)
-        List<PhotoMetadata> photos = mongoTemplate.find(new Query(Criteria.where("userId").is(userId).and("tags").is(tag)), PhotoMetadata.class);
-
-        // Group photos by album
-        Map<String, List<PhotoMetadata>> photosByAlbum = photos.stream()
-                .collect(Collectors.groupingBy(PhotoMetadata::getAlbumId));
+        Aggregation grouped = newAggregation(
+                match(Criteria.where("userId").is(userId).and("tags").is(tag)),
+                context -> new org.bson.Document("$group", new org.bson.Document("_id", "$albumId")
+                        .append("count", new org.bson.Document("$sum", 1))
+                        .append("photos", new org.bson.Document("$topN", new org.bson.Document("n", tagPreviewSize)
+                                .append("sortBy", new org.bson.Document("uploadDate", -1).append("_id", -1))
+                                .append("output", preview)))),
+                context -> new org.bson.Document("$sort", new org.bson.Document("count", -1).append("_id", 1)),
+                // Album IDs are stored as strings in the photos and as object IDs in the albums
+                context -> new org.bson.Document("$lookup", new org.bson.Document("from", mongoTemplate.getCollectionName(Album.class))
+                        .append("let", new org.bson.Document("albumId", new org.bson.Document("$convert", new org.bson.Document("input", "$_id")
+                                .append("to", "objectId").append("onError", null).append("onNull", null))))
+                        .append("pipeline", List.of(
+                                new org.bson.Document("$match", new org.bson.Document("$expr",
+                                        new org.bson.Document("$eq", List.of("$_id", "$$albumId")))),
+                                new org.bson.Document("$project", new org.bson.Document("name", 1))))
+                        .append("as", "album")));
 
-        // Get album names (since user is the owner of the photos, no need to check permissions)
-        // This could/should have been done by the album service
-        Map<String, String> albumNames = mongoTemplate.find(new Query(Criteria.where("id").in(photosByAlbum.keySet())), Album.class)
-                .stream().collect(Collectors.toMap(Album::getId, Album::getName));
+        List<PhotoGroupedByAlbum> groups = new ArrayList<>();
+        for (org.bson.Document group : mongoTemplate.aggregate(grouped, PhotoMetadata.class, org.bson.Document.class)) {
+            List<org.bson.Document> photos = group.getList("photos", org.bson.Document.class);
+            List<org.bson.Document> album = group.getList("album", org.bson.Document.class);
+            long count = ((Number) group.get("count")).longValue();
+            String nextCursor = count > photos.size() ? newestFirstCursor(photos.get(photos.size() - 1)) : null;
+            groups.add(new PhotoGroupedByAlbum(group.getString("_id"), album.isEmpty() ? null : album.get(0).getString("name"),
+                    count, toSummaries(photos, fields), nextCursor));
+        }
+        return groups;
+    }
 
-        // Create DTOs
-        return photosByAlbum.entrySet().stream()
-                .map(entry -> new PhotoGroupedByAlbum(entry.getKey(), albumNames.get(entry.getKey()), entry.getValue()))
-                .collect(Collectors.toList());
+    /**
+     * Cursor of the photos after the given one, in the order of the newest photos first.
+     */
+    private static String newestFirstCursor(org.bson.Document photo) {
+        return new PageCursor("uploadDate", false, photo.get("uploadDate"), photo.getObjectId("_id")).encode();
     }
 
     private String createJsonMessage(String photoId) {
@@ -460,23 +997,6 @@ public class PhotoService {
         }
     }
 
-    private ByteArrayOutputStream generateThumbnail(InputStream inputStream) throws IOException {
-        ByteArrayOutputStream thumbnailOutput = new ByteArrayOutputStream();
-        try {
-            Thumbnails.of(inputStream)
-                    .size(200, 200)
-                    .crop(Positions.CENTER)
-                    .outputQuality(1.0)
-                    .outputFormat("jpg")
-                    .toOutputStream(thumbnailOutput);
-        } catch (IOException e) {
-            logger.error("Error generating thumbnail: {}", e.getMessage());
-            throw e;
-        }
-        logger.info("Generated thumbnail");
-        return thumbnailOutput;
-    }
-
     private PhotoMetadata extractDataFromFile(MultipartFile file) {
         String filename = Objects.requireNonNull(file.getOriginalFilename());
         String contentType = file.getContentType();
@@ -499,6 +1019,10 @@ public class PhotoService {
                 .size(originalMetadata.getSize())
                 .uploadDate(Date.from(Instant.now()))
                 .thumbnailId(originalMetadata.getThumbnailId())
+                .thumbnailStatus(originalMetadata.getThumbnailStatus())
+                .contentHash(originalMetadata.getContentHash())
+                .renditions(originalMetadata.getRenditions())
+                .preview(originalMetadata.getPreview())
                 .tags(originalMetadata.getTags())
                 .gridFs(originalMetadata.getGridFsId());
     }
@@ -0,0 +1,23 @@
+package dev.kapiaszczyk.mpp.services;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically recomputes the storage counters from the photos and the files in GridFS.
+ */
+@Component
+public class StorageCounterReconciliationJob {
+
+    private final StorageCounterService storageCounterService;
+
+    public StorageCounterReconciliationJob(StorageCounterService storageCounterService) {
+        this.storageCounterService = storageCounterService;
+    }
+
+    @Scheduled(initialDelayString = "${mpp-core.storage-counters.reconciliation-interval}", fixedDelayString = "${mpp-core.storage-counters.reconciliation-interval}")
+    public void reconcileStorageCounters() {
+        storageCounterService.reconcile();
+    }
+
+}
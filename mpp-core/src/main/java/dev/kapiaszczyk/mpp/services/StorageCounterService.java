@@ -0,0 +1,236 @@
+package dev.kapiaszczyk.mpp.services;
+
+import dev.kapiaszczyk.mpp.models.database.PhotoMetadata;
+import dev.kapiaszczyk.mpp.models.database.StorageCounter;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.MergeOperation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.group;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.newAggregation;
+
+/**
+ * Service responsible for the number and size of photos in the system, of every user and in every album.
+ * <p>
+ * The counters are changed atomically with $inc whenever photos are added, moved or deleted, so reading
+ * them never requires scanning the photos or the files. The reconciliation job recomputes them from
+ * scratch, correcting any drift.
+ */
+@Service
+public class StorageCounterService {
+
+    private static final Logger logger = LoggerFactory.getLogger(StorageCounterService.class);
+    private static final String SYSTEM = "system";
+    private static final String USER_PREFIX = "user:";
+    private static final String ALBUM_PREFIX = "album:";
+
+    @Autowired
+    private final MongoTemplate mongoTemplate;
+    @Autowired
+    private final BlobStorageService blobStorageService;
+
+    public StorageCounterService(MongoTemplate mongoTemplate, BlobStorageService blobStorageService) {
+        this.mongoTemplate = mongoTemplate;
+        this.blobStorageService = blobStorageService;
+    }
+
+    @PostConstruct
+    public void initialize() {
+        if (mongoTemplate.findById(SYSTEM, StorageCounter.class) == null) {
+            // First start with counters, they are computed from the existing photos
+            reconcile();
+        }
+    }
+
+    /**
+     * Count a photo added by upload or duplication.
+     *
+     * @param userId  the ID of the user the photo belongs to
+     * @param albumId the ID of the album the photo was added to
+     * @param bytes   the size of the photo
+     */
+    public void recordAdded(String userId, String albumId, long bytes) {
+        BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, StorageCounter.class);
+        increment(operations, SYSTEM, bytes, 1);
+        increment(operations, USER_PREFIX + userId, bytes, 1);
+        increment(operations, ALBUM_PREFIX + albumId, bytes, 1);
+        operations.execute();
+    }
+
+    /**
+     * Count photos about to be deleted. Must be called before the photos are removed.
+     *
+     * @param photosToDelete the criteria matching the photos
+     */
+    public void recordRemoval(Criteria photosToDelete) {
+        Aggregation removed = newAggregation(
+                match(photosToDelete),
+                group("userId", "albumId").sum("size").as("bytes").count().as("photos"));
+        List<Document> groups = mongoTemplate.aggregate(removed, PhotoMetadata.class, Document.class).getMappedResults();
+        if (groups.isEmpty()) {
+            return;
+        }
+        BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, StorageCounter.class);
+        long totalBytes = 0;
+        long totalPhotos = 0;
+        for (Document removedGroup : groups) {
+            Document key = removedGroup.get("_id", Document.class);
+            long bytes = ((Number) removedGroup.get("bytes")).longValue();
+            long photos = ((Number) removedGroup.get("photos")).longValue();
+            increment(operations, USER_PREFIX + key.getString("userId"), -bytes, -photos);
+            increment(operations, ALBUM_PREFIX + key.getString("albumId"), -bytes, -photos);
+            totalBytes += bytes;
+            totalPhotos += photos;
+        }
+        increment(operations, SYSTEM, -totalBytes, -totalPhotos);
+        operations.execute();
+    }
+
+    /**
+     * Count a photo moved to another album.
+     *
+     * @param albumId       the ID of the album the photo was moved from
+     * @param targetAlbumId the ID of the album the photo was moved to
+     * @param bytes         the size of the photo
+     */
+    public void recordMoved(String albumId, String targetAlbumId, long bytes) {
+        BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, StorageCounter.class);
+        increment(operations, ALBUM_PREFIX + albumId, -bytes, -1);
+        increment(operations, ALBUM_PREFIX + targetAlbumId, bytes, 1);
+        operations.execute();
+    }
+
+    /**
+     * Count all photos of an album moved to another album.
+     *
+     * @param albumId       the ID of the album the photos were moved from
+     * @param targetAlbumId the ID of the album the photos were moved to
+     */
+    public void recordAlbumMoved(String albumId, String targetAlbumId) {
+        StorageCounter moved = mongoTemplate.findAndRemove(new Query(Criteria.where("id").is(ALBUM_PREFIX + albumId)), StorageCounter.class);
+        if (moved != null) {
+            mongoTemplate.upsert(new Query(Criteria.where("id").is(ALBUM_PREFIX + targetAlbumId)),
+                    new Update().inc("bytes", moved.getBytes()).inc("photos", moved.getPhotos()), StorageCounter.class);
+        }
+    }
+
+    /**
+     * Count files stored in or deleted from the blob stores.
+     *
+     * @param bytes the size of the stored files, negative if they were deleted
+     */
+    public void recordStoredBytes(long bytes) {
+        if (bytes != 0) {
+            mongoTemplate.upsert(new Query(Criteria.where("id").is(SYSTEM)), new Update().inc("storedBytes", bytes), StorageCounter.class);
+        }
+    }
+
+    /**
+     * Get the counter of all photos in the system.
+     *
+     * @return the counter, zero if nothing has been counted yet
+     */
+    public StorageCounter getSystemCounter() {
+        return getCounter(SYSTEM);
+    }
+
+    /**
+     * Get the counter of photos in an album.
+     *
+     * @param albumId the ID of the album
+     * @return the counter, zero if nothing has been counted yet
+     */
+    public StorageCounter getAlbumCounter(String albumId) {
+        return getCounter(ALBUM_PREFIX + albumId);
+    }
+
+    /**
+     * Get the counters of photos in several albums at once.
+     *
+     * @param albumIds the IDs of the albums
+     * @return the counters by the IDs of the albums, albums without photos may be missing
+     */
+    public Map<String, StorageCounter> getAlbumCounters(Collection<String> albumIds) {
+        List<String> ids = albumIds.stream().map(albumId -> ALBUM_PREFIX + albumId).toList();
+        Map<String, StorageCounter> counters = new HashMap<>();
+        mongoTemplate.find(new Query(Criteria.where("id").in(ids)), StorageCounter.class)
+                .forEach(counter -> counters.put(counter.getId().substring(ALBUM_PREFIX.length()), counter));
+        return counters;
+    }
+
+    /**
+     * Recompute all counters from the photos and the files in the blob stores.
+     * <p>
+     * Changes made while the counters are recomputed may be lost, they are corrected by the next run.
+     */
+    public void reconcile() {
+        long start = System.nanoTime();
+        Date reconciledAt = new Date();
+
+        mergeCounters("albumId", ALBUM_PREFIX, reconciledAt);
+        mergeCounters("userId", USER_PREFIX, reconciledAt);
+
+        Document photos = mongoTemplate.aggregate(newAggregation(group().sum("size").as("bytes").count().as("photos")),
+                PhotoMetadata.class, Document.class).getUniqueMappedResult();
+        mongoTemplate.upsert(new Query(Criteria.where("id").is(SYSTEM)), new Update()
+                .set("bytes", photos == null ? 0L : ((Number) photos.get("bytes")).longValue())
+                .set("photos", photos == null ? 0L : ((Number) photos.get("photos")).longValue())
+                .set("storedBytes", blobStorageService.getTotalSize())
+                .set("reconciledAt", reconciledAt), StorageCounter.class);
+
+        // Users and albums without photos were not touched by the aggregations
+        long removed = mongoTemplate.remove(new Query(Criteria.where("reconciledAt").lt(reconciledAt).and("id").ne(SYSTEM)),
+                StorageCounter.class).getDeletedCount();
+        logger.info("Reconciled storage counters in {} ms, removed {} counters without photos",
+                (System.nanoTime() - start) / 1_000_000, removed);
+    }
+
+    /**
+     * Count the photos by the given field and merge the counts into the counters.
+     */
+    private void mergeCounters(String field, String prefix, Date reconciledAt) {
+        Aggregation aggregation = newAggregation(
+                match(Criteria.where(field).ne(null)),
+                group(field).sum("size").as("bytes").count().as("photos"),
+                context -> new Document("$set", new Document("_id", new Document("$concat", List.of(prefix, "$_id")))
+                        .append("reconciledAt", reconciledAt)),
+                Aggregation.merge()
+                        .intoCollection(mongoTemplate.getCollectionName(StorageCounter.class))
+                        .on("_id")
+                        .whenMatched(MergeOperation.WhenDocumentsMatch.mergeDocuments())
+                        .whenDocumentsDontMatch(MergeOperation.WhenDocumentsDontMatch.insertNewDocument())
+                        .build());
+        mongoTemplate.aggregate(aggregation, PhotoMetadata.class, Document.class);
+    }
+
+    private StorageCounter getCounter(String id) {
+        StorageCounter counter = mongoTemplate.findById(id, StorageCounter.class);
+        if (counter == null) {
+            counter = new StorageCounter();
+            counter.setId(id);
+        }
+        return counter;
+    }
+
+    private static void increment(BulkOperations operations, String id, long bytes, long photos) {
+        operations.upsert(new Query(Criteria.where("id").is(id)), new Update().inc("bytes", bytes).inc("photos", photos));
+    }
+
+}
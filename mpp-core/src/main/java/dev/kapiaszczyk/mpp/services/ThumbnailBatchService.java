@@ -0,0 +1,190 @@
+package dev.kapiaszczyk.mpp.services;
+
+import dev.kapiaszczyk.mpp.errors.OperationError;
+import dev.kapiaszczyk.mpp.util.Either;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Service writing the thumbnails of many photos into a single multipart/mixed response.
+ * <p>
+ * Thumbnails not held in the pack store or the thumbnail cache are read from GridFS, one round trip each, so they
+ * are read concurrently on a small pool shared by all batches. The parts are written in the requested order as
+ * the thumbnails become available, streamed from where they are stored rather than copied to the heap first.
+ */
+@Service
+public class ThumbnailBatchService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThumbnailBatchService.class);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * Header of a part carrying the status the photo would have been answered with on its own.
+     */
+    private static final String STATUS_HEADER = "X-Status";
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    @Autowired
+    private final PhotoService photoService;
+    private final ExecutorService readPool;
+    private final int maxPhotos;
+
+    public ThumbnailBatchService(PhotoService photoService,
+                                 @Value("${mpp-core.thumbnail-batch.threads}") int threads,
+                                 @Value("${mpp-core.thumbnail-batch.max-photos}") int maxPhotos) {
+        this.photoService = photoService;
+        this.readPool = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("thumbnail-batch-"));
+        this.maxPhotos = maxPhotos;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        readPool.shutdownNow();
+    }
+
+    /**
+     * Get the number of photos whose thumbnails may be requested at once.
+     *
+     * @return the number of photos
+     */
+    public int getMaxPhotos() {
+        return maxPhotos;
+    }
+
+    /**
+     * Write a part for each photo, the thumbnail or the error the photo would have been answered with on its own.
+     * Each part names its photo in the Content-ID header.
+     *
+     * @param thumbnails   the IDs of the thumbnails, or the errors, by the IDs of the photos in the requested order
+     * @param boundary     the boundary between the parts
+     * @param outputStream the stream to write to, not closed
+     * @throws IOException if the response could not be written, e.g. because the client went away
+     */
+    public void writeMultipart(Map<String, Either<OperationError, String>> thumbnails, String boundary,
+                               OutputStream outputStream) throws IOException {
+        long start = System.nanoTime();
+        List<Future<Resource>> reads = new ArrayList<>(thumbnails.size());
+        for (Either<OperationError, String> thumbnail : thumbnails.values()) {
+            reads.add(thumbnail.isRight() ? readPool.submit(() -> photoService.getThumbnail(thumbnail.right().get())) : null);
+        }
+        byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int index = 0;
+        try {
+            for (Map.Entry<String, Either<OperationError, String>> part : thumbnails.entrySet()) {
+                Future<Resource> read = reads.get(index++);
+                outputStream.write(delimiter);
+                outputStream.write(CRLF);
+                if (read == null) {
+                    writeError(outputStream, part.getKey(), part.getValue().left().get());
+                    continue;
+                }
+                Resource thumbnail = await(read, part.getKey());
+                // Opened before the part is started, so a thumbnail evicted in the meantime still gets an error part
+                InputStream content = thumbnail == null ? null : open(thumbnail, part.getKey());
+                if (content == null) {
+                    writeError(outputStream, part.getKey(), OperationError.notFound("Thumbnail not found"));
+                    continue;
+                }
+                try (content) {
+                    writeThumbnail(outputStream, part.getKey(), part.getValue().right().get(), thumbnail, content, buffer);
+                }
+            }
+            outputStream.write(delimiter);
+            outputStream.write("--".getBytes(StandardCharsets.US_ASCII));
+            outputStream.write(CRLF);
+            outputStream.flush();
+        } finally {
+            // The client may have gone away, the remaining thumbnails are no longer needed
+            reads.forEach(read -> {
+                if (read != null) {
+                    read.cancel(true);
+                }
+            });
+        }
+        logger.debug("Wrote {} thumbnails in {} ms", thumbnails.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static void writeThumbnail(OutputStream outputStream, String photoId, String thumbnailId, Resource thumbnail,
+                                       InputStream content, byte[] buffer) throws IOException {
+        MediaType contentType = MediaTypeFactory.getMediaType(thumbnail.getFilename()).orElse(MediaType.APPLICATION_OCTET_STREAM);
+        writeHeader(outputStream, HttpHeaders.CONTENT_TYPE, contentType.toString());
+        writeHeader(outputStream, HttpHeaders.CONTENT_LENGTH, String.valueOf(thumbnail.contentLength()));
+        writeHeader(outputStream, "Content-ID", "<" + photoId + ">");
+        writeHeader(outputStream, HttpHeaders.ETAG, "\"" + thumbnailId + "\"");
+        outputStream.write(CRLF);
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+        outputStream.write(CRLF);
+    }
+
+    private static void writeError(OutputStream outputStream, String photoId, OperationError error) throws IOException {
+        byte[] message = error.getMessage().getBytes(StandardCharsets.UTF_8);
+        writeHeader(outputStream, HttpHeaders.CONTENT_TYPE, "text/plain;charset=UTF-8");
+        writeHeader(outputStream, HttpHeaders.CONTENT_LENGTH, String.valueOf(message.length));
+        writeHeader(outputStream, "Content-ID", "<" + photoId + ">");
+        writeHeader(outputStream, STATUS_HEADER, String.valueOf(error.getHttpStatus().value()));
+        outputStream.write(CRLF);
+        outputStream.write(message);
+        outputStream.write(CRLF);
+    }
+
+    private static void writeHeader(OutputStream outputStream, String name, String value) throws IOException {
+        outputStream.write((name + ": " + value).getBytes(StandardCharsets.US_ASCII));
+        outputStream.write(CRLF);
+    }
+
+    /**
+     * Wait for a thumbnail to be read.
+     *
+     * @return the thumbnail, or null if it could not be read
+     */
+    private static Resource await(Future<Resource> read, String photoId) throws IOException {
+        try {
+            return read.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading thumbnails", e);
+        } catch (ExecutionException e) {
+            logger.warn("Failed to read the thumbnail of photo with ID {}", photoId, e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Open a thumbnail for reading.
+     *
+     * @return the content of the thumbnail, or null if it could not be opened, e.g. because it was evicted
+     */
+    private static InputStream open(Resource thumbnail, String photoId) {
+        try {
+            return thumbnail.getInputStream();
+        } catch (IOException e) {
+            logger.warn("Failed to open the thumbnail of photo with ID {}", photoId, e);
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,380 @@
+package dev.kapiaszczyk.mpp.services;
+
+import dev.kapiaszczyk.mpp.models.StoredFile;
+import dev.kapiaszczyk.mpp.models.api.ThumbnailCacheStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process cache of thumbnails keyed by the ID of the thumbnail in GridFS.
+ * <p>
+ * The bytes are kept off-heap in direct buffers allocated once at startup and divided into fixed-size blocks,
+ * so cached thumbnails neither add to the garbage collected heap nor churn direct memory. Only a small
+ * entry per thumbnail, listing its blocks, lives on the heap. Cached thumbnails are read straight from the
+ * blocks into the buffer of the reader. The blocks of a thumbnail evicted while it is being read are only
+ * reused once the reader is done.
+ * <p>
+ * Eviction is segmented LRU: new thumbnails enter a probationary segment and are promoted to the protected
+ * segment when requested again. A burst of thumbnails viewed once, e.g. while scrolling through a large
+ * album, only displaces other probationary thumbnails and not the ones viewed repeatedly.
+ */
+@Component
+public class ThumbnailCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThumbnailCache.class);
+    private static final int BLOCK_SIZE = 4096;
+    /**
+     * Size of a single direct buffer, the budget is split into several if it is larger.
+     */
+    private static final int SLAB_SIZE = 64 * 1024 * 1024;
+    /**
+     * Share of the blocks the protected segment may take up.
+     */
+    private static final double PROTECTED_SHARE = 0.8;
+    /**
+     * Share of the blocks a single thumbnail may take up, larger ones are not cached.
+     */
+    private static final double MAX_ENTRY_SHARE = 0.01;
+
+    private final ByteBuffer[] slabs;
+    private final int blocksPerSlab;
+    private final int totalBlocks;
+    private final int maxProtectedBlocks;
+    private final int maxEntryBlocks;
+
+    // Indices of the free blocks, used as a stack
+    private final int[] freeBlocks;
+    private int freeBlockCount;
+
+    // Both in access order, least recently used first
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private int protectedBlocks;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ThumbnailCache(@Value("${mpp-core.thumbnail-cache.max-size-mb}") long maxSizeMegabytes) {
+        long budget = maxSizeMegabytes * 1024 * 1024;
+        this.totalBlocks = (int) Math.min(Integer.MAX_VALUE, budget / BLOCK_SIZE);
+        this.blocksPerSlab = SLAB_SIZE / BLOCK_SIZE;
+        int slabCount = (totalBlocks + blocksPerSlab - 1) / blocksPerSlab;
+        this.slabs = new ByteBuffer[slabCount];
+        for (int i = 0; i < slabCount; i++) {
+            int blocks = Math.min(blocksPerSlab, totalBlocks - i * blocksPerSlab);
+            slabs[i] = ByteBuffer.allocateDirect(blocks * BLOCK_SIZE);
+        }
+        this.maxProtectedBlocks = (int) (totalBlocks * PROTECTED_SHARE);
+        this.maxEntryBlocks = (int) Math.max(1, totalBlocks * MAX_ENTRY_SHARE);
+        this.freeBlocks = new int[totalBlocks];
+        for (int i = 0; i < totalBlocks; i++) {
+            freeBlocks[i] = totalBlocks - 1 - i;
+        }
+        this.freeBlockCount = totalBlocks;
+        logger.info("Thumbnail cache holds up to {} bytes off-heap", (long) totalBlocks * BLOCK_SIZE);
+    }
+
+    /**
+     * Get a cached thumbnail. Its content is read from the cache only when the returned resource is read,
+     * and the stream has to be closed for the thumbnail to be fully evicted.
+     *
+     * @param thumbnailId the ID of the thumbnail in GridFS
+     * @return the thumbnail or null if it is not cached
+     */
+    public synchronized Resource get(String thumbnailId) {
+        Entry entry = protectedSegment.get(thumbnailId);
+        if (entry == null) {
+            entry = probation.remove(thumbnailId);
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            promote(thumbnailId, entry);
+        }
+        hits.incrementAndGet();
+        return new CachedThumbnail(thumbnailId, entry);
+    }
+
+    /**
+     * Cache a thumbnail, evicting the least recently used thumbnails if there is not enough space.
+     * Thumbnails too large for the cache are ignored.
+     *
+     * @param thumbnailId the ID of the thumbnail in GridFS
+     * @param thumbnail   the thumbnail
+     */
+    public synchronized void put(String thumbnailId, StoredFile thumbnail) {
+        int blockCount = (thumbnail.getContent().length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (totalBlocks == 0 || blockCount > maxEntryBlocks || probation.containsKey(thumbnailId) || protectedSegment.containsKey(thumbnailId)) {
+            return;
+        }
+        while (freeBlockCount < blockCount) {
+            if (probation.isEmpty() && protectedSegment.isEmpty()) {
+                // The remaining blocks belong to evicted thumbnails still being read
+                return;
+            }
+            evict();
+        }
+        int[] blocks = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            blocks[i] = freeBlocks[--freeBlockCount];
+        }
+        Entry entry = new Entry(thumbnail.getFilename(), thumbnail.getLastModified(), thumbnail.getContent().length, blocks);
+        write(entry, thumbnail.getContent());
+        probation.put(thumbnailId, entry);
+    }
+
+    /**
+     * Remove deleted thumbnails from the cache.
+     *
+     * @param thumbnailIds the IDs of the thumbnails in GridFS
+     */
+    public synchronized void invalidate(Collection<String> thumbnailIds) {
+        for (String thumbnailId : thumbnailIds) {
+            Entry entry = probation.remove(thumbnailId);
+            if (entry == null) {
+                entry = protectedSegment.remove(thumbnailId);
+                if (entry != null) {
+                    protectedBlocks -= entry.blocks.length;
+                }
+            }
+            if (entry != null) {
+                discard(entry);
+            }
+        }
+    }
+
+    /**
+     * Get the number of cached thumbnails, the space they take up and the hit ratio so far.
+     *
+     * @return the statistics
+     */
+    public synchronized ThumbnailCacheStatistics getStatistics() {
+        return new ThumbnailCacheStatistics(
+                (long) totalBlocks * BLOCK_SIZE,
+                (long) (totalBlocks - freeBlockCount) * BLOCK_SIZE,
+                probation.size() + protectedSegment.size(),
+                protectedSegment.size(),
+                hits.get(),
+                misses.get(),
+                evictions.get());
+    }
+
+    /**
+     * Move a thumbnail requested again to the protected segment, demoting the least recently used
+     * protected thumbnails back to probation if the segment is full.
+     */
+    private void promote(String thumbnailId, Entry entry) {
+        protectedSegment.put(thumbnailId, entry);
+        protectedBlocks += entry.blocks.length;
+        Iterator<Map.Entry<String, Entry>> leastRecentlyUsed = protectedSegment.entrySet().iterator();
+        while (protectedBlocks > maxProtectedBlocks && leastRecentlyUsed.hasNext()) {
+            Map.Entry<String, Entry> demoted = leastRecentlyUsed.next();
+            if (demoted.getKey().equals(thumbnailId)) {
+                break;
+            }
+            leastRecentlyUsed.remove();
+            protectedBlocks -= demoted.getValue().blocks.length;
+            probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+
+    /**
+     * Evict the least recently used probationary thumbnail, or the least recently used protected one
+     * if there are no probationary thumbnails.
+     */
+    private void evict() {
+        boolean fromProtected = probation.isEmpty();
+        Iterator<Map.Entry<String, Entry>> victims = fromProtected
+                ? protectedSegment.entrySet().iterator()
+                : probation.entrySet().iterator();
+        Entry victim = victims.next().getValue();
+        victims.remove();
+        if (fromProtected) {
+            protectedBlocks -= victim.blocks.length;
+        }
+        discard(victim);
+        evictions.incrementAndGet();
+    }
+
+    /**
+     * Free the blocks of a thumbnail removed from the cache, or leave that to its last reader.
+     */
+    private void discard(Entry entry) {
+        entry.removed = true;
+        if (entry.readers == 0) {
+            free(entry);
+        }
+    }
+
+    private synchronized InputStream open(Entry entry) throws FileNotFoundException {
+        if (entry.removed) {
+            throw new FileNotFoundException("Thumbnail was evicted from the cache");
+        }
+        entry.readers++;
+        return new BlockInputStream(entry);
+    }
+
+    private synchronized void close(Entry entry) {
+        entry.readers--;
+        if (entry.removed && entry.readers == 0) {
+            free(entry);
+        }
+    }
+
+    private void free(Entry entry) {
+        for (int block : entry.blocks) {
+            freeBlocks[freeBlockCount++] = block;
+        }
+    }
+
+    private void write(Entry entry, byte[] content) {
+        for (int i = 0; i < entry.blocks.length; i++) {
+            int offset = i * BLOCK_SIZE;
+            int length = Math.min(BLOCK_SIZE, content.length - offset);
+            slab(entry.blocks[i]).put(position(entry.blocks[i]), content, offset, length);
+        }
+    }
+
+    private ByteBuffer slab(int block) {
+        return slabs[block / blocksPerSlab];
+    }
+
+    private int position(int block) {
+        return (block % blocksPerSlab) * BLOCK_SIZE;
+    }
+
+    private static final class Entry {
+
+        private final String filename;
+        private final long lastModified;
+        private final int length;
+        private final int[] blocks;
+        // Streams of the thumbnail not closed yet, its blocks are not freed until they are
+        private int readers;
+        private boolean removed;
+
+        private Entry(String filename, long lastModified, int length, int[] blocks) {
+            this.filename = filename;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.blocks = blocks;
+        }
+    }
+
+    /**
+     * A cached thumbnail, read from its blocks whenever its content is read.
+     */
+    private final class CachedThumbnail extends AbstractResource {
+
+        private final String thumbnailId;
+        private final Entry entry;
+
+        private CachedThumbnail(String thumbnailId, Entry entry) {
+            this.thumbnailId = thumbnailId;
+            this.entry = entry;
+        }
+
+        @Override
+        public InputStream getInputStream() throws FileNotFoundException {
+            return open(entry);
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public long contentLength() {
+            return entry.length;
+        }
+
+        @Override
+        public long lastModified() {
+            return entry.lastModified;
+        }
+
+        @Override
+        public String getFilename() {
+            return entry.filename;
+        }
+
+        @Override
+        public String getDescription() {
+            return "Cached thumbnail [" + thumbnailId + "]";
+        }
+    }
+
+    /**
+     * Reads the blocks of a thumbnail. The blocks are not written while the stream is open, so they are read
+     * without holding the lock of the cache.
+     */
+    private final class BlockInputStream extends InputStream {
+
+        private final Entry entry;
+        // Offset of the next byte to read in the thumbnail
+        private int offset;
+        private boolean closed;
+
+        private BlockInputStream(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public int read() {
+            if (offset >= entry.length) {
+                return -1;
+            }
+            int block = entry.blocks[offset / BLOCK_SIZE];
+            int value = slab(block).get(position(block) + offset % BLOCK_SIZE) & 0xFF;
+            offset++;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int bufferOffset, int length) {
+            Objects.checkFromIndexSize(bufferOffset, length, buffer.length);
+            if (length == 0) {
+                return 0;
+            }
+            if (offset >= entry.length) {
+                return -1;
+            }
+            int block = entry.blocks[offset / BLOCK_SIZE];
+            int blockOffset = offset % BLOCK_SIZE;
+            int read = Math.min(length, Math.min(BLOCK_SIZE - blockOffset, entry.length - offset));
+            slab(block).get(position(block) + blockOffset, buffer, bufferOffset, read);
+            offset += read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return entry.length - offset;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                ThumbnailCache.this.close(entry);
+            }
+        }
+    }
+
+}
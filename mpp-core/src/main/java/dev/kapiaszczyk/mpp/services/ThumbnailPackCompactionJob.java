@@ -0,0 +1,23 @@
+package dev.kapiaszczyk.mpp.services;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically compacts thumbnail packs taken up mostly by deleted thumbnails.
+ */
+@Component
+public class ThumbnailPackCompactionJob {
+
+    private final ThumbnailPackStore thumbnailPackStore;
+
+    public ThumbnailPackCompactionJob(ThumbnailPackStore thumbnailPackStore) {
+        this.thumbnailPackStore = thumbnailPackStore;
+    }
+
+    @Scheduled(initialDelayString = "${mpp-core.thumbnail-pack.compaction-interval}", fixedDelayString = "${mpp-core.thumbnail-pack.compaction-interval}")
+    public void compactThumbnailPacks() {
+        thumbnailPackStore.compact();
+    }
+
+}
@@ -0,0 +1,480 @@
+package dev.kapiaszczyk.mpp.services;
+
+import dev.kapiaszczyk.mpp.models.StoredFile;
+import dev.kapiaszczyk.mpp.models.api.ThumbnailPackStatistics;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Store of thumbnails in append-only pack files on the local disk.
+ * <p>
+ * Thumbnails are small and never change, so in GridFS the file and chunk documents of every thumbnail
+ * cost about as much as the thumbnail itself, and every read is a round trip to MongoDB. Here thumbnails
+ * are appended one after another to pack files, and an in-memory index maps the ID of every thumbnail
+ * to its pack and offset. A read is a lookup in the index and a copy from the memory-mapped pack.
+ * The index is rebuilt by scanning the packs at startup.
+ * <p>
+ * Thumbnails are appended to the active pack until it is full, after which it is sealed and mapped into
+ * memory. Deleted thumbnails are only flagged in place, sealed packs taken up mostly by deleted thumbnails
+ * are compacted by copying the remaining ones to the active pack and removing the sealed pack.
+ * <p>
+ * A record consists of a magic number, flags, the ID, the upload time, the filename, the content
+ * and the CRC32 of the content. A torn record at the end of a pack, left by a crash, is cut off at startup.
+ * <p>
+ * The store is disabled unless a directory is configured. Packed thumbnails exist only in that directory, not in
+ * MongoDB, so it must not be enabled for more than one instance unless they share the directory.
+ */
+@Component
+public class ThumbnailPackStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ThumbnailPackStore.class);
+    private static final int MAGIC = 0x4D505054;
+    private static final byte LIVE = 0;
+    private static final byte DELETED = 1;
+    private static final int FLAGS_OFFSET = 4;
+    private static final int ID_OFFSET = 5;
+    private static final int UPLOADED_AT_OFFSET = 17;
+    private static final int FILENAME_LENGTH_OFFSET = 25;
+    private static final int FILENAME_OFFSET = 27;
+    private static final int MAX_FILENAME_LENGTH = 255;
+    // Record without the filename and the content: header, content length and checksum
+    private static final int RECORD_OVERHEAD = FILENAME_OFFSET + 4 + 4;
+    /**
+     * Number of bytes read at once from the active pack, enough for a whole record of a typical thumbnail.
+     */
+    private static final int READ_AHEAD = 64 * 1024;
+    /**
+     * Share of a sealed pack taken up by deleted thumbnails above which the pack is compacted.
+     */
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    private static final Pattern PACK_NAME = Pattern.compile("pack-(\\d{5})\\.dat");
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    // Null if the store is disabled
+    private final Path directory;
+    private final long maxPackSize;
+
+    // Location of every stored thumbnail, the number of its pack in the upper bits and the offset of its record in the lower
+    private final Map<ObjectId, Long> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Pack> packs = new ConcurrentSkipListMap<>();
+    // Guards appending, deleting and compacting, reads take no lock
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private Pack activePack;
+
+    public ThumbnailPackStore(@Value("${mpp-core.thumbnail-pack.directory}") String directory,
+                              @Value("${mpp-core.thumbnail-pack.max-pack-size-mb}") long maxPackSizeMegabytes) {
+        this.directory = directory == null || directory.isBlank() ? null : Path.of(directory);
+        // Sealed packs are mapped as a whole, which is limited to 2 GB
+        this.maxPackSize = Math.min(maxPackSizeMegabytes * 1024 * 1024, Integer.MAX_VALUE);
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        if (directory == null) {
+            logger.info("Thumbnail pack store is disabled, thumbnails are stored in GridFS");
+            return;
+        }
+        Files.createDirectories(directory);
+        List<Integer> numbers = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                Matcher matcher = PACK_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    numbers.add(Integer.parseInt(matcher.group(1)));
+                }
+            });
+        }
+        numbers.sort(null);
+        for (int number : numbers) {
+            Pack pack = new Pack(number, packPath(number));
+            scan(pack);
+            packs.put(number, pack);
+            if (number != numbers.get(numbers.size() - 1)) {
+                pack.seal();
+            }
+        }
+        if (packs.isEmpty() || packs.lastEntry().getValue().size >= maxPackSize) {
+            startNewPack();
+        } else {
+            activePack = packs.lastEntry().getValue();
+        }
+        logger.info("Opened {} thumbnail packs in {} with {} thumbnails", packs.size(), directory, index.size());
+    }
+
+    @PreDestroy
+    public void close() {
+        packs.values().forEach(Pack::close);
+    }
+
+    /**
+     * Check if the store is enabled. If it is not, thumbnails are stored in GridFS.
+     *
+     * @return true if thumbnails can be stored
+     */
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Store a thumbnail under a new ID.
+     *
+     * @param filename the filename of the thumbnail
+     * @param content  the content of the thumbnail
+     * @return the ID of the thumbnail, or empty if the store is disabled or the thumbnail could not be written
+     */
+    public Optional<String> store(String filename, byte[] content) {
+        if (directory == null) {
+            return Optional.empty();
+        }
+        ObjectId id = new ObjectId();
+        ByteBuffer record = encode(id, System.currentTimeMillis(), filename, content);
+        writeLock.lock();
+        try {
+            append(id, record);
+            return Optional.of(id.toHexString());
+        } catch (IOException e) {
+            logger.error("Failed to store thumbnail {} in pack {}", filename, activePack.number, e);
+            return Optional.empty();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Read a stored thumbnail.
+     *
+     * @param thumbnailId the ID of the thumbnail
+     * @return the thumbnail, or empty if it is not stored here
+     */
+    public Optional<StoredFile> read(String thumbnailId) {
+        if (directory == null || thumbnailId == null || !ObjectId.isValid(thumbnailId)) {
+            return Optional.empty();
+        }
+        ObjectId id = new ObjectId(thumbnailId);
+        Long location = index.get(id);
+        try {
+            ByteBuffer record = location == null ? null : readRecord(location);
+            if (record == null && location != null) {
+                // Moved to another pack by a compaction in the meantime
+                location = index.get(id);
+                record = location == null ? null : readRecord(location);
+            }
+            if (record == null) {
+                return Optional.empty();
+            }
+            byte[] filename = new byte[record.getShort(FILENAME_LENGTH_OFFSET) & 0xFFFF];
+            record.get(FILENAME_OFFSET, filename);
+            int contentOffset = FILENAME_OFFSET + filename.length + 4;
+            byte[] content = new byte[record.getInt(contentOffset - 4)];
+            record.get(contentOffset, content);
+            return Optional.of(new StoredFile(new String(filename, StandardCharsets.UTF_8),
+                    record.getLong(UPLOADED_AT_OFFSET), content));
+        } catch (IOException e) {
+            logger.error("Failed to read thumbnail with ID {} from pack {}", thumbnailId, packNumber(location), e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Delete stored thumbnails. IDs of thumbnails not stored here are ignored.
+     *
+     * @param thumbnailIds the IDs of the thumbnails
+     */
+    public void delete(Collection<String> thumbnailIds) {
+        if (directory == null) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            for (String thumbnailId : thumbnailIds) {
+                if (!ObjectId.isValid(thumbnailId)) {
+                    continue;
+                }
+                Long location = index.remove(new ObjectId(thumbnailId));
+                if (location == null) {
+                    continue;
+                }
+                Pack pack = packs.get(packNumber(location));
+                pack.channel.write(ByteBuffer.wrap(new byte[]{DELETED}), offset(location) + FLAGS_OFFSET);
+                pack.deletedBytes += recordSize(readRecord(location), 0);
+            }
+        } catch (IOException e) {
+            // The thumbnails stay in the packs, but are no longer in the index
+            logger.error("Failed to flag deleted thumbnails in the packs", e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Compact the sealed packs taken up mostly by deleted thumbnails. The remaining thumbnails are
+     * copied to the active pack and the compacted packs are removed.
+     */
+    public void compact() {
+        if (directory == null) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            for (Pack pack : List.copyOf(packs.values())) {
+                if (pack != activePack && pack.deletedBytes >= pack.size * COMPACTION_THRESHOLD) {
+                    compact(pack);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to compact thumbnail packs", e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of packs and stored thumbnails, and the space they take up.
+     *
+     * @return the statistics
+     */
+    public ThumbnailPackStatistics getStatistics() {
+        long bytes = 0;
+        long deletedBytes = 0;
+        for (Pack pack : packs.values()) {
+            bytes += pack.size;
+            deletedBytes += pack.deletedBytes;
+        }
+        return new ThumbnailPackStatistics(isEnabled(), packs.size(), index.size(), bytes, deletedBytes);
+    }
+
+    private void compact(Pack pack) throws IOException {
+        long start = System.nanoTime();
+        int moved = 0;
+        long offset = 0;
+        while (offset < pack.size) {
+            int size = recordSize(pack.mapped, (int) offset);
+            ObjectId id = readId(pack.mapped, (int) offset);
+            // A live thumbnail may still have been deleted if the flag could not be written
+            if (pack.mapped.get((int) offset + FLAGS_OFFSET) == LIVE && Long.valueOf(location(pack.number, offset)).equals(index.get(id))) {
+                append(id, pack.mapped.slice((int) offset, size));
+                moved++;
+            }
+            offset += size;
+        }
+        packs.remove(pack.number);
+        pack.close();
+        // Readers that looked up a thumbnail before it was moved still read it from the mapping
+        Files.delete(pack.path);
+        logger.info("Compacted thumbnail pack {} in {} ms, moved {} thumbnails and freed {} bytes",
+                pack.number, (System.nanoTime() - start) / 1_000_000, moved, pack.deletedBytes);
+    }
+
+    /**
+     * Append a record to the active pack, starting a new pack if it does not fit, and index it.
+     */
+    private void append(ObjectId id, ByteBuffer record) throws IOException {
+        int size = record.remaining();
+        if (activePack.size > 0 && activePack.size + size > maxPackSize) {
+            activePack.seal();
+            startNewPack();
+        }
+        long offset = activePack.size;
+        while (record.hasRemaining()) {
+            activePack.channel.write(record, offset + size - record.remaining());
+        }
+        activePack.channel.force(false);
+        activePack.size += size;
+        index.put(id, location(activePack.number, offset));
+    }
+
+    private void startNewPack() throws IOException {
+        int number = packs.isEmpty() ? 1 : packs.lastKey() + 1;
+        activePack = new Pack(number, packPath(number));
+        packs.put(number, activePack);
+    }
+
+    /**
+     * Index the thumbnails in a pack, cutting off a torn record at its end.
+     */
+    private void scan(Pack pack) throws IOException {
+        long offset = 0;
+        if (pack.size > 0) {
+            MappedByteBuffer buffer = pack.channel.map(FileChannel.MapMode.READ_ONLY, 0, pack.size);
+            while (offset < pack.size) {
+                int size = recordSize(buffer, (int) offset);
+                if (size < 0 || !hasValidChecksum(buffer, (int) offset, size)) {
+                    break;
+                }
+                if (buffer.get((int) offset + FLAGS_OFFSET) == LIVE) {
+                    Long previous = index.put(readId(buffer, (int) offset), location(pack.number, offset));
+                    if (previous != null) {
+                        // Copied by a compaction interrupted before the compacted pack was removed
+                        Pack previousPack = packs.get(packNumber(previous));
+                        previousPack.deletedBytes += recordSize(readRecord(previous), 0);
+                    }
+                } else {
+                    pack.deletedBytes += size;
+                }
+                offset += size;
+            }
+        }
+        if (offset < pack.size) {
+            logger.warn("Cutting off {} bytes of a torn record at the end of thumbnail pack {}", pack.size - offset, pack.number);
+            pack.channel.truncate(offset);
+            pack.size = offset;
+        }
+    }
+
+    /**
+     * Get the record at the given location. For sealed packs it is a view of the mapping, for the active pack it is read.
+     * Returns null if the pack was removed by a compaction.
+     */
+    private ByteBuffer readRecord(long location) throws IOException {
+        Pack pack = packs.get(packNumber(location));
+        if (pack == null) {
+            return null;
+        }
+        long offset = offset(location);
+        MappedByteBuffer mapped = pack.mapped;
+        if (mapped != null) {
+            return mapped.slice((int) offset, (int) (pack.size - offset));
+        }
+        ByteBuffer record = ByteBuffer.allocate((int) Math.min(READ_AHEAD, pack.size - offset));
+        pack.read(record, offset);
+        int size = recordSize(record, 0);
+        if (size < 0) {
+            throw new IOException("Corrupted record in thumbnail pack " + pack.number + " at offset " + offset);
+        }
+        if (size > record.capacity()) {
+            record = ByteBuffer.allocate(size);
+            pack.read(record, offset);
+        }
+        return record;
+    }
+
+    private static ByteBuffer encode(ObjectId id, long uploadedAt, String filename, byte[] content) {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_FILENAME_LENGTH) {
+            // Keep the end with the extension, a character takes up at most four bytes
+            name = filename.substring(filename.length() - MAX_FILENAME_LENGTH / 4).getBytes(StandardCharsets.UTF_8);
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(content);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD + name.length + content.length);
+        record.putInt(MAGIC).put(LIVE).put(id.toByteArray()).putLong(uploadedAt)
+                .putShort((short) name.length).put(name)
+                .putInt(content.length).put(content)
+                .putInt((int) checksum.getValue());
+        return record.flip();
+    }
+
+    /**
+     * Get the size of the record starting at the given position, or -1 if there is no complete header.
+     */
+    private static int recordSize(ByteBuffer buffer, int position) {
+        if (buffer.limit() - position < FILENAME_OFFSET || buffer.getInt(position) != MAGIC) {
+            return -1;
+        }
+        int filenameLength = buffer.getShort(position + FILENAME_LENGTH_OFFSET) & 0xFFFF;
+        int contentLengthOffset = position + FILENAME_OFFSET + filenameLength;
+        if (buffer.limit() - contentLengthOffset < 4) {
+            return -1;
+        }
+        return RECORD_OVERHEAD + filenameLength + buffer.getInt(contentLengthOffset);
+    }
+
+    private static boolean hasValidChecksum(ByteBuffer buffer, int position, int size) {
+        if (buffer.limit() - position < size) {
+            return false;
+        }
+        int contentOffset = position + FILENAME_OFFSET + (buffer.getShort(position + FILENAME_LENGTH_OFFSET) & 0xFFFF) + 4;
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.slice(contentOffset, position + size - 4 - contentOffset));
+        return (int) checksum.getValue() == buffer.getInt(position + size - 4);
+    }
+
+    private static ObjectId readId(ByteBuffer buffer, int position) {
+        byte[] id = new byte[12];
+        buffer.get(position + ID_OFFSET, id);
+        return new ObjectId(id);
+    }
+
+    private Path packPath(int number) {
+        return directory.resolve(String.format("pack-%05d.dat", number));
+    }
+
+    private static long location(int packNumber, long offset) {
+        return ((long) packNumber << OFFSET_BITS) | offset;
+    }
+
+    private static int packNumber(long location) {
+        return (int) (location >>> OFFSET_BITS);
+    }
+
+    private static long offset(long location) {
+        return location & OFFSET_MASK;
+    }
+
+    private static final class Pack {
+
+        private final int number;
+        private final Path path;
+        private final FileChannel channel;
+        private volatile long size;
+        private volatile long deletedBytes;
+        // Set once the pack is sealed, no more records are appended after that
+        private volatile MappedByteBuffer mapped;
+
+        private Pack(int number, Path path) throws IOException {
+            this.number = number;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+
+        private void seal() throws IOException {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        private void read(ByteBuffer buffer, long offset) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of thumbnail pack " + number);
+                }
+            }
+            buffer.flip();
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close thumbnail pack {}", number, e);
+            }
+        }
+    }
+
+}
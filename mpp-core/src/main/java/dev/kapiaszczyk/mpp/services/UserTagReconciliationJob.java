@@ -0,0 +1,23 @@
+package dev.kapiaszczyk.mpp.services;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Periodically rebuilds the tags of all users from the photos.
+ */
+@Component
+public class UserTagReconciliationJob {
+
+    private final UserTagService userTagService;
+
+    public UserTagReconciliationJob(UserTagService userTagService) {
+        this.userTagService = userTagService;
+    }
+
+    @Scheduled(initialDelayString = "${mpp-core.user-tags.reconciliation-interval}", fixedDelayString = "${mpp-core.user-tags.reconciliation-interval}")
+    public void reconcileUserTags() {
+        userTagService.reconcile();
+    }
+
+}
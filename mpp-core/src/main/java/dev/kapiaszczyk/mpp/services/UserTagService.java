@@ -0,0 +1,211 @@
+package dev.kapiaszczyk.mpp.services;
+
+import dev.kapiaszczyk.mpp.models.database.PhotoMetadata;
+import dev.kapiaszczyk.mpp.models.database.UserTag;
+import jakarta.annotation.PostConstruct;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.MergeOperation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.group;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.newAggregation;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.project;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.unwind;
+
+/**
+ * Service responsible for the tags of every user and the number of the user's photos with each tag.
+ * <p>
+ * The counts are changed atomically with $inc whenever photos are tagged, duplicated or deleted, so listing
+ * the tags of a user is a single indexed read regardless of the number of photos. The reconciliation job
+ * rebuilds them from scratch, correcting any drift.
+ */
+@Service
+public class UserTagService {
+
+    private static final Logger logger = LoggerFactory.getLogger(UserTagService.class);
+
+    @Autowired
+    private final MongoTemplate mongoTemplate;
+
+    public UserTagService(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @PostConstruct
+    public void initialize() {
+        if (!mongoTemplate.collectionExists(UserTag.class)) {
+            // First start with the tag index, it is built from the existing photos
+            reconcile();
+        }
+    }
+
+    /**
+     * Get the tags of a user.
+     *
+     * @param userId the ID of the user
+     * @return the tags, most used first
+     */
+    public List<UserTag> getTags(String userId) {
+        Query query = new Query(Criteria.where("userId").is(userId))
+                .with(Sort.by(Sort.Order.desc("count"), Sort.Order.asc("tag")));
+        return mongoTemplate.find(query, UserTag.class);
+    }
+
+    /**
+     * Count tags given to or taken from a photo.
+     *
+     * @param userId  the ID of the user the photo belongs to
+     * @param photoId the ID of the photo
+     * @param added   the tags the photo did not have before
+     * @param removed the tags the photo no longer has
+     */
+    public void recordTagged(String userId, String photoId, Collection<String> added, Collection<String> removed) {
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, UserTag.class);
+        Date now = new Date();
+        for (String tag : added) {
+            increment(operations, userId, tag, 1, new Update().set("lastSeen", now).set("coverPhotoId", photoId));
+        }
+        for (String tag : removed) {
+            increment(operations, userId, tag, -1, new Update());
+            operations.updateOne(new Query(Criteria.where("id").is(id(userId, tag)).and("coverPhotoId").is(photoId)),
+                    new Update().unset("coverPhotoId"));
+        }
+        operations.execute();
+        if (!removed.isEmpty()) {
+            removeUnused(removed.stream().map(tag -> id(userId, tag)).toList());
+        }
+    }
+
+    /**
+     * Count the tags of a photo added by duplication.
+     *
+     * @param photo the added photo
+     */
+    public void recordAdded(PhotoMetadata photo) {
+        if (photo.getTags() != null) {
+            recordTagged(photo.getUserId(), photo.getId(), photo.getTags(), List.of());
+        }
+    }
+
+    /**
+     * Count the tags of photos about to be deleted. Must be called before the photos are removed.
+     *
+     * @param photosToDelete the criteria matching the photos
+     */
+    public void recordRemoval(Criteria photosToDelete) {
+        Aggregation removed = newAggregation(
+                match(photosToDelete),
+                project("userId", "tags"),
+                unwind("tags"),
+                group("userId", "tags").count().as("photos"));
+        List<Document> groups = mongoTemplate.aggregate(removed, PhotoMetadata.class, Document.class).getMappedResults();
+        if (groups.isEmpty()) {
+            return;
+        }
+        List<String> ids = new ArrayList<>(groups.size());
+        BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, UserTag.class);
+        for (Document removedGroup : groups) {
+            Document key = removedGroup.get("_id", Document.class);
+            String userId = key.getString("userId");
+            String tag = key.getString("tags");
+            increment(operations, userId, tag, -((Number) removedGroup.get("photos")).longValue(), new Update());
+            ids.add(id(userId, tag));
+        }
+        operations.execute();
+        removeDeletedCovers(ids, photosToDelete);
+        removeUnused(ids);
+    }
+
+    /**
+     * Rebuild the tags of all users from the photos.
+     * <p>
+     * Changes made while the tags are rebuilt may be lost, they are corrected by the next run.
+     */
+    public void reconcile() {
+        long start = System.nanoTime();
+        Date reconciledAt = new Date();
+
+        Aggregation aggregation = newAggregation(
+                match(Criteria.where("tags.0").exists(true).and("userId").ne(null)),
+                project("userId", "tags", "uploadDate"),
+                unwind("tags"),
+                context -> new Document("$group", new Document("_id", new Document("userId", "$userId").append("tag", "$tags"))
+                        .append("count", new Document("$sum", 1))
+                        .append("lastSeen", new Document("$max", "$uploadDate"))
+                        .append("cover", new Document("$top", new Document("sortBy", new Document("uploadDate", -1))
+                                .append("output", "$_id")))),
+                context -> new Document("$project", new Document("_id", new Document("$concat", List.of("$_id.userId", ":", "$_id.tag")))
+                        .append("userId", "$_id.userId")
+                        .append("tag", "$_id.tag")
+                        .append("count", 1)
+                        .append("lastSeen", 1)
+                        .append("coverPhotoId", new Document("$toString", "$cover"))
+                        .append("reconciledAt", reconciledAt)),
+                Aggregation.merge()
+                        .intoCollection(mongoTemplate.getCollectionName(UserTag.class))
+                        .on("_id")
+                        .whenMatched(MergeOperation.WhenDocumentsMatch.replaceDocument())
+                        .whenDocumentsDontMatch(MergeOperation.WhenDocumentsDontMatch.insertNewDocument())
+                        .build())
+                .withOptions(Aggregation.newAggregationOptions().allowDiskUse(true).build());
+        mongoTemplate.aggregate(aggregation, PhotoMetadata.class, Document.class);
+
+        // Tags no longer given to any photo were not touched by the aggregation
+        long removed = mongoTemplate.remove(new Query(Criteria.where("reconciledAt").lt(reconciledAt)), UserTag.class)
+                .getDeletedCount();
+        logger.info("Reconciled user tags in {} ms, removed {} tags without photos",
+                (System.nanoTime() - start) / 1_000_000, removed);
+    }
+
+    /**
+     * Clear the covers of the given tags that are about to be deleted.
+     */
+    private void removeDeletedCovers(List<String> ids, Criteria photosToDelete) {
+        Query covers = new Query(Criteria.where("id").in(ids).and("coverPhotoId").ne(null));
+        covers.fields().include("coverPhotoId");
+        List<String> coverPhotoIds = mongoTemplate.find(covers, UserTag.class).stream().map(UserTag::getCoverPhotoId).toList();
+        if (coverPhotoIds.isEmpty()) {
+            return;
+        }
+        Query deletedCovers = new Query(new Criteria().andOperator(photosToDelete, Criteria.where("id").in(coverPhotoIds)));
+        deletedCovers.fields().include("id");
+        List<String> deletedCoverIds = mongoTemplate.find(deletedCovers, PhotoMetadata.class).stream().map(PhotoMetadata::getId).toList();
+        if (!deletedCoverIds.isEmpty()) {
+            mongoTemplate.updateMulti(new Query(Criteria.where("id").in(ids).and("coverPhotoId").in(deletedCoverIds)),
+                    new Update().unset("coverPhotoId"), UserTag.class);
+        }
+    }
+
+    private void removeUnused(List<String> ids) {
+        mongoTemplate.remove(new Query(Criteria.where("id").in(ids).and("count").lte(0)), UserTag.class);
+    }
+
+    private static void increment(BulkOperations operations, String userId, String tag, long photos, Update update) {
+        operations.upsert(new Query(Criteria.where("id").is(id(userId, tag))),
+                update.inc("count", photos).setOnInsert("userId", userId).setOnInsert("tag", tag));
+    }
+
+    private static String id(String userId, String tag) {
+        return userId + ":" + tag;
+    }
+
+}
@@ -0,0 +1,148 @@
+package dev.kapiaszczyk.mpp.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pipe connecting a writing thread with a reading thread through a bounded queue of chunks.
+ * <p>
+ * Used instead of {@link java.io.PipedInputStream}, which polls with one second waits and
+ * stalls both sides whenever the buffer runs empty or full.
+ * The writer blocks while the queue is full and fails once the reader closes its end,
+ * so a reader that stops early never leaves the writer hanging.
+ */
+public class BoundedPipe {
+
+    private static final byte[] END_OF_STREAM = new byte[0];
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private final BlockingQueue<byte[]> chunks;
+    private final Sink sink = new Sink();
+    private final Source source = new Source();
+    private volatile boolean closedByReader;
+
+    /**
+     * @param capacity the maximum number of chunks buffered between the writer and the reader
+     */
+    public BoundedPipe(int capacity) {
+        this.chunks = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public OutputStream sink() {
+        return sink;
+    }
+
+    public InputStream source() {
+        return source;
+    }
+
+    private class Sink extends OutputStream {
+
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Pipe closed by writer");
+            }
+            if (len > 0) {
+                enqueue(Arrays.copyOfRange(b, off, off + len));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!closedByReader) {
+                enqueue(END_OF_STREAM);
+            }
+        }
+
+        private void enqueue(byte[] chunk) throws IOException {
+            try {
+                do {
+                    if (closedByReader) {
+                        throw new IOException("Pipe closed by reader");
+                    }
+                } while (!chunks.offer(chunk, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing to pipe");
+            }
+        }
+    }
+
+    private class Source extends InputStream {
+
+        private byte[] current;
+        private int position;
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return current[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(len, current.length - position);
+            System.arraycopy(current, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current == null || current == END_OF_STREAM ? 0 : current.length - position;
+        }
+
+        @Override
+        public void close() {
+            closedByReader = true;
+            chunks.clear();
+        }
+
+        /**
+         * Makes sure there are unread bytes in the current chunk.
+         *
+         * @return false if the writer closed the pipe and everything was read
+         */
+        private boolean fill() throws IOException {
+            if (closedByReader) {
+                throw new IOException("Pipe closed by reader");
+            }
+            while (current == null || (current != END_OF_STREAM && position == current.length)) {
+                try {
+                    current = chunks.take();
+                    position = 0;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading from pipe");
+                }
+            }
+            return current != END_OF_STREAM;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package dev.kapiaszczyk.mpp.util;
+
+import org.springframework.core.io.FileSystemResource;
+
+import java.nio.file.Path;
+
+/**
+ * A local copy of a file stored elsewhere, served under the filename and upload date of the stored file
+ * rather than the name and modification time of the copy. Being a file on disk, it can be sent with sendfile.
+ */
+public class CachedFileResource extends FileSystemResource {
+
+    private final String filename;
+    private final long lastModified;
+
+    public CachedFileResource(Path path, String filename, long lastModified) {
+        super(path);
+        this.filename = filename;
+        this.lastModified = lastModified;
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+}
@@ -0,0 +1,61 @@
+package dev.kapiaszczyk.mpp.util;
+
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import org.springframework.core.io.AbstractResource;
+
+import java.io.InputStream;
+
+/**
+ * A file stored in GridFS, opened anew every time its content is read.
+ * <p>
+ * Unlike {@link org.springframework.core.io.InputStreamResource}, it can be read several times,
+ * which is required to serve multiple byte ranges of the same file. Skipping in the returned stream
+ * moves straight to the chunk containing the target offset (chunk index = offset / chunk size),
+ * so a range starting deep in a large file does not read the chunks before it.
+ */
+public class GridFsFileResource extends AbstractResource {
+
+    private final GridFSBucket gridFSBucket;
+    private final GridFSFile file;
+
+    public GridFsFileResource(GridFSBucket gridFSBucket, GridFSFile file) {
+        this.gridFSBucket = gridFSBucket;
+        this.file = file;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return gridFSBucket.openDownloadStream(file.getObjectId());
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return file.getLength();
+    }
+
+    @Override
+    public long lastModified() {
+        return file.getUploadDate().getTime();
+    }
+
+    @Override
+    public String getFilename() {
+        return file.getFilename();
+    }
+
+    @Override
+    public String getDescription() {
+        return "GridFS file [" + file.getObjectId() + "]";
+    }
+
+    public GridFSFile getGridFSFile() {
+        return file;
+    }
+
+}
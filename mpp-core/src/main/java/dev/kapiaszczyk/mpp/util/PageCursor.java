@@ -0,0 +1,80 @@
+package dev.kapiaszczyk.mpp.util;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Optional;
+
+/**
+ * Position in a listing sorted by a field and then by ID, right after the last listed document.
+ * <p>
+ * The next page starts after the position in the index instead of skipping all the documents before it,
+ * so every page is read in the same time. Clients get the cursor as an opaque string, which also holds
+ * the sort it was created for, so that it is not applied to a listing sorted differently.
+ */
+public class PageCursor {
+
+    private final String field;
+    private final boolean ascending;
+    // Value of the field in the last listed document, may be null
+    private final Object value;
+    private final ObjectId id;
+
+    public PageCursor(String field, boolean ascending, Object value, ObjectId id) {
+        this.field = field;
+        this.ascending = ascending;
+        this.value = value;
+        this.id = id;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    public ObjectId getId() {
+        return id;
+    }
+
+    /**
+     * Encode the cursor as URL-safe text, the value keeps its BSON type.
+     *
+     * @return the encoded cursor
+     */
+    public String encode() {
+        String json = new Document("f", field).append("a", ascending).append("v", value).append("id", id).toJson();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decode a cursor returned by {@link #encode()}. Cursors come from clients, the type of the value is not
+     * checked here and has to be checked against the sorted field before the value is queried.
+     *
+     * @param encoded the encoded cursor
+     * @return the cursor, or empty if it is not a valid cursor
+     */
+    public static Optional<PageCursor> decode(String encoded) {
+        Document document;
+        try {
+            document = Document.parse(new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            // Not Base64, not JSON or not a document
+            return Optional.empty();
+        }
+        if (!(document.get("f") instanceof String field) || !(document.get("a") instanceof Boolean ascending)
+                || !(document.get("id") instanceof ObjectId id) || !document.containsKey("v")) {
+            return Optional.empty();
+        }
+        return Optional.of(new PageCursor(field, ascending, document.get("v"), id));
+    }
+
+}
@@ -0,0 +1,50 @@
+package dev.kapiaszczyk.mpp.util;
+
+import dev.kapiaszczyk.mpp.models.StoredFile;
+import org.springframework.core.io.AbstractResource;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * A small file already read into memory, served like a file in GridFS.
+ */
+public class StoredFileResource extends AbstractResource {
+
+    private final StoredFile file;
+
+    public StoredFileResource(StoredFile file) {
+        this.file = file;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(file.getContent());
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return file.getContent().length;
+    }
+
+    @Override
+    public long lastModified() {
+        return file.getLastModified();
+    }
+
+    @Override
+    public String getFilename() {
+        return file.getFilename();
+    }
+
+    @Override
+    public String getDescription() {
+        return "Stored file [" + file.getFilename() + "]";
+    }
+
+}
@@ -0,0 +1,92 @@
+package dev.kapiaszczyk.mpp.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An input stream that copies every byte read from the source into a branch output stream.
+ * <p>
+ * The branch is best-effort: once writing to it fails (for example because its reader stopped
+ * consuming), it is detached and reading from the source continues unaffected.
+ * Closing this stream closes both the source and the branch.
+ */
+public class TeeInputStream extends FilterInputStream {
+
+    private OutputStream branch;
+
+    public TeeInputStream(InputStream source, OutputStream branch) {
+        super(source);
+        this.branch = branch;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1 && branch != null) {
+            try {
+                branch.write(b);
+            } catch (IOException e) {
+                detachBranch();
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int bytesRead = super.read(b, off, len);
+        if (bytesRead > 0 && branch != null) {
+            try {
+                branch.write(b, off, bytesRead);
+            } catch (IOException e) {
+                detachBranch();
+            }
+        }
+        return bytesRead;
+    }
+
+    /**
+     * Skipped bytes are read as well, so that the branch receives the full content.
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int bytesRead = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (bytesRead == -1) {
+                break;
+            }
+            skipped += bytesRead;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            detachBranch();
+        }
+    }
+
+    private void detachBranch() {
+        if (branch == null) {
+            return;
+        }
+        try {
+            branch.close();
+        } catch (IOException ignored) {
+            // The branch is best-effort, a failure to close it does not affect the source
+        }
+        branch = null;
+    }
+}
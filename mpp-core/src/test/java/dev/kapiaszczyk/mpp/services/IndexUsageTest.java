@@ -0,0 +1,212 @@
+package dev.kapiaszczyk.mpp.services;
+
+import dev.kapiaszczyk.mpp.models.AlbumAccessRoles;
+import dev.kapiaszczyk.mpp.models.PhotoSort;
+import dev.kapiaszczyk.mpp.models.ThumbnailStatus;
+import dev.kapiaszczyk.mpp.models.api.PhotoPage;
+import dev.kapiaszczyk.mpp.models.database.Album;
+import dev.kapiaszczyk.mpp.models.database.Blob;
+import dev.kapiaszczyk.mpp.models.database.PhotoMetadata;
+import dev.kapiaszczyk.mpp.models.database.User;
+import dev.kapiaszczyk.mpp.repositories.AlbumRepository;
+import dev.kapiaszczyk.mpp.repositories.UserRepository;
+import dev.kapiaszczyk.mpp.util.PageCursor;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIf;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.testcontainers.DockerClientFactory;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.wait.strategy.Wait;
+import org.testcontainers.utility.DockerImageName;
+import org.testcontainers.utility.MountableFile;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Checks that the queries of the services and repositories are answered from the indexes provisioned by the
+ * {@link IndexProvisioner}.
+ * <p>
+ * The application runs against a database set up like the one of docker-compose. The profiler of the database
+ * records the operations of the services while they are called, and any operation planned as a collection scan
+ * fails the test. Not called are the jobs and statistics aggregating over all documents, which read the whole
+ * collections by design.
+ * <p>
+ * Skipped when Docker is not available.
+ */
+@SpringBootTest(properties = "spring.rabbitmq.listener.simple.auto-startup=false")
+@EnabledIf("isDockerAvailable")
+class IndexUsageTest {
+
+    private static final String COLLECTION_SCAN = "COLLSCAN";
+    private static final String PROFILE_COLLECTION = "system.profile";
+    private static final int MONGO_PORT = 27017;
+    private static final int PAGE_SIZE = 2;
+
+    // The init script creates the user of the application, as in docker-compose
+    private static final GenericContainer<?> mongo = new GenericContainer<>(DockerImageName.parse("mongo:7.0"))
+            .withEnv("MONGO_INITDB_ROOT_USERNAME", "admin")
+            .withEnv("MONGO_INITDB_ROOT_PASSWORD", "password")
+            .withCopyFileToContainer(MountableFile.forHostPath("../init-mongo.js"), "/docker-entrypoint-initdb.d/init-mongo.js")
+            .withExposedPorts(MONGO_PORT)
+            // The init script runs against a temporary server, the database is ready once the second one is
+            .waitingFor(Wait.forLogMessage(".*Waiting for connections.*\\n", 2));
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+    @Autowired
+    private PhotoService photoService;
+    @Autowired
+    private AlbumService albumService;
+    @Autowired
+    private UserService userService;
+    @Autowired
+    private PermissionsService permissionsService;
+    @Autowired
+    private BlobService blobService;
+    @Autowired
+    private UserTagService userTagService;
+    @Autowired
+    private UserRepository userRepository;
+    @Autowired
+    private AlbumRepository albumRepository;
+
+    static boolean isDockerAvailable() {
+        return DockerClientFactory.instance().isDockerAvailable();
+    }
+
+    @BeforeAll
+    static void startDatabase() {
+        mongo.start();
+    }
+
+    @AfterAll
+    static void stopDatabase() {
+        mongo.stop();
+    }
+
+    @DynamicPropertySource
+    static void databaseProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.data.mongodb.host", mongo::getHost);
+        registry.add("spring.data.mongodb.port", () -> mongo.getMappedPort(MONGO_PORT));
+    }
+
+    @Test
+    void queriesAreAnsweredFromIndexes() {
+        // Users are saved directly, registering counts all users
+        User owner = userRepository.save(new User("owner@example.com", "owner", "password", List.of("USER")));
+        User viewer = userRepository.save(new User("viewer@example.com", "viewer", "password", List.of("USER")));
+        albumService.createRootAlbumForUser(owner);
+        Album root = albumService.getRootAlbum(owner.getId());
+        Album album = albumService.createAlbum(root.getId(), "Holidays").right().orElseThrow();
+        albumService.addAccessToAlbum(album.getId(), viewer.getId(), AlbumAccessRoles.VIEWER);
+        List<PhotoMetadata> photos = seedPhotos(owner.getId(), album.getId());
+        // Rebuilt from the seeded photos, as they were not tagged through the service
+        userTagService.reconcile();
+
+        startProfiling();
+
+        for (PhotoSort sort : PhotoSort.values()) {
+            for (boolean ascending : List.of(true, false)) {
+                PhotoPage page = photoService.getPhotoMetadataPageInAlbum(album.getId(), sort, ascending, null, PAGE_SIZE, null);
+                assertNotNull(page.getNextCursor(), "The seeded photos must fill more than one page");
+                photoService.getPhotoMetadataPageInAlbum(album.getId(), sort, ascending,
+                        PageCursor.decode(page.getNextCursor()).orElseThrow(), PAGE_SIZE, null);
+            }
+        }
+        photoService.getAllPhotoMetadataInAlbum(album.getId());
+        photoService.getAllTagsForUser(owner.getId());
+        photoService.getTagFacets(owner.getId(), album.getId());
+        photoService.getAllTagsForUserInAlbum(owner.getId(), album);
+        photoService.getPhotosWithTag(owner.getId(), "cat", null);
+        PhotoPage tagged = photoService.getPhotosWithTagInAlbum(owner.getId(), "cat", album, null, PAGE_SIZE, null);
+        photoService.getPhotosWithTagInAlbum(owner.getId(), "cat", album,
+                PageCursor.decode(tagged.getNextCursor()).orElseThrow(), PAGE_SIZE, null);
+        photoService.getPhotoMetadataByTagGroupedByAlbums("cat", owner.getId(), null);
+        photoService.tagPhoto(photos.get(0).getId(), "dog");
+        photoService.editTags(photos.get(0).getId(), Set.of("cat"));
+        photoService.generatePendingThumbnails();
+        blobService.acquire(photos.get(0).getContentHash());
+
+        albumService.getAllAlbumsOwnedByUser(owner.getId());
+        albumService.getChildren(root.getId());
+        albumService.createAlbum(root.getId(), "Holidays");
+        albumService.getAncestorAlbums(album.getId());
+        albumService.getSharedAlbumsForUser(viewer.getId());
+        albumService.getAllAlbumsOwnedOrSharedWithUser(viewer.getId());
+        albumRepository.findByName("Holidays");
+        albumRepository.deleteByPath(album.getPath() + "/Missing");
+
+        userService.loadUserByUsername(owner.getEmail());
+        permissionsService.searchUsers("view");
+
+        photoService.movePhotosToAlbum(album.getId(), root.getId());
+        photoService.deleteAllPhotosInAlbum(root.getId());
+        photoService.deletePhotosByUser(owner.getId());
+
+        List<String> collectionScans = stopProfiling();
+        assertEquals(List.of(), collectionScans, "Operations planned as collection scans");
+    }
+
+    /**
+     * Save photos of a user in an album, each with its own blob. No files are stored, so the blobs hold a
+     * reference more than the photos and deleting the photos does not delete the files.
+     */
+    private List<PhotoMetadata> seedPhotos(String userId, String albumId) {
+        List<PhotoMetadata> photos = new ArrayList<>();
+        Instant uploadDate = Instant.now();
+        for (int i = 0; i < 5; i++) {
+            String gridFsId = new ObjectId().toHexString();
+            String contentHash = String.format("%064x", i);
+            blobService.register(new Blob(gridFsId, contentHash, 1000L + i, new Date(), 2));
+            photos.add(new PhotoMetadata()
+                    .id(new ObjectId().toHexString())
+                    .filename("photo-" + i + ".jpg")
+                    .contentType("image/jpeg")
+                    .size(1000L + i)
+                    .uploadDate(Date.from(uploadDate.minusSeconds(i)))
+                    .userId(userId)
+                    .albumId(albumId)
+                    .tags(i % 2 == 0 ? Set.of("cat", "holidays") : Set.of("cat"))
+                    .gridFs(gridFsId)
+                    .contentHash(contentHash)
+                    .thumbnailStatus(ThumbnailStatus.READY));
+        }
+        mongoTemplate.insertAll(photos);
+        return photos;
+    }
+
+    private void startProfiling() {
+        mongoTemplate.executeCommand(new Document("profile", 2));
+    }
+
+    /**
+     * Stop profiling and describe the profiled operations planned as collection scans.
+     */
+    private List<String> stopProfiling() {
+        mongoTemplate.executeCommand(new Document("profile", 0));
+        Query collectionScans = new Query(Criteria.where("planSummary").regex(COLLECTION_SCAN)
+                .and("ns").ne(mongoTemplate.getDb().getName() + "." + PROFILE_COLLECTION));
+        return mongoTemplate.find(collectionScans, Document.class, PROFILE_COLLECTION).stream()
+                .map(operation -> operation.getString("op") + " on " + operation.getString("ns") + ": "
+                        + operation.get("command", Document.class).toJson())
+                .toList();
+    }
+
+}
@@ -0,0 +1,172 @@
+package dev.kapiaszczyk.mpp.services;
+
+import dev.kapiaszczyk.mpp.models.StoredFile;
+import dev.kapiaszczyk.mpp.models.api.ThumbnailPackStatistics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the {@link ThumbnailPackStore} keeps its thumbnails across restarts, compaction and the crashes
+ * its startup scan recovers from.
+ */
+class ThumbnailPackStoreTest {
+
+    private static final long MAX_PACK_SIZE_MB = 1;
+    // Two thumbnails of this size fill a pack, the third one starts a new pack
+    private static final int LARGE_THUMBNAIL_SIZE = 400 * 1024;
+
+    @TempDir
+    Path directory;
+
+    private final List<ThumbnailPackStore> stores = new ArrayList<>();
+
+    @AfterEach
+    void closeStores() {
+        stores.forEach(ThumbnailPackStore::close);
+    }
+
+    @Test
+    void readsStoredThumbnailsAfterRestart() throws IOException {
+        ThumbnailPackStore store = open();
+        byte[] first = content(1, 1000);
+        byte[] second = content(2, 2000);
+        String firstId = store.store("first.jpg", first).orElseThrow();
+        String secondId = store.store("second.jpg", second).orElseThrow();
+
+        assertThumbnail(store, firstId, "first.jpg", first);
+        assertThumbnail(store, secondId, "second.jpg", second);
+        assertFalse(store.read("000000000000000000000000").isPresent(), "Thumbnails never stored are not found");
+        assertFalse(store.read("not-an-id").isPresent(), "Invalid IDs are not found");
+
+        store.close();
+        ThumbnailPackStore reopened = open();
+        assertThumbnail(reopened, firstId, "first.jpg", first);
+        assertThumbnail(reopened, secondId, "second.jpg", second);
+        assertEquals(2L, reopened.getStatistics().getEntries(), "Thumbnails indexed at startup");
+    }
+
+    @Test
+    void compactsSealedPackAfterDeletes() throws IOException {
+        ThumbnailPackStore store = open();
+        String deletedId = store.store("deleted.jpg", content(1, LARGE_THUMBNAIL_SIZE)).orElseThrow();
+        byte[] kept = content(2, LARGE_THUMBNAIL_SIZE);
+        String keptId = store.store("kept.jpg", kept).orElseThrow();
+        byte[] active = content(3, LARGE_THUMBNAIL_SIZE);
+        String activeId = store.store("active.jpg", active).orElseThrow();
+        assertEquals(2L, store.getStatistics().getPacks(), "The third thumbnail starts a new pack");
+
+        store.delete(List.of(deletedId));
+        assertFalse(store.read(deletedId).isPresent(), "Deleted thumbnails are not found");
+        assertTrue(store.getStatistics().getDeletedBytes() > 0, "Deleted thumbnails take up space until compacted");
+
+        store.compact();
+        ThumbnailPackStatistics statistics = store.getStatistics();
+        assertFalse(Files.exists(directory.resolve("pack-00001.dat")), "The compacted pack is removed");
+        assertEquals(1L, statistics.getPacks(), "Packs after compaction");
+        assertEquals(0L, statistics.getDeletedBytes(), "Space taken up by deleted thumbnails after compaction");
+        assertThumbnail(store, keptId, "kept.jpg", kept);
+        assertThumbnail(store, activeId, "active.jpg", active);
+
+        store.close();
+        ThumbnailPackStore reopened = open();
+        assertFalse(reopened.read(deletedId).isPresent(), "Deleted thumbnails stay deleted after restart");
+        assertThumbnail(reopened, keptId, "kept.jpg", kept);
+        assertThumbnail(reopened, activeId, "active.jpg", active);
+    }
+
+    @Test
+    void cutsOffRecordTornByCrashAtOpen() throws IOException {
+        ThumbnailPackStore store = open();
+        byte[] complete = content(1, 1000);
+        String completeId = store.store("complete.jpg", complete).orElseThrow();
+        Path pack = directory.resolve("pack-00001.dat");
+        long completeSize = Files.size(pack);
+        String tornId = store.store("torn.jpg", content(2, 1000)).orElseThrow();
+        store.close();
+        // The crash interrupted the write of the second record halfway through its content
+        try (FileChannel channel = FileChannel.open(pack, StandardOpenOption.WRITE)) {
+            channel.truncate(completeSize + 500);
+        }
+
+        ThumbnailPackStore reopened = open();
+        assertEquals(completeSize, Files.size(pack), "Size of the pack after the torn record is cut off");
+        assertThumbnail(reopened, completeId, "complete.jpg", complete);
+        assertFalse(reopened.read(tornId).isPresent(), "The torn thumbnail is not found");
+
+        // Appended where the torn record started, so the next scan reads past it
+        byte[] next = content(3, 1000);
+        String nextId = reopened.store("next.jpg", next).orElseThrow();
+        reopened.close();
+        ThumbnailPackStore restarted = open();
+        assertThumbnail(restarted, completeId, "complete.jpg", complete);
+        assertThumbnail(restarted, nextId, "next.jpg", next);
+    }
+
+    @Test
+    void indexesThumbnailCopiedByInterruptedCompactionOnce() throws IOException {
+        ThumbnailPackStore store = open();
+        byte[] first = content(1, 1000);
+        byte[] second = content(2, 1000);
+        String firstId = store.store("first.jpg", first).orElseThrow();
+        String secondId = store.store("second.jpg", second).orElseThrow();
+        store.close();
+        // The compaction copied both thumbnails to a new pack, but crashed before removing the compacted pack
+        Path compacted = directory.resolve("pack-00001.dat");
+        Path copy = directory.resolve("pack-00002.dat");
+        Files.copy(compacted, copy);
+        long copySize = Files.size(copy);
+
+        ThumbnailPackStore reopened = open();
+        ThumbnailPackStatistics statistics = reopened.getStatistics();
+        assertEquals(2L, statistics.getEntries(), "Copied thumbnails are indexed once");
+        assertEquals(copySize, statistics.getDeletedBytes(), "The copies left in the compacted pack count as deleted");
+        assertThumbnail(reopened, firstId, "first.jpg", first);
+        assertThumbnail(reopened, secondId, "second.jpg", second);
+
+        reopened.compact();
+        assertFalse(Files.exists(compacted), "The compacted pack is removed by the next compaction");
+        assertEquals(copySize, Files.size(copy), "The thumbnails are not copied again");
+        assertThumbnail(reopened, firstId, "first.jpg", first);
+        assertThumbnail(reopened, secondId, "second.jpg", second);
+    }
+
+    private ThumbnailPackStore open() throws IOException {
+        ThumbnailPackStore store = new ThumbnailPackStore(directory.toString(), MAX_PACK_SIZE_MB);
+        store.open();
+        stores.add(store);
+        return store;
+    }
+
+    private static void assertThumbnail(ThumbnailPackStore store, String thumbnailId, String filename, byte[] content) {
+        Optional<StoredFile> thumbnail = store.read(thumbnailId);
+        assertTrue(thumbnail.isPresent(), "Thumbnail " + filename + " is found");
+        assertEquals(filename, thumbnail.get().getFilename(), "Filename of the thumbnail");
+        assertArrayEquals(content, thumbnail.get().getContent(), "Content of thumbnail " + filename);
+    }
+
+    /**
+     * Content of a thumbnail that differs from thumbnails with another seed.
+     */
+    private static byte[] content(int seed, int size) {
+        byte[] content = new byte[size];
+        Arrays.fill(content, (byte) seed);
+        return content;
+    }
+
+}